@@ -0,0 +1,12 @@
+#!/bin/bash
+
+#Do not modify this file directly
+#It is stored at svn://bar.ebi.ac.uk/trunk/fgpt//automation/sampletab-converters/src/main/bin
+#and installed by http://coconut.ebi.ac.uk:9081/browse/BSD-CONVS
+
+#e.g. SampleTabDaemon.sh --port 7970 --secret ~/.sampletab-daemon-secret --spool daemon-spool
+#the secret file must not be readable by other users, and the spool directory not writable by them
+#on Java 18 and later, add -Djava.security.manager=allow to the args environment variable
+#so that System.exit calls by drivers can be trapped
+
+${0%/*}/sampletab-converters.sh uk.ac.ebi.fgpt.sampletab.SampleTabDaemon "$@"
@@ -0,0 +1,40 @@
+#!/bin/bash
+
+#Do not modify this file directly
+#It is stored at svn://bar.ebi.ac.uk/trunk/fgpt//automation/sampletab-converters/src/main/bin
+#and installed by http://coconut.ebi.ac.uk:9081/browse/BSD-CONVS
+
+#Runs a driver in an already running SampleTabDaemon, instead of starting a new JVM
+#e.g. sampletab-daemon-run.sh uk.ac.ebi.fgpt.sampletab.SampleTabBulkDriver -t 4 'GSB-*/sampletab.pre.txt'
+#The port the daemon is listening on can be set with the daemonport environment variable
+#and the file with the secret it was given with --secret with the daemonsecret environment variable
+
+if [ -z $daemonport ]
+then
+  daemonport=7970
+fi
+
+if [ -z $daemonsecret ]
+then
+  daemonsecret=~/.sampletab-daemon-secret
+fi
+
+secret=`cat "$daemonsecret"` || exit 1
+
+#ensure files are group writable
+umask 002
+
+exec 3<>/dev/tcp/127.0.0.1/$daemonport || exit 1
+
+#the secret, the number of lines, then the class name and each argument on its own line
+{ printf '%s\n' "$secret"; echo $#; printf '%s\n' "$@"; } >&3
+
+#wait for the exit code
+read -r code <&3
+exec 3<&-
+
+if [ -z "$code" ]
+then
+  exit 1
+fi
+exit $code
@@ -1,9 +1,14 @@
 package uk.ac.ebi.fgpt.sampletab;
 
 import java.io.File;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -16,6 +21,8 @@ import org.slf4j.LoggerFactory;
 
 import uk.ac.ebi.fgpt.sampletab.utils.FileGlobIterable;
 import uk.ac.ebi.fgpt.sampletab.utils.FileRecursiveIterable;
+import uk.ac.ebi.fgpt.sampletab.utils.RunJournal;
+import uk.ac.ebi.fgpt.sampletab.utils.Shard;
 
 import com.google.common.collect.Iterables;
 
@@ -33,6 +40,35 @@ public abstract class AbstractInfileDriver<T extends Callable<?>> extends Abstra
     @Option(name = "--startpath", aliases = { "-s" }, usage="starting path for matching")
     protected List<File> startpaths = null;
     
+    @Option(name = "--unsorted", usage="do not sort matched files, allows parallel walking")
+    protected boolean unsorted = false;
+    
+    @Option(name = "--walkthreads", usage="number of threads listing directories when matching unsorted")
+    protected int walkThreads = 1;
+    
+    @Option(name = "--inflight", usage = "maximum number of tasks queued or running at once (default 4 per thread)")
+    protected int maxInFlight = 0;
+    
+    @Option(name = "--journal", usage = "file to record finished inputs in, so the run can be resumed (default: class name .journal, with the shard added)")
+    protected File journalFile = null;
+    
+    @Option(name = "--resume", metaVar = "RUNID", usage = "skip inputs already finished by this run, as recorded in the journal")
+    protected String resumeRunId = null;
+    
+    @Option(name = "--run-id", metaVar = "RUNID", usage = "ID of a new run, such as the cluster job ID, so all shards of it can be resumed with one --resume (default: the time and a random suffix)")
+    protected String newRunId = null;
+    
+    @Option(name = "--shard", metaVar = "i/N", usage = "only process the i-th of N parts of the inputs, split by submission (1 <= i <= N)")
+    protected String shardSpec = null;
+    
+    @Option(name = "--shard-by-size", usage = "split shards so each has about the same total input size (lists all inputs before starting)")
+    protected boolean shardBySize = false;
+    
+    @Option(name = "--shard-plan", usage = "with --shard-by-size and --run-id, file shared by all shards of the run that the first writes its split to, so all agree even if inputs change")
+    protected File shardPlan = null;
+    
+    private RunJournal journal = null;
+    
     private Logger log = LoggerFactory.getLogger(getClass());
         
     protected abstract T getNewTask(File inputFile);
@@ -55,7 +91,15 @@ public abstract class AbstractInfileDriver<T extends Callable<?>> extends Abstra
     
     protected void doMain(String[] args) {
         super.doMain(args);
-        
+        System.exit(processInputs());
+    }
+    
+    /**
+     * Finds the inputs given by the arguments and runs a task on each of them.
+     * 
+     * @return the exit code
+     */
+    protected int processInputs() {
 
         Iterable<File> inputFiles = null;
         for (String inputFilename : getInputFilenames()) {
@@ -63,31 +107,84 @@ public abstract class AbstractInfileDriver<T extends Callable<?>> extends Abstra
                 if (startpaths == null) {
                     log.info("Looking recursively for input files named "+inputFilename);
                     if (inputFiles == null) {
-                        inputFiles = new FileRecursiveIterable(inputFilename, null);
+                        inputFiles = new FileRecursiveIterable(inputFilename, null, !unsorted, walkThreads);
                     } else {
-                        inputFiles = Iterables.concat(inputFiles, new FileRecursiveIterable(inputFilename, null));
+                        inputFiles = Iterables.concat(inputFiles, new FileRecursiveIterable(inputFilename, null, !unsorted, walkThreads));
                     }
                     
                 } else {
                     for (File startpath : startpaths) {
                         log.info("Looking recursively for input files named "+inputFilename+" from "+startpath);
                         if (inputFiles == null) {
-                            inputFiles = new FileRecursiveIterable(inputFilename, startpath);
+                            inputFiles = new FileRecursiveIterable(inputFilename, startpath, !unsorted, walkThreads);
                         } else {
-                            inputFiles = Iterables.concat(inputFiles, new FileRecursiveIterable(inputFilename, startpath));
+                            inputFiles = Iterables.concat(inputFiles, new FileRecursiveIterable(inputFilename, startpath, !unsorted, walkThreads));
                         }
                     }
                 }
             } else {
                 log.info("Looking for input files in glob "+inputFilename);   
                 if (inputFiles == null) {
-                    inputFiles = new FileGlobIterable(inputFilename);
+                    inputFiles = new FileGlobIterable(inputFilename, !unsorted, walkThreads);
                 } else {
-                    inputFiles = Iterables.concat(inputFiles,new FileGlobIterable(inputFilename));
+                    inputFiles = Iterables.concat(inputFiles,new FileGlobIterable(inputFilename, !unsorted, walkThreads));
                 }
             }
         }
 
+        if (resumeRunId != null && newRunId != null) {
+            log.error("Only one of --resume and --run-id can be used");
+            return 1;
+        }
+        String runId = resumeRunId;
+        if (runId == null) {
+            runId = newRunId;
+        }
+        if (runId == null) {
+            runId = RunJournal.newRunId();
+        }
+
+        Shard shard = null;
+        if (shardSpec != null) {
+            try {
+                shard = Shard.parse(shardSpec);
+            } catch (IllegalArgumentException e) {
+                log.error(e.getMessage());
+                return 1;
+            }
+            log.info("Processing shard "+shard);
+            if (shardBySize) {
+                if (shardPlan != null && resumeRunId == null && newRunId == null) {
+                    log.error("--shard-plan needs the same --run-id or --resume for every shard");
+                    return 1;
+                }
+                try {
+                    inputFiles = shard.filterBySize(inputFiles, shardPlan, runId);
+                } catch (IOException e) {
+                    log.error("Unable to use shard plan "+shardPlan, e);
+                    return 1;
+                }
+            } else {
+                inputFiles = shard.filter(inputFiles);
+            }
+        }
+
+        //always kept, so that any run can be resumed
+        if (journalFile == null) {
+            journalFile = new File(getClass().getSimpleName()+".journal");
+        }
+        if (shard != null) {
+            //each shard has its own, so that shards of the same job do not write to the same file
+            journalFile = shard.getShardFile(journalFile);
+        }
+        try {
+            journal = new RunJournal(journalFile, runId, resumeRunId != null);
+        } catch (IOException e) {
+            log.error("Unable to open journal "+journalFile, e);
+            return 1;
+        }
+        log.info("Journal of run "+runId+" is "+journalFile.getAbsolutePath()+", use --resume "+runId+" to continue it");
+
         ExecutorService pool = null;
         if (threads > 0) {
             pool = Executors.newFixedThreadPool(threads);
@@ -97,40 +194,78 @@ public abstract class AbstractInfileDriver<T extends Callable<?>> extends Abstra
         preProcess();
         log.info("Finished preprocesssing");
 
+        boolean interrupted = false;
         if (pool != null) {
             //we are using a pool of threads to do stuff in parallel
             //create some futures and then wait for them to finish
             
-            List<Future<?>> futures = new LinkedList<Future<?>>();
+            //only keep a bounded number of tasks submitted at any one time
+            //so that walking a huge tree does not fill the heap with waiting tasks
+            //and so that problems are reported as soon as each task finishes
+            int limit = maxInFlight;
+            if (limit <= 0) {
+                limit = threads * 4;
+            }
+            CompletionService<Object> completionService = new ExecutorCompletionService<Object>(pool);
+            Map<Future<?>, File> inFlight = new HashMap<Future<?>, File>();
             for (File inputFile : inputFiles) {
-                Callable<?> t = getNewTask(inputFile);
+                if (journal != null && journal.isDone(inputFile)) {
+                    continue;
+                }
+                @SuppressWarnings("unchecked")
+                Callable<Object> t = (Callable<Object>) getNewTask(inputFile);
                 if (t != null) {
-                    Future<?> f = pool.submit(t);
-                    futures.add(f);
+                    while (!interrupted && inFlight.size() >= limit) {
+                        interrupted = !drainCompleted(completionService, inFlight);
+                    }
+                    if (interrupted) {
+                        break;
+                    }
+                    Future<?> f = completionService.submit(t);
+                    inFlight.put(f, inputFile);
                 }
             }
             
-            for (Future<?> f : futures) {
+            while (!interrupted && inFlight.size() > 0) {
+                interrupted = !drainCompleted(completionService, inFlight);
+            }
+            
+            if (interrupted) {
+                //nothing can be waited on now, so give up on the outstanding tasks
+                for (Future<?> f : inFlight.keySet()) {
+                    f.cancel(true);
+                }
+                inFlight.clear();
+                pool.shutdownNow();
+                //clear the interrupt while waiting a little for the cancelled tasks to stop,
+                //so they are not still writing files when postProcess runs
+                Thread.interrupted();
                 try {
-                    f.get();
-                } catch (Exception e) {
-                    //something went wrong
-                    log.error("Problem processing", e);
-                    exitCode = 1;
+                    if (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                        log.warn("Cancelled tasks still running after waiting a minute");
+                    }
+                } catch (InterruptedException e) {
+                    //interrupted again, so stop waiting
                 }
+                Thread.currentThread().interrupt();
             }
             
         } else {
             //we are not using a pool, its all in one
             for (File inputFile : inputFiles) {
+                if (journal != null && journal.isDone(inputFile)) {
+                    continue;
+                }
                 Callable<?> t = getNewTask(inputFile);
                 if (t != null) {
                     try {
                         t.call();
+                        journal(inputFile, true);
                     } catch (Exception e) {
                         //something went wrong
                         log.error("Problem processing "+inputFile, e);
                         exitCode = 1;
+                        journal(inputFile, false);
                     }
                 }
             }
@@ -138,7 +273,8 @@ public abstract class AbstractInfileDriver<T extends Callable<?>> extends Abstra
         
         // run the pool and then close it afterwards
         // must synchronize on the pool object
-        if (pool != null) {
+        // if interrupted, it has already been shut down and waited for
+        if (pool != null && !interrupted) {
             synchronized (pool) {
                 pool.shutdown();
                 try {
@@ -150,13 +286,65 @@ public abstract class AbstractInfileDriver<T extends Callable<?>> extends Abstra
             }
         }
 
+        if (journal != null) {
+            journal.close();
+        }
+
         log.info("Starting postprocessing");
         postProcess();
         log.info("Finished preprocesssing");
         
         log.info("Finished reading");
         
-        System.exit(exitCode);
+        return exitCode;
     }
     
+    /**
+     * Waits for the next submitted task to finish and reports its outcome.
+     * 
+     * @return false if interrupted while waiting, in which case no more should be submitted
+     */
+    private boolean drainCompleted(CompletionService<Object> completionService, Map<Future<?>, File> inFlight) {
+        Future<?> f;
+        try {
+            f = completionService.take();
+        } catch (InterruptedException e) {
+            log.error("Interupted waiting for task to complete", e);
+            exitCode = 1;
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        File inputFile = inFlight.remove(f);
+        try {
+            f.get();
+            journal(inputFile, true);
+        } catch (ExecutionException e) {
+            //something went wrong
+            log.error("Problem processing "+inputFile, e.getCause());
+            exitCode = 1;
+            journal(inputFile, false);
+        } catch (InterruptedException e) {
+            log.error("Interupted processing "+inputFile, e);
+            exitCode = 1;
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+    
+    private void journal(File inputFile, boolean success) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            if (success) {
+                journal.markDone(inputFile);
+            } else {
+                journal.markFailed(inputFile);
+            }
+        } catch (IOException e) {
+            //not fatal, it will just be redone if the run is resumed
+            log.warn("Unable to write "+inputFile+" to journal", e);
+        }
+    }
 }
@@ -5,10 +5,18 @@ import java.net.URL;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLRecoverableException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.locks.Lock;
 
 import javax.sql.DataSource;
 
@@ -17,28 +25,55 @@ import oracle.jdbc.pool.OracleDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.dao.DataAccessException;
-import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Striped;
 import com.jolbox.bonecp.BoneCPDataSource;
 
 import uk.ac.ebi.arrayexpress2.magetab.exception.ParseException;
 import uk.ac.ebi.arrayexpress2.sampletab.datamodel.SampleData;
 import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.GroupNode;
 import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.SampleNode;
+import uk.ac.ebi.fgpt.sampletab.utils.Retry;
 
 public class Accessioner {
 	//create prepared statements
-	String stmGetAss = "SELECT ACCESSION FROM SAMPLE_ASSAY WHERE USER_ACCESSION LIKE ? AND SUBMISSION_ACCESSION LIKE ?";
-    String stmGetRef = "SELECT ACCESSION FROM SAMPLE_REFERENCE WHERE USER_ACCESSION LIKE ? AND SUBMISSION_ACCESSION LIKE ?";
-    String stmGetGrp = "SELECT ACCESSION FROM SAMPLE_GROUPS WHERE USER_ACCESSION LIKE ? AND SUBMISSION_ACCESSION LIKE ?";
+	//names are matched exactly everywhere, as in the unique constraints, so a name with _ or % in
+	//it is never taken for another name and single and bulk lookups always agree
+	String stmGetAss = "SELECT ACCESSION FROM SAMPLE_ASSAY WHERE USER_ACCESSION = ? AND SUBMISSION_ACCESSION = ?";
+    String stmGetRef = "SELECT ACCESSION FROM SAMPLE_REFERENCE WHERE USER_ACCESSION = ? AND SUBMISSION_ACCESSION = ?";
+    String stmGetGrp = "SELECT ACCESSION FROM SAMPLE_GROUPS WHERE USER_ACCESSION = ? AND SUBMISSION_ACCESSION = ?";
     
-    String insertAss = "INSERT INTO SAMPLE_ASSAY ( USER_ACCESSION , SUBMISSION_ACCESSION , DATE_ASSIGNED , IS_DELETED ) VALUES ( ? ,  ? , SYSDATE, 0 )";
-    String insertRef = "INSERT INTO SAMPLE_REFERENCE ( USER_ACCESSION , SUBMISSION_ACCESSION , DATE_ASSIGNED , IS_DELETED ) VALUES ( ? ,  ? , SYSDATE, 0 )";
-    String insertGrp = "INSERT INTO SAMPLE_GROUPS ( USER_ACCESSION , SUBMISSION_ACCESSION , DATE_ASSIGNED , IS_DELETED ) VALUES ( ? ,  ? , SYSDATE, 0 )";
+    //only inserts if not already there. That is not atomic, so a row added by another process at the
+    //same time is stopped by the unique constraints of sql/accession-unique-constraints.sql instead
+    //takes the user accession and submission accession twice
+    String insertAss = "INSERT INTO SAMPLE_ASSAY ( USER_ACCESSION , SUBMISSION_ACCESSION , DATE_ASSIGNED , IS_DELETED ) SELECT ? , ? , SYSDATE, 0 FROM DUAL "
+        + "WHERE NOT EXISTS ( SELECT 1 FROM SAMPLE_ASSAY WHERE USER_ACCESSION = ? AND SUBMISSION_ACCESSION = ? )";
+    String insertRef = "INSERT INTO SAMPLE_REFERENCE ( USER_ACCESSION , SUBMISSION_ACCESSION , DATE_ASSIGNED , IS_DELETED ) SELECT ? , ? , SYSDATE, 0 FROM DUAL "
+        + "WHERE NOT EXISTS ( SELECT 1 FROM SAMPLE_REFERENCE WHERE USER_ACCESSION = ? AND SUBMISSION_ACCESSION = ? )";
+    String insertGrp = "INSERT INTO SAMPLE_GROUPS ( USER_ACCESSION , SUBMISSION_ACCESSION , DATE_ASSIGNED , IS_DELETED ) SELECT ? , ? , SYSDATE, 0 FROM DUAL "
+        + "WHERE NOT EXISTS ( SELECT 1 FROM SAMPLE_GROUPS WHERE USER_ACCESSION = ? AND SUBMISSION_ACCESSION = ? )";
+    
+    //followed by a list of placeholders for the user accessions
+    String stmGetAssIn = "SELECT USER_ACCESSION, ACCESSION FROM SAMPLE_ASSAY WHERE SUBMISSION_ACCESSION = ? AND USER_ACCESSION IN ";
+    String stmGetRefIn = "SELECT USER_ACCESSION, ACCESSION FROM SAMPLE_REFERENCE WHERE SUBMISSION_ACCESSION = ? AND USER_ACCESSION IN ";
+    String stmGetGrpIn = "SELECT USER_ACCESSION, ACCESSION FROM SAMPLE_GROUPS WHERE SUBMISSION_ACCESSION = ? AND USER_ACCESSION IN ";
+    
+    String stmGetAllAss = "SELECT USER_ACCESSION, ACCESSION FROM SAMPLE_ASSAY WHERE SUBMISSION_ACCESSION = ?";
+    String stmGetAllRef = "SELECT USER_ACCESSION, ACCESSION FROM SAMPLE_REFERENCE WHERE SUBMISSION_ACCESSION = ?";
+    String stmGetAllGrp = "SELECT USER_ACCESSION, ACCESSION FROM SAMPLE_GROUPS WHERE SUBMISSION_ACCESSION = ?";
+    
+    //Oracle allows at most 1000 expressions in an IN list
+    public static final int BULK_CHUNK_SIZE = 1000;
+    
+    public static final int CACHE_SIZE = 200000;
     
     
     String stmGetUsr = "SELECT APIKEY, USERNAME, PUBLICEMAIL, PUBLICURL, CONTACTNAME, CONTACTEMAIL FROM USERS WHERE APIKEY LIKE ?";
@@ -51,20 +86,44 @@ public class Accessioner {
     
     
     private JdbcTemplate jdbcTemplate;
+    
+    //accessions once assigned don't change, so can be remembered until something says otherwise
+    //by prefix, user and name
+    private final Cache<String, String> cachedAccessions = CacheBuilder.newBuilder()
+        .maximumSize(CACHE_SIZE).build();
+    //users of accessions
+    private final Cache<String, String> cachedUsers = CacheBuilder.newBuilder()
+        .maximumSize(CACHE_SIZE).build();
 
     private Logger log = LoggerFactory.getLogger(getClass());
     
-    public static DataSource getDataSource(String hostname, int port, String database, String dbusername, String dbpassword) throws ClassNotFoundException {
+    //only one thread in the JVM at a time may assign a given name, but different names can be
+    //assigned in parallel. Between processes, a unique constraint on the user and submission
+    //accessions of each table stops both assigning the same name, which must have been added
+    //with sql/accession-unique-constraints.sql
+    private static final Striped<Lock> locks = Striped.lock(1024);
+    
+    //a failover waits a little then tries again, rather than every thread retrying at once
+    private static final Retry retry = Retry.forDatabase("Accessioner");
+    
+    //one pool per database and user, shared by every driver run in the same JVM
+    private static final Map<String, DataSource> dataSources = new HashMap<String, DataSource>();
+    
+    public static synchronized DataSource getDataSource(String hostname, int port, String database, String dbusername, String dbpassword) throws ClassNotFoundException {
         Class.forName("oracle.jdbc.driver.OracleDriver");
 
         String connectURI = "jdbc:oracle:thin:@"+hostname+":"+port+":"+database;
         
-        BoneCPDataSource ds = new BoneCPDataSource();
-        ds.setJdbcUrl(connectURI);
-        ds.setUser(dbusername);
-        ds.setPassword(dbpassword);  
+        String key = connectURI+" "+dbusername;
+        if (!dataSources.containsKey(key)) {
+            BoneCPDataSource ds = new BoneCPDataSource();
+            ds.setJdbcUrl(connectURI);
+            ds.setUser(dbusername);
+            ds.setPassword(dbpassword);  
+            dataSources.put(key, ds);
+        }
         
-    	return ds;
+    	return dataSources.get(key);
     }
         
     
@@ -76,7 +135,7 @@ public class Accessioner {
         jdbcTemplate = new JdbcTemplate(dataSource);
     }
     
-    public synchronized String singleAssaySample(String username) {
+    public String singleAssaySample(String username) {
         //use java UUID to get a temporary sample name
         String accession = singleAssaySample(UUID.randomUUID().toString(), username);
         //technically, this may have collisions but they should be very rare, if ever
@@ -84,41 +143,41 @@ public class Accessioner {
     }
     
     
-    public synchronized String singleAssaySample(String name, String username)  {
+    public String singleAssaySample(String name, String username)  {
         return singleAccession(name, "SAMEA", username, stmGetAss, insertAss);
     }
     
-    public synchronized String singleReferenceSample(String name, String username) {
+    public String singleReferenceSample(String name, String username) {
         return singleAccession(name, "SAME", username, stmGetRef, insertRef);
     }
     
-    public synchronized String singleGroup(String name, String username) {
+    public String singleGroup(String name, String username) {
         return singleAccession(name, "SAMEG", username, stmGetGrp, insertGrp);
     }
     
     
-    public synchronized String retrieveAssaySample(String name, String username)  {
+    public String retrieveAssaySample(String name, String username)  {
         return singleAccession(name, "SAMEA", username, stmGetAss, null);
     }
     
-    public synchronized String retrieveReferenceSample(String name, String username) {
+    public String retrieveReferenceSample(String name, String username) {
         return singleAccession(name, "SAME", username, stmGetRef, null);
     }
     
-    public synchronized String retrieveGroup(String name, String username) {
+    public String retrieveGroup(String name, String username) {
         return singleAccession(name, "SAMEG", username, stmGetGrp, null);
     }
     
     
-    public synchronized boolean testAssaySample(String name, String username)  {
+    public boolean testAssaySample(String name, String username)  {
     	return singleAccession(name, "SAMEA", username, stmGetAss, null) != null;
     }
     
-    public synchronized boolean testReferenceSample(String name, String username) {
+    public boolean testReferenceSample(String name, String username) {
     	return singleAccession(name, "SAME", username, stmGetRef, null) != null;
     }
     
-    public synchronized boolean testGroup(String name, String username) {
+    public boolean testGroup(String name, String username) {
     	return singleAccession(name, "SAMEG", username, stmGetGrp, null) != null;
     }
     
@@ -134,7 +193,7 @@ public class Accessioner {
      * @throws DataAccessException
      */
     @Transactional
-    protected synchronized String singleAccession(String name, String prefix, String username, String stmGet, String stmPut) throws DataAccessException {
+    protected String singleAccession(String name, String prefix, String username, String stmGet, String stmPut) throws DataAccessException {
         if (name == null || name.trim().length() == 0) 
             throw new IllegalArgumentException("name must be at least 1 character");
         if (prefix == null ) 
@@ -143,31 +202,278 @@ public class Accessioner {
         name = name.trim();
         username = username.toLowerCase().trim();
         
-        String accession = null;
+        String key = getKey(prefix, username, name);
+        String cached = cachedAccessions.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
         
-        try {        
-	        List<String> results = jdbcTemplate.query(stmGet, new SingleStringRowMapper(), name, username);        
-	        if (results.size() > 1) {
-	        	throw new RuntimeException("more that one matching accession found!");
-	        } else if (results.size() == 1) {
-	        	accession = prefix+results.get(0);
-	        } else {
-	        	//if there was no put statement provided, end here
-	        	if (stmPut == null) {
-	        		accession = null;
-	        	} else {
-		        	jdbcTemplate.update(stmPut, name, username);
-		        	results = jdbcTemplate.query(stmGet, new SingleStringRowMapper(), name, username);
-		        	accession = prefix+results.get(0);
-	        	}
-	        }
-        } catch (RecoverableDataAccessException e) {
-        	//if it was a recoverable error, try again
-        	return singleAccession(name, prefix, username, stmGet, stmPut);
+        String accession = retry.call("accessioning "+name+" for "+username, 
+                new AccessionAttempt(name, prefix, username, stmGet, stmPut));
+        if (accession != null) {
+            cache(accession, prefix, username, name);
         }
         return accession;
     }
     
+    /**
+     * One try at the database part of {@link #singleAccession(String, String, String, String, String)}.
+     * The lock is only held during the attempt, so others can use it while this waits to retry.
+     */
+    private class AccessionAttempt extends Retry.DatabaseAttempt<String, DataAccessException> {
+        private final String name;
+        private final String prefix;
+        private final String username;
+        private final String stmGet;
+        private final String stmPut;
+        
+        public AccessionAttempt(String name, String prefix, String username, String stmGet, String stmPut) {
+            this.name = name;
+            this.prefix = prefix;
+            this.username = username;
+            this.stmGet = stmGet;
+            this.stmPut = stmPut;
+        }
+        
+        public String attempt() throws DataAccessException {
+            //looking up without assigning doesn't need to wait for anything else
+            Lock lock = null;
+            if (stmPut != null) {
+                lock = locks.get(getKey(prefix, username, name));
+                lock.lock();
+            }
+            try {        
+                List<String> results = jdbcTemplate.query(stmGet, new SingleStringRowMapper(), name, username);        
+                if (results.size() > 1) {
+                    throw new RuntimeException("more that one matching accession found!");
+                } else if (results.size() == 1) {
+                    return prefix+results.get(0);
+                } else if (stmPut == null) {
+                    //if there was no put statement provided, end here
+                    return null;
+                } else {
+                    try {
+                        jdbcTemplate.update(stmPut, name, username, name, username);
+                    } catch (DuplicateKeyException e) {
+                        //another process assigned it at the same time, so use that
+                        log.debug("Concurrent accessioning of "+name+" for "+username);
+                    }
+                    results = jdbcTemplate.query(stmGet, new SingleStringRowMapper(), name, username);
+                    return prefix+results.get(0);
+                }
+            } finally {
+                if (lock != null) {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+    
+    private void cache(String accession, String prefix, String username, String name) {
+        cachedAccessions.put(getKey(prefix, username, name), accession);
+        cachedUsers.put(accession, username);
+    }
+    
+    private static String getKey(String prefix, String username, String name) {
+        return prefix+"\t"+username+"\t"+name;
+    }
+    
+    public Map<String, String> bulkAssaySamples(Collection<String> names, String username) {
+        return bulkAccession(names, "SAMEA", username, stmGetAssIn, insertAss);
+    }
+    
+    public Map<String, String> bulkReferenceSamples(Collection<String> names, String username) {
+        return bulkAccession(names, "SAME", username, stmGetRefIn, insertRef);
+    }
+    
+    public Map<String, String> bulkGroups(Collection<String> names, String username) {
+        return bulkAccession(names, "SAMEG", username, stmGetGrpIn, insertGrp);
+    }
+    
+    /**
+     * As {@link #singleAccession(String, String, String, String, String)} for many names at once.
+     * Existing accessions are looked up {@value #BULK_CHUNK_SIZE} at a time, those that are 
+     * missing are inserted in one batch, and then their new accessions looked up in the same way.
+     * 
+     * @param names user accessions, which are trimmed
+     * @return the accession of each trimmed name
+     */
+    @Transactional
+    protected Map<String, String> bulkAccession(Collection<String> names, String prefix, String username, String stmGetIn, String stmPut) throws DataAccessException {
+        if (prefix == null ) 
+            throw new IllegalArgumentException("prefix must not be null");
+        
+        Set<String> trimmed = new LinkedHashSet<String>();
+        for (String name : names) {
+            if (name == null || name.trim().length() == 0) 
+                throw new IllegalArgumentException("name must be at least 1 character");
+            trimmed.add(name.trim());
+        }
+        username = username.toLowerCase().trim();
+        
+        Map<String, String> accessions = new HashMap<String, String>();
+        Set<String> uncached = new LinkedHashSet<String>();
+        for (String name : trimmed) {
+            String cached = cachedAccessions.getIfPresent(getKey(prefix, username, name));
+            if (cached != null) {
+                accessions.put(name, cached);
+            } else {
+                uncached.add(name);
+            }
+        }
+        if (uncached.size() == 0) {
+            return accessions;
+        }
+        
+        final Collection<String> toAssign = uncached;
+        final String user = username;
+        accessions.putAll(retry.call("accessioning "+uncached.size()+" names for "+username, 
+                new Retry.DatabaseAttempt<Map<String, String>, DataAccessException>() {
+                    public Map<String, String> attempt() throws DataAccessException {
+                        //any that were inserted by a failed attempt will be found by the lookup
+                        return assignAccessions(toAssign, prefix, user, stmGetIn, stmPut);
+                    }
+                }));
+        return accessions;
+    }
+    
+    /**
+     * Looks up, and if there is a put statement assigns, accessions for names that are not cached.
+     */
+    private Map<String, String> assignAccessions(Collection<String> names, String prefix, String username, String stmGetIn, String stmPut) throws DataAccessException {
+        //hold the locks of all the names, which are in the same order for every caller
+        List<Lock> held = new ArrayList<Lock>();
+        if (stmPut != null) {
+            List<String> keys = new ArrayList<String>();
+            for (String name : names) {
+                keys.add(getKey(prefix, username, name));
+            }
+            Set<Lock> stripes = Collections.newSetFromMap(new IdentityHashMap<Lock, Boolean>());
+            for (Lock lock : locks.bulkGet(keys)) {
+                if (stripes.add(lock)) {
+                    lock.lock();
+                    held.add(lock);
+                }
+            }
+        }
+        
+        try {
+            Map<String, String> accessions = lookupAccessions(names, prefix, username, stmGetIn);
+            if (stmPut != null && accessions.size() < names.size()) {
+                List<Object[]> missing = new ArrayList<Object[]>();
+                for (String name : names) {
+                    if (!accessions.containsKey(name)) {
+                        missing.add(new Object[] {name, username, name, username});
+                    }
+                }
+                try {
+                    for (List<Object[]> chunk : Lists.partition(missing, BULK_CHUNK_SIZE)) {
+                        jdbcTemplate.batchUpdate(stmPut, chunk);
+                    }
+                } catch (DuplicateKeyException e) {
+                    //another process assigned some at the same time, so start again to use those
+                    log.debug("Concurrent accessioning for "+username);
+                    return assignAccessions(names, prefix, username, stmGetIn, stmPut);
+                }
+                List<String> inserted = new ArrayList<String>();
+                for (Object[] args : missing) {
+                    inserted.add((String) args[0]);
+                }
+                accessions.putAll(lookupAccessions(inserted, prefix, username, stmGetIn));
+            }
+            return accessions;
+        } finally {
+            for (Lock lock : held) {
+                lock.unlock();
+            }
+        }
+    }
+    
+    private Map<String, String> lookupAccessions(Collection<String> names, final String prefix, final String username, String stmGetIn) {
+        final Map<String, String> accessions = new HashMap<String, String>();
+        for (List<String> chunk : Lists.partition(new ArrayList<String>(names), BULK_CHUNK_SIZE)) {
+            StringBuilder sql = new StringBuilder(stmGetIn).append("(");
+            Object[] args = new Object[chunk.size()+1];
+            args[0] = username;
+            for (int i = 0; i < chunk.size(); i++) {
+                if (i > 0) {
+                    sql.append(",");
+                }
+                sql.append("?");
+                args[i+1] = chunk.get(i);
+            }
+            sql.append(")");
+            jdbcTemplate.query(sql.toString(), args, new RowCallbackHandler() {
+                public void processRow(ResultSet rs) throws SQLException {
+                    String name = rs.getString(1);
+                    if (accessions.containsKey(name)) {
+                        throw new RuntimeException("more that one matching accession found!");
+                    }
+                    accessions.put(name, prefix+rs.getString(2));
+                    cache(prefix+rs.getString(2), prefix, username, name);
+                }
+            });
+        }
+        return accessions;
+    }
+    
+    /**
+     * Loads all the existing accessions of a user into the cache in one query per type, so
+     * that later lookups for any of them don't need to go to the database. Users with more
+     * than {@value #CACHE_SIZE} will not all fit.
+     * 
+     * @return how many accessions were loaded
+     */
+    public int prefetch(String username) {
+        final String user = username.toLowerCase().trim();
+        int count = 0;
+        count += prefetch(stmGetAllAss, "SAMEA", user);
+        count += prefetch(stmGetAllRef, "SAME", user);
+        count += prefetch(stmGetAllGrp, "SAMEG", user);
+        log.debug("Prefetched "+count+" accessions of "+user);
+        return count;
+    }
+    
+    private int prefetch(String stmGetAll, final String prefix, final String username) {
+        final int[] count = new int[1];
+        jdbcTemplate.query(stmGetAll, new Object[] {username}, new RowCallbackHandler() {
+            public void processRow(ResultSet rs) throws SQLException {
+                cache(prefix+rs.getString(2), prefix, username, rs.getString(1));
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+    
+    /**
+     * Forgets all cached accessions, e.g. after they have been changed in the database by
+     * something else.
+     */
+    public void invalidateCache() {
+        cachedAccessions.invalidateAll();
+        cachedUsers.invalidateAll();
+    }
+    
+    /**
+     * Forgets the cached accessions of one user.
+     */
+    public void invalidateCache(String username) {
+        username = username.toLowerCase().trim();
+        for (String prefix : new String[] {"SAMEA", "SAME", "SAMEG"}) {
+            String keyPrefix = getKey(prefix, username, "");
+            for (String key : new ArrayList<String>(cachedAccessions.asMap().keySet())) {
+                if (key.startsWith(keyPrefix)) {
+                    cachedAccessions.invalidate(key);
+                }
+            }
+        }
+        for (Map.Entry<String, String> entry : new ArrayList<Map.Entry<String, String>>(cachedUsers.asMap().entrySet())) {
+            if (username.equals(entry.getValue())) {
+                cachedUsers.invalidate(entry.getKey());
+            }
+        }
+    }
+    
 	protected class SingleStringRowMapper implements RowMapper<String>
 	{
 		public String mapRow(ResultSet rs, int rowNum) throws SQLException {
@@ -207,26 +513,41 @@ public class Accessioner {
 	public SampleData convert(SampleData sd, String username) throws ParseException {
 
 		// now assign and retrieve accessions for samples that do not have them
-		Collection<SampleNode> samples = sd.scd.getNodes(SampleNode.class);
-		for (SampleNode sample : samples) {
+		// all in one go, as large submissions have tens of thousands
+		List<SampleNode> samples = new ArrayList<SampleNode>();
+		List<String> sampleNames = new ArrayList<String>();
+		for (SampleNode sample : sd.scd.getNodes(SampleNode.class)) {
 			if (sample.getSampleAccession() == null) {
-				String accession;
-				if (sd.msi.submissionReferenceLayer) {
-					accession = singleReferenceSample(sample.getNodeName(), username);
-				} else {
-					accession = singleAssaySample(sample.getNodeName(),username);
-				}
-				sample.setSampleAccession(accession);
+				samples.add(sample);
+				sampleNames.add(sample.getNodeName());
+			}
+		}
+		if (samples.size() > 0) {
+			Map<String, String> accessions;
+			if (sd.msi.submissionReferenceLayer) {
+				accessions = bulkReferenceSamples(sampleNames, username);
+			} else {
+				accessions = bulkAssaySamples(sampleNames, username);
+			}
+			for (SampleNode sample : samples) {
+				sample.setSampleAccession(accessions.get(sample.getNodeName().trim()));
 			}
 		}
 
 		// now assign and retrieve accessions for groups that do not have them
 		//group acessions MUST be assigned per submission - too similar otherwise
-		Collection<GroupNode> groups = sd.scd.getNodes(GroupNode.class);
-		for (GroupNode group : groups) {
+		List<GroupNode> groups = new ArrayList<GroupNode>();
+		List<String> groupNames = new ArrayList<String>();
+		for (GroupNode group : sd.scd.getNodes(GroupNode.class)) {
 			if (group.getGroupAccession() == null) {
-				String accession = singleGroup(group.getNodeName(), username);
-				group.setGroupAccession(accession);
+				groups.add(group);
+				groupNames.add(group.getNodeName());
+			}
+		}
+		if (groups.size() > 0) {
+			Map<String, String> accessions = bulkGroups(groupNames, username);
+			for (GroupNode group : groups) {
+				group.setGroupAccession(accessions.get(group.getNodeName().trim()));
 			}
 		}
 		return sd;
@@ -287,6 +608,11 @@ public class Accessioner {
 	}
 		
 	public Optional<String> getUserNameForAccession(String accession){
+		String cached = cachedUsers.getIfPresent(accession);
+		if (cached != null) {
+			return Optional.of(cached);
+		}
+		
 		//validate accession format
 		String sql = null;
 		Integer accessionId = null;
@@ -303,20 +629,23 @@ public class Accessioner {
 			throw new IllegalArgumentException("Invalid accession "+accession);
 		}		
 		
-        try {        
-	        List<String> results = jdbcTemplate.query(sql, new SingleStringRowMapper(), accessionId);        
-	        if (results.size() > 1) {
-	        	throw new RuntimeException("more that one matching accession found!");
-	        } else if (results.size() == 1) {
-	        	return Optional.of(results.get(0));
-	        } else {
-	        	//nothing previously assigned to that accession
-	        	return Optional.empty();
-	        }
-        } catch (RecoverableDataAccessException e) {
-        	//if it was a recoverable error, try again
-        	return getUserNameForAccession(accession);
-		}
+        final String query = sql;
+        final Integer id = accessionId;
+        List<String> results = retry.call("finding user of "+accession, 
+                new Retry.DatabaseAttempt<List<String>, DataAccessException>() {
+                    public List<String> attempt() throws DataAccessException {
+                        return jdbcTemplate.query(query, new SingleStringRowMapper(), id);
+                    }
+                });
+        if (results.size() > 1) {
+        	throw new RuntimeException("more that one matching accession found!");
+        } else if (results.size() == 1) {
+        	cachedUsers.put(accession, results.get(0));
+        	return Optional.of(results.get(0));
+        } else {
+        	//nothing previously assigned to that accession
+        	return Optional.empty();
+        }
 	}
 	
 	
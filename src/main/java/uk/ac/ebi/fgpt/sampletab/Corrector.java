@@ -3,6 +3,14 @@ package uk.ac.ebi.fgpt.sampletab;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
 
 import org.dom4j.DocumentException;
 import org.slf4j.Logger;
@@ -13,6 +21,7 @@ import uk.ac.ebi.arrayexpress2.sampletab.datamodel.msi.Publication;
 import uk.ac.ebi.arrayexpress2.sampletab.datamodel.msi.TermSource;
 import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.SampleNode;
 import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.attribute.AbstractNodeAttribute;
+import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.attribute.AbstractNodeAttributeOntology;
 import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.attribute.AbstractRelationshipAttribute;
 import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.attribute.CharacteristicAttribute;
 import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.attribute.CommentAttribute;
@@ -23,8 +32,15 @@ import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.attribute.UnitAttrib
 import uk.ac.ebi.fgpt.sampletab.guixml.GUIXMLOutputer;
 import uk.ac.ebi.fgpt.sampletab.utils.EuroPMCUtils;
 import uk.ac.ebi.fgpt.sampletab.utils.SampleTabUtils;
+import uk.ac.ebi.fgpt.sampletab.utils.StringPool;
 import uk.ac.ebi.fgpt.sampletab.utils.TaxonException;
 import uk.ac.ebi.fgpt.sampletab.utils.TaxonUtils;
+import uk.ac.ebi.fgpt.sampletab.utils.TermSourceAccumulator;
+import uk.ac.ebi.fgpt.sampletab.utils.TermSourceAccumulator.SampleTermSources;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 
 public class Corrector {
     // logging
@@ -32,6 +48,41 @@ public class Corrector {
     
     private TermSource efo = new TermSource("EFO", "http://www.ebi.ac.uk/efo/", null);
     private TermSource ncbiTaxonomy = new TermSource("NCBI Taxonomy", "http://www.ncbi.nlm.nih.gov/taxonomy/", null);
+    
+    //names of tables in the rules
+    private static final String NULL_VALUE = "null value";
+    private static final String UNIT_NULL = "unit.null";
+    private static final String UNIT = "unit";
+    private static final String ORGANISM_TYPO = "organism.typo";
+    private static final String COMMENT_TYPE = "comment.type";
+    private static final String SAMPLE_DESCRIPTION = "sample description";
+    private static final String CHARACTERISTIC_TYPE = "characteristic.type";
+    private static final String VALUE_PREFIX = "value:";
+    
+    private final CorrectorRules rules;
+    
+    //submissions with fewer samples than this are always corrected on the calling thread
+    private static final int FORK_JOIN_MIN_SAMPLES = 256;
+    //samples corrected by a worker without splitting further
+    private static final int FORK_JOIN_BATCH = 32;
+    
+    private ForkJoinPool forkJoinPool = null;
+    
+    public Corrector() {
+        this(CorrectorRules.getInstance());
+    }
+    
+    public Corrector(CorrectorRules rules) {
+        this.rules = rules;
+    }
+    
+    /**
+     * Corrects the samples of large submissions in parallel in this pool. The result is the 
+     * same as when they are corrected one after another, which is done if this is null.
+     */
+    public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+        this.forkJoinPool = forkJoinPool;
+    }
 
     public String getInitialCapitals(String in) {
         StringBuilder sb = new StringBuilder();
@@ -55,226 +106,271 @@ public class Corrector {
         return sb.toString();
     }
     
+    //markup that is replaced by a space, along with any whitespace around it
+    //<br> <b>
+    private static final Pattern BR_TAG = Pattern.compile("\\s*\\</?[bB][rR]? ?/?\\>\\s*");
+    //<p>
+    private static final Pattern P_TAG = Pattern.compile("\\s*\\</?[pP] ?/?\\>\\s*");
+    //<i>
+    private static final Pattern I_TAG = Pattern.compile("\\s*\\</?[iI] ?/?\\>\\s*");
+    
+    private static final Pattern TAXON_ID = Pattern.compile("[0-9]+");
+    private static final Pattern COORDINATE = Pattern.compile("^[0-9.-]+$");
+    
+    //mis-decoded UTF-8 of u-umlaut
+    private static final String BAD_UUML = "ÃƒÂ¼";
+    
+    //results of cleanValue
+    private static final LoadingCache<String, String> cleanedValues = CacheBuilder.newBuilder()
+        .maximumSize(100000)
+        .build(new CacheLoader<String, String>() {
+            public String load(String in) {
+                return StringPool.intern(cleanString(in));
+            }
+        });
+    
+    //reused by each thread, so cleaning a string only allocates the result
+    private static final ThreadLocal<StringBuilder> cleanBuffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+    
+    /**
+     * Removes characters that cause problems in SampleTab or XML, trims and collapses 
+     * whitespace, and removes simple HTML markup.
+     * 
+     * This is called for almost every value, so it is done in a single pass over the 
+     * string, and the string itself is returned if it does not need changing.
+     */
     public static String cleanString(String in) {
         if (in == null){
             return in;
         }
-        String out = in;
-        
-        //purge all strange characters not-quite-whitespace
-        //note, you can find these unicode codes by pasting u"the character" into python
-        out = out.replace("\"", "");
-        out = out.replace("\n", "");
-        out = out.replace("\t", "");
-        out = out.replace("\u2009", " "); //thin space
-        out = out.replace("\u00A0", " "); //non-breaking space
-        out = out.replace("\uff09", ") "); //full-width right parenthesis
-        out = out.replace("\uff08", " ("); //full-width left parenthesis
-        
-        //trim extra whitespace at start and end
-        out = out.trim();
-        //XML automatically replaces consecutive spaces with single spaces
-        while (out.contains("  ")) {
-            out = out.replace("  ", " ");
+        StringBuilder sb = cleanBuffer.get();
+        if (sb.capacity() > 65536) {
+            //don't hold on to the space for an unusually long value
+            sb = new StringBuilder(256);
+            cleanBuffer.set(sb);
         }
+        sb.setLength(0);
         
-        //<br>
-        //<b>
-        out = out.replaceAll("\\s*\\</?[bB][rR]? ?/?\\>\\s*"," ");
-        //<p>
-        out = out.replaceAll("\\s*\\</?[pP] ?/?\\>\\s*"," ");
-        //<i>
-        out = out.replaceAll("\\s*\\</?[iI] ?/?\\>\\s*"," ");
-        
-        //some UTF-8 hacks
-        out = out.replace("ÃƒÂ¼", "ü");
-                
-        //also strip UTF-8 control characters that invalidate XML
-        out = GUIXMLOutputer.stripNonValidXMLCharacters(out);
-        
-        //strip out hashes, because Limpopo sees these as comments
-        out = out.replace("#", "");
-        
+        String out;
+        if (in.indexOf('<') < 0) {
+            clean(in, true, true, sb);
+            if (in.contentEquals(sb)) {
+                return in;
+            }
+            out = sb.toString();
+        } else {
+            //markup is removed after whitespace is collapsed and before characters are 
+            //removed, and its whitespace handling is awkward to do character by character,
+            //so use regexes for it, but only on the rare values that might have it
+            clean(in, true, false, sb);
+            out = sb.toString();
+            out = BR_TAG.matcher(out).replaceAll(" ");
+            out = P_TAG.matcher(out).replaceAll(" ");
+            out = I_TAG.matcher(out).replaceAll(" ");
+            sb.setLength(0);
+            clean(out, false, true, sb);
+            if (out.contentEquals(sb)) {
+                return out;
+            }
+            out = sb.toString();
+        }
         return out;
     }
     
+    /**
+     * Appends a cleaned copy of the input to the buffer.
+     * 
+     * @param whitespace if true, replace odd characters with spaces, trim, and collapse spaces
+     * @param characters if true, fix bad UTF-8, and remove characters invalid in XML and hashes
+     */
+    private static void clean(CharSequence in, boolean whitespace, boolean characters, StringBuilder sb) {
+        //whether anything but whitespace has been seen yet
+        boolean started = !whitespace;
+        //whether the last character kept was a space
+        boolean space = false;
+        //length of the buffer without any trailing whitespace
+        int end = 0;
+        //how much of BAD_UUML has just been seen
+        int uuml = 0;
+        
+        for (int i = 0; i < in.length(); i++) {
+            char c = in.charAt(i);
+            char after = 0;
+            if (whitespace) {
+                //purge all strange characters not-quite-whitespace
+                //note, you can find these unicode codes by pasting u"the character" into python
+                switch (c) {
+                    case '"':
+                    case '\n':
+                    case '\t':
+                        continue;
+                    case '\u2009': //thin space
+                    case '\u00A0': //non-breaking space
+                        c = ' ';
+                        break;
+                    case '\uff09': //full-width right parenthesis
+                        c = ')';
+                        after = ' ';
+                        break;
+                    case '\uff08': //full-width left parenthesis
+                        c = ' ';
+                        after = '(';
+                        break;
+                    default:
+                        break;
+                }
+            }
+            
+            //at most two characters, from a full-width parenthesis
+            for (int j = 0; j < 2; j++) {
+                if (j == 1) {
+                    if (after == 0) {
+                        break;
+                    }
+                    c = after;
+                }
+                
+                if (whitespace) {
+                    //trim extra whitespace at start
+                    if (!started) {
+                        if (c <= ' ') {
+                            continue;
+                        }
+                        started = true;
+                    }
+                    //XML automatically replaces consecutive spaces with single spaces
+                    if (c == ' ' && space) {
+                        continue;
+                    }
+                    space = (c == ' ');
+                }
+                
+                if (characters) {
+                    //some UTF-8 hacks
+                    if (c == BAD_UUML.charAt(uuml)) {
+                        uuml++;
+                        if (uuml == BAD_UUML.length()) {
+                            //the rest of it was the last thing added
+                            sb.setLength(sb.length() - (BAD_UUML.length()-1));
+                            sb.append('ü');
+                            uuml = 0;
+                            end = sb.length();
+                            continue;
+                        }
+                    } else if (c == BAD_UUML.charAt(0)) {
+                        uuml = 1;
+                    } else {
+                        uuml = 0;
+                    }
+                    
+                    //also strip UTF-8 control characters that invalidate XML
+                    //and strip out hashes, because Limpopo sees these as comments
+                    if (isValidXMLCharacter(c) && c != '#') {
+                        sb.append(c);
+                    }
+                } else {
+                    sb.append(c);
+                }
+                
+                //trim extra whitespace at end, including before anything removed above
+                if (c > ' ') {
+                    end = sb.length();
+                }
+            }
+        }
+        if (whitespace) {
+            sb.setLength(end);
+        }
+    }
+    
+    /**
+     * Same test as {@link GUIXMLOutputer#stripNonValidXMLCharacters(String)}, which 
+     * removes surrogates because it looks at a char at a time.
+     */
+    private static boolean isValidXMLCharacter(char c) {
+        return c == 0x9 || c == 0xA || c == 0xD 
+            || (c >= 0x20 && c <= 0xD7FF) 
+            || (c >= 0xE000 && c <= 0xFFFD);
+    }
+    
+    /**
+     * As {@link #cleanString(String)}, but remembers the results for short strings and 
+     * shares one instance of each result. Use this for attribute types and values, which 
+     * are mostly the same few thousand strings, rather than names and descriptions.
+     */
+    public static String cleanValue(String in) {
+        if (in == null || in.length() > StringPool.MAX_LENGTH) {
+            return cleanString(in);
+        }
+        return cleanedValues.getUnchecked(in);
+    }
+    
     
     private UnitAttribute correctUnit(UnitAttribute unit) {
-        String lcval = unit.getAttributeValue().toLowerCase();
-        if (lcval.equals("alphanumeric")
-                || lcval.equals("na")
-                || lcval.equals("n/a")
-                || lcval.equals("n.a")
-                || lcval.equals("censored/uncensored")
-                || lcval.equals("m/f")
-                || lcval.equals("test/control")
-                || lcval.equals("yes/no")
-                || lcval.equals("y/n")
-                || lcval.equals("not specified")
-                || lcval.equals("not collected")
-                || lcval.equals("not known")
-                || lcval.equals("not reported")
-                || lcval.equals("missing"))
-        	//NOTE -this is for units ONLY. see ~line 700 for general case
-        	{
+        if (rules.contains(UNIT_NULL, unit.getAttributeValue())) {
+        	//NOTE -this is for units ONLY. see correct() for general case
             return null;
-        } else if (lcval.equals("meter")
-                || lcval.equals("meters")) {
-            unit.setAttributeValue("meter");
-        } else if (lcval.equals("cellsperliter")
-                || lcval.equals("cells per liter")
-                || lcval.equals("cellperliter")
-                || lcval.equals("cell per liter")
-                || lcval.equals("cellsperlitre")
-                || lcval.equals("cells per litre")
-                || lcval.equals("cellperlitre")
-                || lcval.equals("cell per litre")) {
-            unit.setAttributeValue("cell per liter");
-        } else if (lcval.equals("cellspermilliliter")
-                || lcval.equals("cells per milliliter")
-                || lcval.equals("cellpermilliliter")
-                || lcval.equals("cell per milliliter")
-                ||lcval.equals("cellspermillilitre")
-                || lcval.equals("cells per millilitre")
-                || lcval.equals("cellpermillilitre")
-                || lcval.equals("cell per millilitre")) {
-            unit.setAttributeValue("cell per millilitre");
-        } else if (lcval.equals("micromolesperliter")
-                || lcval.equals("micromoleperliter")
-                || lcval.equals("micromole per liter")
-                || lcval.equals("micromoles per liter")
-                || lcval.equals("micromolesperlitre")
-                || lcval.equals("micromoleperlitre")
-                || lcval.equals("micromole per litre")
-                || lcval.equals("micromoles per litre")) {
-            unit.setAttributeValue("micromole per liter");
-        } else if (lcval.equals("microgramsperliter")
-                || lcval.equals("microgramperliter")
-                || lcval.equals("microgram per liter")
-                || lcval.equals("micrograms per liter")
-                || lcval.equals("microgramsperlitre")
-                || lcval.equals("microgramperlitre")
-                || lcval.equals("microgram per litre")
-                || lcval.equals("micrograms per litre")) {
-            unit.setAttributeValue("microgram per liter");
-        } else if (lcval.equals("micromolesperkilogram")
-                || lcval.equals("micromoles per kilogram")
-                || lcval.equals("micromoleperkilogram")
-                || lcval.equals("micromole per kilogram")) {
-            unit.setAttributeValue("micromole per kilogram");
-        } else if (lcval.equals("psu")
-                || lcval.equals("practicalsalinityunit")
-                || lcval.equals("practical salinity unit")
-                || lcval.equals("practical salinity units")
-                || lcval.equals("pss-78")
-                || lcval.equals("practicalsalinityscale1978 ")) {
-            //technically, this is not a unit since its dimensionless..
-            unit.setAttributeValue("practical salinity unit");
-        } else if (lcval.equals("micromoles")
-                || lcval.equals("micromole")) {
-            unit.setAttributeValue("micromole");
-        } else if (lcval.equals("decimalhours")
-                || lcval.equals("decimalhour")
-                || lcval.equals("hours")
-                || lcval.equals("hour")) {
-            unit.setAttributeValue("hour");
-        } else if (lcval.equals("day")
-                || lcval.equals("days")) {
-            unit.setAttributeValue("day");
-        } else if (lcval.equals("week")
-                || lcval.equals("weeks")) {
-            unit.setAttributeValue("week");
-        } else if (lcval.equals("month")
-                || lcval.equals("months")) {
-            unit.setAttributeValue("month");
-        } else if (lcval.equals("year")
-                || lcval.equals("years")) {
-            unit.setAttributeValue("year");
-        } else if (lcval.equals("percentage")) {
-            unit.setAttributeValue("percent");
-        } else if (lcval.equals("decimal degrees")
-                || lcval.equals("decimal degree")
-                || lcval.equals("decimaldegrees")
-                || lcval.equals("decimaldegree")) {
-            unit.setAttributeValue("decimal degree");
-        } else if (lcval.equals("celcius")
-                || lcval.equals("degree celcius")
-                || lcval.equals("degrees celcius")
-                || lcval.equals("degreecelcius")
-                || lcval.equals("centigrade")
-                || lcval.equals("degree centigrade")
-                || lcval.equals("degrees centigrade")
-                || lcval.equals("degreecentigrade")
-                || lcval.equals("c")
-                || lcval.equals("??c")
-                || lcval.equals("degree c")
-                || lcval.equals("internationaltemperaturescale1990")
-                || lcval.equals("iternationaltemperaturescale1990")) {
-            unit.setAttributeValue("Celcius");
-        } 
+        }
+        CorrectorRules.Rule rule = rules.get(UNIT, unit.getAttributeValue());
+        if (rule != null) {
+            unit.setAttributeValue(rule.canonical);
+        }
         
-        unit.setAttributeValue(cleanString(unit.getAttributeValue()));
+        unit.setAttributeValue(cleanValue(unit.getAttributeValue()));
         
         return unit;
     }
     
-    private SCDNodeAttribute correctSex(SexAttribute attr, SampleData sampledata){
-        if (attr.getAttributeValue().toLowerCase().equals("male")
-                || attr.getAttributeValue().toLowerCase().equals("m")
-                || attr.getAttributeValue().toLowerCase().equals("man")) {
-            attr.setAttributeValue("male");
-            if (attr.getTermSourceID() == null && attr.getTermSourceREF()==null) {
-	            attr.setTermSourceID("http://purl.obolibrary.org/obo/PATO_0000384");
-	            attr.setTermSourceREF(sampledata.msi.getOrAddTermSource(efo));
-            }
-        } else if (attr.getAttributeValue().toLowerCase().equals("female")
-                || attr.getAttributeValue().toLowerCase().equals("f")
-                || attr.getAttributeValue().toLowerCase().equals("woman")) {
-            attr.setAttributeValue("female");
-            if (attr.getTermSourceID() == null && attr.getTermSourceREF()==null) {
-	            attr.setTermSourceID("http://purl.obolibrary.org/obo/PATO_0000383");
-	            attr.setTermSourceREF(sampledata.msi.getOrAddTermSource(efo));
+    /**
+     * Replaces the value with its canonical form for this type of attribute, if there is 
+     * one, and adds its EFO term if it doesn't already have a term.
+     */
+    private void correctValue(String type, AbstractNodeAttributeOntology attr, SampleTermSources termSources) {
+        CorrectorRules.Rule rule = rules.get(VALUE_PREFIX+type, attr.getAttributeValue());
+        if (rule != null) {
+            attr.setAttributeValue(rule.canonical);
+            if (rule.termSourceID != null && attr.getTermSourceID() == null && attr.getTermSourceREF()==null) {
+                attr.setTermSourceREF(termSources.getOrAddTermSource(efo));
+                attr.setTermSourceID(rule.termSourceID);
             }
         }
+    }
+    
+    private SCDNodeAttribute correctSex(SexAttribute attr, SampleTermSources termSources){
+        correctValue("sex", attr, termSources);
         
-        
-        attr.setAttributeValue(cleanString(attr.getAttributeValue()));
+        attr.setAttributeValue(cleanValue(attr.getAttributeValue()));
         
         return attr;
     }
     
-    private SCDNodeAttribute correctOrganism(OrganismAttribute attr, SampleData sampledata) {
-        if (attr.getAttributeValue().startsWith("Organism:")) {
-            attr.setAttributeValue(attr.getAttributeValue().substring(9));
+    private String getOrganismName(String value) {
+        if (value.startsWith("Organism:")) {
+            value = value.substring(9);
         }
         
-        if (attr.getAttributeValue().equals("Clostridium difficle")) {
-            attr.setAttributeValue("Clostridium difficile");
-        } else if (attr.getAttributeValue().equals("Staphylococcus aureu")) {
-            attr.setAttributeValue("Staphylococcus aureus");
-        } else if (attr.getAttributeValue().equals("Homo sapien")) {
-            attr.setAttributeValue("Homo sapiens");
-        } else if (attr.getAttributeValue().equals("Lepeophteirus salmonis")) {
-            attr.setAttributeValue("Lepeophtheirus salmonis");
-        } else if (attr.getAttributeValue().equals("Salmon salar")) {
-            attr.setAttributeValue("Salmo salar");
-        } else if (attr.getAttributeValue().equals("Gadus morrhua")) {
-            attr.setAttributeValue("Gadus morhua");
-        } else if (attr.getAttributeValue().equals("Mus muscules")) {
-            attr.setAttributeValue("Mus musculus");
-        } else if (attr.getAttributeValue().equals("Mus muculus")) {
-            attr.setAttributeValue("Mus musculus");
-        } else if (attr.getAttributeValue().equals("Candida albicancs")) {
-            attr.setAttributeValue("Candida albicans");
+        CorrectorRules.Rule typo = rules.get(ORGANISM_TYPO, value);
+        if (typo != null) {
+            value = typo.canonical;
         }
+        return value;
+    }
+    
+    private SCDNodeAttribute correctOrganism(OrganismAttribute attr, SampleTermSources termSources) {
+        attr.setAttributeValue(getOrganismName(attr.getAttributeValue()));
         
         if (attr.getTermSourceREF() == null){
-            if (attr.getAttributeValue().matches("[0-9]+")){
+            if (TAXON_ID.matcher(attr.getAttributeValue()).matches()){
                 Integer taxid = new Integer(attr.getAttributeValue());
                 try {
                     String taxonName = TaxonUtils.getSpeciesOfID(taxid);
                     attr.setAttributeValue(taxonName);
-                    String ncbiTaxonomyName = sampledata.msi.getOrAddTermSource(ncbiTaxonomy);
+                    String ncbiTaxonomyName = termSources.getOrAddTermSource(ncbiTaxonomy);
                     attr.setTermSourceREF(ncbiTaxonomyName);
                     attr.setTermSourceIDInteger(taxid);
                 } catch (TaxonException e) {
@@ -293,321 +389,75 @@ public class Corrector {
                 }
                 if (taxid != null){
                     attr.setTermSourceIDInteger(taxid);
-                    String ncbiTaxonomyName = sampledata.msi.getOrAddTermSource(ncbiTaxonomy);
+                    String ncbiTaxonomyName = termSources.getOrAddTermSource(ncbiTaxonomy);
                     attr.setTermSourceREF(ncbiTaxonomyName);
                 }
             }
         } else if (attr.getTermSourceID().startsWith("http://purl.org/obo/owl/NCBITaxon#NCBITaxon_")) {
             Integer taxid = new Integer(attr.getTermSourceID().substring("http://purl.org/obo/owl/NCBITaxon#NCBITaxon_".length(), attr.getTermSourceID().length()));
             attr.setTermSourceIDInteger(taxid);
-            String ncbiTaxonomyName = sampledata.msi.getOrAddTermSource(ncbiTaxonomy);
+            String ncbiTaxonomyName = termSources.getOrAddTermSource(ncbiTaxonomy);
             attr.setTermSourceREF(ncbiTaxonomyName);
         }
         
-        attr.setAttributeValue(cleanString(attr.getAttributeValue()));
+        attr.setAttributeValue(cleanValue(attr.getAttributeValue()));
         
         return attr;
     }
     
-    private SCDNodeAttribute correctCharacteristic(CharacteristicAttribute attr, SampleData sampledata) {        
+    private String getCharacteristicType(String type) {
         //bulk replace underscore with space in types
-        attr.type = attr.type.replace("_", " ");
+        type = type.replace('_', ' ');
         
         //bulk remove ae prefix
-        attr.type = attr.type.replace("ArrayExpress-", "");
-
-        //remove technical attributes
-        if (attr.type.toLowerCase().equals("channel")) {
-            return null;
-        }
-                            
-        // make organism a separate attribute
-        if (attr.type.toLowerCase().equals("organism") 
-                || attr.type.toLowerCase().equals("organi") //from ArrayExpress
-                || attr.type.toLowerCase().equals("arrayexpress-species") //from ENA SRA
-                || attr.type.toLowerCase().equals("cell organism") //from ENA SRA
-                || attr.type.toLowerCase().equals("taxon_id")
-                ) {
-            return correctOrganism(new OrganismAttribute(attr.getAttributeValue()), sampledata);
-        }
-        
-        // make sex a separate attribute
-        if (attr.type.toLowerCase().equals("sex") 
-                || attr.type.toLowerCase().equals("gender")
-                || attr.type.toLowerCase().equals("arrayexpress-sex") //from ENA SRA
-                || attr.type.toLowerCase().equals("cell sex") //from ENA SRA
-                || attr.type.toLowerCase().equals("donor_sex") //from ENA SRA
-                || attr.type.toLowerCase().equals("sample gender") //from ENA SRA
-                || attr.type.toLowerCase().equals("sex stage") //from ENA SRA
-                || attr.type.toLowerCase().equals("sexs") //from ENA SRA
-                ) {
-            //this will handle the real corrections
-            return correctSex(new SexAttribute(attr.getAttributeValue()), sampledata);
-        }
-        
-        //change samplename into synonyms
-        if (attr.type.toLowerCase().equals("sample name") 
-                || attr.type.toLowerCase().equals("sample_name")
-                ) {
-            return new CommentAttribute("synonym", attr.getAttributeValue());
-        }
-        //change sample description into secondary description
-        if (attr.type.toLowerCase().equals("sample description") 
-                || attr.type.toLowerCase().equals("sample_description")
-                ) {
-            return new CommentAttribute("secondary description", attr.getAttributeValue());
+        if (type.contains("ArrayExpress-")) {
+            type = type.replace("ArrayExpress-", "");
         }
-        
-        //TODO make material a separate attribute
-        
-        // fix typos
-        if (attr.type.toLowerCase().equals("age")) {
-            attr.type = "age";
-            //TODO some simple regex expansions, e.g. 5W to 5 weeks
-        } else if (attr.type.toLowerCase().equals("age in years")
-                || attr.type.toLowerCase().equals("age_in_years")) {
-            attr.type = "age";
-            attr.unit = new UnitAttribute();
-            attr.unit.type = null;
-            attr.unit.setAttributeValue("year");
-        } else if (attr.type.toLowerCase().equals("developmental stage")
-                || attr.type.toLowerCase().equals("developmentalstage")
-                || attr.type.toLowerCase().equals("dev-stage")
-                || attr.type.toLowerCase().equals("dev_stage")
-                || attr.type.toLowerCase().equals("develomental stage") //typo
-                || attr.type.toLowerCase().equals("developmental point")
-                || attr.type.toLowerCase().equals("developmental satge") //typo
-                || attr.type.toLowerCase().equals("developmental stages")
-                || attr.type.toLowerCase().equals("developmental_stage")
-                || attr.type.toLowerCase().equals("developmetal stage") //typo
-                || attr.type.toLowerCase().equals("develpmental stage") //typo
-                || attr.type.toLowerCase().equals("tissue/dev_stage")
-                || attr.type.toLowerCase().equals("dissue/developmental stage")) {
-            attr.type = "developmental stage";
-        } else if (attr.type.toLowerCase().equals("disease state")
-                || attr.type.toLowerCase().equals("disease status")
-                || attr.type.toLowerCase().equals("disease")
-                || attr.type.toLowerCase().equals("diseasestate")) {
-            attr.type = "disease state";
-        } else if (attr.type.toLowerCase().equals("ecotype")
-                || attr.type.toLowerCase().equals("strain/ecotype")) {
-            attr.type = "ecotype";
-            if (attr.getAttributeValue().toLowerCase().equals("col-0")
-                    || attr.getAttributeValue().toLowerCase().equals("columbia-0")
-                    || attr.getAttributeValue().toLowerCase().equals("columbia (col0) ")) {
-                    attr.setAttributeValue("Columbia-0");
-            } else if (attr.getAttributeValue().toLowerCase().equals("columbia")
-                    || attr.getAttributeValue().toLowerCase().equals("col")) {
-                attr.setAttributeValue("Columbia");
-            }
-        } else if (attr.type.toLowerCase().equals("ethnicity")) {
-            attr.type = "ethnicity";
-            //ethnicity, population, race are a mess, leave alone
-        } else if (attr.type.toLowerCase().equals("genotype")
-                || attr.type.toLowerCase().equals("individualgeneticcharacteristics")
-                || attr.type.toLowerCase().equals("genotype/variation") ) {
-            attr.type = "genotype";
-            if (attr.getAttributeValue().toLowerCase().equals("wildtype")
-                    || attr.getAttributeValue().toLowerCase().equals("wild type")
-                    || attr.getAttributeValue().toLowerCase().equals("wild-type")
-                    || attr.getAttributeValue().toLowerCase().equals("wild_type")
-                    || attr.getAttributeValue().toLowerCase().equals("wt")) {
-                attr.setAttributeValue("wild type");
-            }
-        } else if (attr.type.toLowerCase().equals("histology")) {
-            attr.type = "histology";
-        } else if (attr.type.toLowerCase().equals("individual")) {
-            //TODO investigate
-            attr.type = "individual";
-        } else if (attr.type.toLowerCase().equals("organism part") 
-                || attr.type.toLowerCase().equals("organismpart")
-                || attr.type.toLowerCase().equals("tissue")
-                || attr.type.toLowerCase().equals("tissue type")
-                || attr.type.toLowerCase().equals("source tissue")
-                || attr.type.toLowerCase().equals("tissue -type")
-                || attr.type.toLowerCase().equals("tissue-type")
-                || attr.type.toLowerCase().equals("tissue_type")
-                || attr.type.toLowerCase().equals("tissue origin")) {
-            attr.type = "organism part";
-            if (attr.getAttributeValue().toLowerCase().equals("blood")) {
-                attr.setAttributeValue("blood");
-                if (attr.getTermSourceID() == null && attr.getTermSourceREF()==null) {
-	                attr.setTermSourceREF(sampledata.msi.getOrAddTermSource(efo));
-	                attr.setTermSourceID("http://www.ebi.ac.uk/efo/EFO_0000296");
-                }
-            } else if (attr.getAttributeValue().toLowerCase().equals("skin")) {
-                attr.setAttributeValue("skin");
-                if (attr.getTermSourceID() == null && attr.getTermSourceREF()==null) {
-	                attr.setTermSourceREF(sampledata.msi.getOrAddTermSource(efo));
-	                attr.setTermSourceID("http://www.ebi.ac.uk/efo/EFO_0000962");
-                }
-            } else if (attr.getAttributeValue().toLowerCase().equals("bone marrow")){
-                attr.setAttributeValue("bone marrow");
-                if (attr.getTermSourceID() == null && attr.getTermSourceREF()==null) {
-	                attr.setTermSourceREF(sampledata.msi.getOrAddTermSource(efo));
-	                attr.setTermSourceID("http://www.ebi.ac.uk/efo/EFO_0000868");
-                }
-            } else if (attr.getAttributeValue().toLowerCase().equals("liver")) {
-                attr.setAttributeValue(attr.getAttributeValue().toLowerCase());
-                if (attr.getTermSourceID() == null && attr.getTermSourceREF()==null) {
-	                attr.setTermSourceREF(sampledata.msi.getOrAddTermSource(efo));
-	                attr.setTermSourceID("http://www.ebi.ac.uk/efo/EFO_0000887");
-                }
-            } else if (attr.getAttributeValue().toLowerCase().equals("breast")
-                    || attr.getAttributeValue().toLowerCase().equals("mammary gland")) {
-                attr.setAttributeValue("mammary gland");
-                if (attr.getTermSourceID() == null && attr.getTermSourceREF()==null) {
-	                attr.setTermSourceREF(sampledata.msi.getOrAddTermSource(efo));
-	                attr.setTermSourceID("http://www.ebi.ac.uk/efo/EFO_0000854");
-                }
-            } 
-        } else if (attr.type.toLowerCase().equals("phenotype")) {
-            attr.type = "phenotype";
-        } else if (attr.type.toLowerCase().equals("stage")) {
-            attr.type = "stage";
-        } else if (attr.type.toLowerCase().equals("cultivar")
-                || attr.type.toLowerCase().equals("cultivar_acc")
-                || attr.type.toLowerCase().equals("cultivar/accession")) {
-            attr.type = "cultivar";
-        } else if (attr.type.toLowerCase().equals("strain")
-                || attr.type.toLowerCase().equals("strainorline")
-                || attr.type.toLowerCase().equals("strain or line")
-                || attr.type.toLowerCase().equals("strain (or line)")
-                || attr.type.toLowerCase().equals("strain name")
-                || attr.type.toLowerCase().equals("strain background")
-                || attr.type.toLowerCase().equals("strain/background")
-                || attr.type.toLowerCase().equals("strain/genotype")
-                || attr.type.toLowerCase().equals("strain description")
-                || attr.type.toLowerCase().equals("strains")
-                || attr.type.toLowerCase().equals("strain id")
-                || attr.type.toLowerCase().equals("strain source")
-                || attr.type.toLowerCase().equals("strain details")
-                || attr.type.toLowerCase().equals("strain type")
-                || attr.type.toLowerCase().equals("strain fgsc number")
-                || attr.type.toLowerCase().equals("strain(s)")
-                || attr.type.toLowerCase().equals("strain (cy3)")
-                || attr.type.toLowerCase().equals("strain (cy5)")
-                || attr.type.toLowerCase().equals("strain (mouse)")
-                || attr.type.toLowerCase().equals("strain (rat)")
-                || attr.type.toLowerCase().equals("strain/accession")
-                || attr.type.toLowerCase().equals("strain value")
-                || attr.type.toLowerCase().equals("plant strain")
-                || attr.type.toLowerCase().equals("type_strain")
-                ) {
-            //Leave cultivar and ecotype alone
-        	//leave breed alone
-            attr.type = "strain";
-        } else if (attr.type.toLowerCase().equals("cell line")
-                || attr.type.toLowerCase().equals("cell line/clone")
-                || attr.type.toLowerCase().equals("cell line specifics")
-                || attr.type.toLowerCase().equals("cell lines")
-                || attr.type.toLowerCase().equals("cell l ine") //typo
-                || attr.type.toLowerCase().equals("cell loine") //typo
-                || attr.type.toLowerCase().equals("cell lineage")
-                || attr.type.toLowerCase().equals("cell-line")
-                || attr.type.toLowerCase().equals("cell_line")
-                || attr.type.toLowerCase().equals("cellline")
-                //|| attr.type.toLowerCase().equals("cells") //from ENA SRA
-                || attr.type.toLowerCase().equals("tissue/cell lines")
-                || attr.type.toLowerCase().equals("arrayexpress-strainorline")
-                || attr.type.toLowerCase().equals("coriell id")
-                || attr.type.toLowerCase().equals("coriell catalog id")
-                || attr.type.toLowerCase().equals("coriell cell line")
-                || attr.type.toLowerCase().equals("cell line (coriell id)")
-                || attr.type.toLowerCase().equals("coriell cell culture id")
-                || attr.type.toLowerCase().equals("coriell cell line repository identifier")
-                || attr.type.toLowerCase().equals("coriell dna id")
-                || attr.type.toLowerCase().equals("fibroblast cell strain") //TODO add cell type too
-                || attr.type.toLowerCase().equals("hapmap sample id")) {
-            attr.type = "cell line";
-        } else if (attr.type.toLowerCase().equals("time")
-                || attr.type.toLowerCase().equals("time point")) {
-            attr.type = "time point";
-            //TODO fix "Time Unit" being a separate characteristic
-            //TODO fix embedding of units in the string (e.g. 24h) 
-        } else if (attr.type.toLowerCase().equals("cell type")
-                || attr.type.toLowerCase().equals("celltype")
-                || attr.type.toLowerCase().equals("developmental stage/cell type")
-                || attr.type.toLowerCase().equals("disease/cell type")
-                || attr.type.toLowerCase().equals("tissue/cell type")) {
-            attr.type = "cell type";
-            //TODO clarify some of these as tissue or cell type
-            if (attr.getAttributeValue().toLowerCase().equals("liver")) {
-                attr.setAttributeValue(attr.getAttributeValue().toLowerCase());
-                if (attr.getTermSourceID() == null && attr.getTermSourceREF()==null) {
-	                attr.setTermSourceREF(sampledata.msi.getOrAddTermSource(efo));
-	                attr.setTermSourceID("http://www.ebi.ac.uk/efo/EFO_0000887");
-                }
-            } else if (attr.getAttributeValue().toLowerCase().equals("blood")) {
-                attr.setAttributeValue(attr.getAttributeValue().toLowerCase());
-                if (attr.getTermSourceID() == null && attr.getTermSourceREF()==null) {
-	                attr.setTermSourceREF(sampledata.msi.getOrAddTermSource(efo));
-	                attr.setTermSourceID("http://www.ebi.ac.uk/efo/EFO_0000296");
-                }
-            } else if (attr.getAttributeValue().toLowerCase().equals("breast")
-                    || attr.getAttributeValue().toLowerCase().equals("mammary gland")) {
-                attr.setAttributeValue("mammary gland");
-                if (attr.getTermSourceID() == null && attr.getTermSourceREF()==null) {
-	                attr.setTermSourceREF(sampledata.msi.getOrAddTermSource(efo));
-	                attr.setTermSourceID("http://www.ebi.ac.uk/efo/EFO_0000854");
+        return type;
+    }
+    
+    private SCDNodeAttribute correctCharacteristic(CharacteristicAttribute attr, SampleTermSources termSources) {        
+        attr.type = getCharacteristicType(attr.type);
+
+        CorrectorRules.Rule rule = rules.get(CHARACTERISTIC_TYPE, attr.type);
+        if (rule != null) {
+            String type = rule.canonical;
+            if (type.equals("!drop")) {
+                //remove technical attributes
+                return null;
+            } else if (type.equals("!organism")) {
+                // make organism a separate attribute
+                return correctOrganism(new OrganismAttribute(attr.getAttributeValue()), termSources);
+            } else if (type.equals("!sex")) {
+                // make sex a separate attribute
+                //this will handle the real corrections
+                return correctSex(new SexAttribute(attr.getAttributeValue()), termSources);
+            } else if (type.startsWith("!comment ")) {
+                //demote some to comments
+                //including samplename into synonyms, and sample description into secondary description
+                return new CommentAttribute(type.substring("!comment ".length()), attr.getAttributeValue());
+            } else if (type.equals("!age in years")) {
+                attr.type = "age";
+                attr.unit = new UnitAttribute();
+                attr.unit.type = null;
+                attr.unit.setAttributeValue("year");
+            } else if (type.equals("latitude") || type.equals("longitude")) {
+                if (COORDINATE.matcher(attr.getAttributeValue()).matches()) {
+                    attr.type = type;
+                } else {
+                    attr.type = type+" (raw)";
                 }
-            } 
-            
-        } else if (attr.type.toLowerCase().equals("geographic location (country and/or sea, region)")) {
-            attr.type = "geographic location";
-        } else if (attr.type.toLowerCase().equals("latitude")
-                || attr.type.toLowerCase().equals("geographic location (latitude)")
-                || attr.type.toLowerCase().equals("lat")) {
-            if (attr.getAttributeValue().matches("^[0-9.-]+$")) {
-                attr.type = "latitude";
-            } else {
-                attr.type = "latitude (raw)";
-            }
-        } else if (attr.type.toLowerCase().equals("longitude")
-                || attr.type.toLowerCase().equals("geographic location (longitude)")
-                || attr.type.toLowerCase().equals("lng")) {
-            if (attr.getAttributeValue().matches("^[0-9.-]+$")) {
-                attr.type = "longitude";
             } else {
-                attr.type = "longitude (raw)";
+                // fix typos
+                attr.type = type;
+                correctValue(type, attr, termSources);
             }
-        } else if (attr.type.toLowerCase().equals("substrain")
-                || attr.type.toLowerCase().equals("sub-strain")
-                || attr.type.toLowerCase().equals("sub_strain")) {
-            attr.type = "substrain"; 
-        } else if (attr.type.toLowerCase().equals("sub_species")
-                || attr.type.toLowerCase().equals("subsp")
-                || attr.type.toLowerCase().equals("subsp.")
-                || attr.type.toLowerCase().equals("subspecies")) {
-            attr.type = "subspecies"; 
-        } else if (attr.type.toLowerCase().equals("mating type")
-                || attr.type.toLowerCase().equals("mating-type")
-                || attr.type.toLowerCase().equals("mating_type")) {
-            attr.type = "mating type"; 
-        //demote some to comments
-        } else if (attr.type.toLowerCase().equals("collected by")
-                || attr.type.toLowerCase().equals("collected-by")
-                || attr.type.toLowerCase().equals("collected_by")) {
-            return new CommentAttribute("collected by", attr.getAttributeValue());
-        } else if (attr.type.toLowerCase().equals("collection_date")
-                || attr.type.toLowerCase().equals("collection date")
-                || attr.type.toLowerCase().equals("collection date (yyyymmdd)")
-                || attr.type.toLowerCase().equals("collection year")
-                || attr.type.toLowerCase().equals("collection-date")
-                || attr.type.toLowerCase().equals("collection_year")
-                || attr.type.toLowerCase().equals("date of collection")
-                || attr.type.toLowerCase().equals("date sample colllected")
-                || attr.type.toLowerCase().equals("isolation_year")
-                || attr.type.toLowerCase().equals("sample collection date")
-                || attr.type.toLowerCase().equals("sample date")
-                || attr.type.toLowerCase().equals("sampling date")
-                || attr.type.toLowerCase().equals("sampling-date")
-                || attr.type.toLowerCase().equals("time of sample collection")
-                || attr.type.toLowerCase().equals("year isolated")) {
-            return new CommentAttribute("colection date", attr.getAttributeValue());
-        } 
-        
+        }
         
+        //TODO make material a separate attribute
+        //TODO some simple regex expansions of age, e.g. 5W to 5 weeks
+        //TODO fix "Time Unit" being a separate characteristic
+        //TODO fix embedding of units in time points (e.g. 24h) 
         //TODO demote some characteristics to comments
         
 
@@ -615,37 +465,26 @@ public class Corrector {
             attr.unit = correctUnit(attr.unit);
         }
         
-        attr.type = cleanString(attr.type);
-        attr.setAttributeValue(cleanString(attr.getAttributeValue()));
+        attr.type = cleanValue(attr.type);
+        attr.setAttributeValue(cleanValue(attr.getAttributeValue()));
         
         return attr;
     }
 
     
-    private SCDNodeAttribute correctComment(CommentAttribute attr, SampleNode s, SampleData sampledata) {        
+    private SCDNodeAttribute correctComment(CommentAttribute attr, SampleNode s) {        
         //bulk replace underscore with space in types
-        attr.type = attr.type.replace("_", " ");
+        attr.type = attr.type.replace('_', ' ');
 
         //change samplename into synonyms
-        if (attr.type.toLowerCase().equals("sample name") 
-                || attr.type.toLowerCase().equals("sample_name")
-                || attr.type.toLowerCase().equals("synonym")
-                ) {
-            attr.type = "synonym";
-        }
         //change sample description into secondary description
-        if (attr.type.toLowerCase().equals("sample description") 
-                || attr.type.toLowerCase().equals("sample_description")
-                || attr.type.toLowerCase().equals("secondary description")
-                ) {
-            attr.type = "secondary description";
+        CorrectorRules.Rule rule = rules.get(COMMENT_TYPE, attr.type);
+        if (rule != null) {
+            attr.type = rule.canonical;
         }
-        if (attr.type.toLowerCase().equals("synonym") 
-                ) {
+        if (attr.type.equals("synonym")) {
             if (s.getNodeName().equals(attr.getAttributeValue())) {
                 return null;
-            } else {
-                attr.type = "synonym";
             }
         }
                 
@@ -656,12 +495,222 @@ public class Corrector {
             attr.unit = correctUnit(attr.unit);
         }
         
-        attr.type = cleanString(attr.type);
-        attr.setAttributeValue(cleanString(attr.getAttributeValue()));
+        attr.type = cleanValue(attr.type);
+        attr.setAttributeValue(cleanValue(attr.getAttributeValue()));
         
         return attr;
     }
     
+    /**
+     * Looks up the taxonomy of the organisms of all the samples together, so that 
+     * correctOrganism finds them already cached rather than looking each up separately.
+     */
+    private void prefetchTaxa(List<SampleNode> samples) {
+        Set<Integer> taxIDs = new HashSet<Integer>();
+        Set<String> names = new HashSet<String>();
+        for (SampleNode s : samples) {
+            for (SCDNodeAttribute a : s.getAttributes()) {
+                String value = null;
+                if (a instanceof OrganismAttribute) {
+                    OrganismAttribute organism = (OrganismAttribute) a;
+                    if (organism.getTermSourceREF() == null) {
+                        value = organism.getAttributeValue();
+                    }
+                } else if (a instanceof CharacteristicAttribute) {
+                    CharacteristicAttribute characteristic = (CharacteristicAttribute) a;
+                    CorrectorRules.Rule rule = rules.get(CHARACTERISTIC_TYPE, getCharacteristicType(characteristic.type));
+                    if (rule != null && rule.canonical.equals("!organism")) {
+                        value = characteristic.getAttributeValue();
+                    }
+                }
+                //not applicables are removed rather than looked up
+                if (value == null || rules.contains(NULL_VALUE, value)) {
+                    continue;
+                }
+                
+                value = getOrganismName(value);
+                if (TAXON_ID.matcher(value).matches()) {
+                    try {
+                        taxIDs.add(new Integer(value));
+                    } catch (NumberFormatException e) {
+                        //do nothing, correctOrganism will report it
+                    }
+                } else {
+                    names.add(value);
+                }
+            }
+        }
+        
+        try {
+            if (taxIDs.size() > 0) {
+                TaxonUtils.getSpeciesOfIDs(taxIDs);
+            }
+            if (names.size() > 0) {
+                TaxonUtils.findTaxa(names);
+            }
+        } catch (TaxonException e) {
+            log.warn("Unable to look up organisms together, will look them up separately", e);
+        }
+    }
+    
+    /**
+     * Relationships may refer to other samples in the same submission by name.
+     * It is better to refer by BioSD accession.
+     */
+    private void correctRelationships(SampleNode s, SampleData sampledata) {
+        for (SCDNodeAttribute a : s.getAttributes()) {
+            if (a instanceof AbstractRelationshipAttribute) {
+                AbstractRelationshipAttribute rela = (AbstractRelationshipAttribute) a;
+                //not applicables are removed by correctSample, and so are left as they are
+                if (rules.contains(NULL_VALUE, rela.getAttributeValue())) {
+                    continue;
+                }
+                String targetName = rela.getAttributeValue();
+                SampleNode target = sampledata.scd.getNode(targetName, SampleNode.class);
+                if (target != null && target.getSampleAccession() != null) {
+                    rela.setAttributeValue(target.getSampleAccession());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Corrects the attributes of one sample. This only changes the sample itself, and adds
+     * term sources through the accumulator, so samples can be corrected at the same time.
+     */
+    private void correctSample(SampleNode s, SampleTermSources termSources) {
+        //convert to array so we can delete and add attributes if needed
+        for (SCDNodeAttribute a : new ArrayList<SCDNodeAttribute>(s.getAttributes())) {
+            boolean isAbstractSCDAttribute = false;
+            synchronized(AbstractNodeAttribute.class){
+                isAbstractSCDAttribute = AbstractNodeAttribute.class.isInstance(a);
+            }
+
+            // tidy things that apply to all attributes
+            if (isAbstractSCDAttribute) {
+                AbstractNodeAttribute cha = (AbstractNodeAttribute) a;
+                // remove not applicables
+                if (rules.contains(NULL_VALUE, cha.getAttributeValue())) {
+                    //leave unknown-sex as is. implies it has been looked at and is non-determinate
+                    s.removeAttribute(cha);
+                    continue;
+                }
+            }
+
+            SCDNodeAttribute updated = a;
+            
+            boolean isCharacteristic = false;
+            synchronized(CharacteristicAttribute.class) {
+                isCharacteristic = CharacteristicAttribute.class.isInstance(a);
+            }
+            boolean isComment = false;
+            synchronized(CommentAttribute.class) {
+                isComment = CommentAttribute.class.isInstance(a);
+            }
+            boolean isSex = false;
+            synchronized(SexAttribute.class) {
+                isSex = SexAttribute.class.isInstance(a);
+            }
+            boolean isOrganism = false;
+            synchronized(OrganismAttribute.class) {
+                isOrganism = OrganismAttribute.class.isInstance(a);
+            }
+            // tidy all characteristics
+            if (isCharacteristic) {
+                updated = correctCharacteristic((CharacteristicAttribute) a, termSources);
+            } else if (isSex) {
+                updated = correctSex((SexAttribute) a, termSources);
+            } else if (isOrganism) {
+                updated = correctOrganism((OrganismAttribute) a, termSources);
+            } else if (isComment) {
+                updated = correctComment((CommentAttribute) a, s);
+            }
+            
+            //TODO promote some comments to characteristics
+            //age
+            //gender
+            //strain
+            //tissue
+
+            //share term source IDs between samples, as cleanValue does for types and values
+            if (updated instanceof AbstractNodeAttributeOntology) {
+                AbstractNodeAttributeOntology ontology = (AbstractNodeAttributeOntology) updated;
+                String id = ontology.getTermSourceID();
+                String shared = StringPool.intern(id);
+                if (shared != id) {
+                    ontology.setTermSourceID(shared);
+                }
+            }
+            
+            //comparison by identity
+            //replace in same position
+            if (updated != a) {
+                int i = s.getAttributes().indexOf(a);
+                s.removeAttribute(a);
+                if (updated != null) {
+                    s.addAttribute(updated, i);
+                }
+            }
+        }
+        //convert some attributes into values on the sample itself i.e. Sample Description
+        for (SCDNodeAttribute a : new ArrayList<SCDNodeAttribute>(s.getAttributes())) {
+            boolean isCommentAttribute = false;
+            synchronized(CommentAttribute.class){
+                isCommentAttribute = CommentAttribute.class.isInstance(a);
+            }
+            boolean isCharacteristicAttribute = false;
+            synchronized(CharacteristicAttribute.class){
+                isCharacteristicAttribute = CharacteristicAttribute.class.isInstance(a);
+            }
+            
+            if (s.getSampleDescription() == null && isCommentAttribute) {
+                CommentAttribute ca = (CommentAttribute) a;
+                if (rules.contains(SAMPLE_DESCRIPTION, ca.type)) {
+                    s.setSampleDescription(ca.getAttributeValue());
+                    s.removeAttribute(a);
+                }
+            } else if (s.getSampleDescription() == null && isCharacteristicAttribute) {
+                CharacteristicAttribute ca = (CharacteristicAttribute) a;
+                if (rules.contains(SAMPLE_DESCRIPTION, ca.type)) {
+                    s.setSampleDescription(ca.getAttributeValue());
+                    s.removeAttribute(a);
+                }
+            }
+        }
+    }
+
+    /**
+     * Corrects a range of samples, splitting it between workers if it is large.
+     */
+    private class SampleAction extends RecursiveAction {
+        private static final long serialVersionUID = -2279421245153425167L;
+
+        private final List<SampleNode> samples;
+        private final int start;
+        private final int end;
+        private final TermSourceAccumulator termSources;
+
+        public SampleAction(List<SampleNode> samples, int start, int end, TermSourceAccumulator termSources) {
+            this.samples = samples;
+            this.start = start;
+            this.end = end;
+            this.termSources = termSources;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= FORK_JOIN_BATCH) {
+                for (int i = start; i < end; i++) {
+                    correctSample(samples.get(i), termSources.forSample(i));
+                }
+            } else {
+                int middle = (start + end) >>> 1;
+                invokeAll(new SampleAction(samples, start, middle, termSources), 
+                    new SampleAction(samples, middle, end, termSources));
+            }
+        }
+    }
+    
     public void correct(SampleData sampledata) {
         if (sampledata.msi.submissionTitle == null || sampledata.msi.submissionTitle.length() == 0 ) {
             sampledata.msi.submissionTitle = SampleTabUtils.generateSubmissionTitle(sampledata);
@@ -691,15 +740,16 @@ public class Corrector {
             
             if (pubmedids.size() > 0) {
                 sampledata.msi.submissionDescription = "Samples from  publications. ";
+                Map<Integer, String> titles = Collections.emptyMap();
+                try {
+                    titles = EuroPMCUtils.getTitlesByPUBMEDids(pubmedids);
+                } catch (DocumentException e) {
+                    log.error("Problem getting PubMedIDs "+pubmedids, e);
+                } catch (IOException e) {
+                    log.error("Problem getting PubMedIDs "+pubmedids, e);
+                }
                 for (Integer i : pubmedids) {
-                    String title = null;
-                    try {
-                        title = EuroPMCUtils.getTitleByPUBMEDid(i);
-                    } catch (DocumentException e) {
-                        log.error("Problem getting PubMedID "+i, e);
-                    } catch (IOException e) {
-                        log.error("Problem getting PubMedID "+i, e);
-                    }
+                    String title = titles.get(i);
                     if (title != null) {
                         sampledata.msi.submissionDescription = sampledata.msi.submissionDescription + title+" ";
                     }
@@ -711,136 +761,27 @@ public class Corrector {
         
         
         
-        for (SampleNode s : sampledata.scd.getNodes(SampleNode.class)) {
-            
+        List<SampleNode> samples = new ArrayList<SampleNode>(sampledata.scd.getNodes(SampleNode.class));
+        
+        //relationships refer to other samples by name, so these are done in order first
+        for (SampleNode s : samples) {
             s.setNodeName(cleanString(s.getNodeName()));
             s.setSampleDescription(cleanString(s.getSampleDescription()));
-            
-            //convert to array so we can delete and add attributes if needed
-            for (SCDNodeAttribute a : new ArrayList<SCDNodeAttribute>(s.getAttributes())) {
-                boolean isAbstractSCDAttribute = false;
-                synchronized(AbstractNodeAttribute.class){
-                    isAbstractSCDAttribute = AbstractNodeAttribute.class.isInstance(a);
-                }
-
-                // tidy things that apply to all attributes
-                if (isAbstractSCDAttribute) {
-                    AbstractNodeAttribute cha = (AbstractNodeAttribute) a;
-                    // remove not applicables
-                    if (cha.getAttributeValue().toLowerCase().equals("n/a")
-                            || cha.getAttributeValue().toLowerCase().equals("na")
-                            || cha.getAttributeValue().toLowerCase().equals("n.a")
-                            || cha.getAttributeValue().toLowerCase().equals("none")
-                            || cha.getAttributeValue().toLowerCase().equals("unknown")
-                            || cha.getAttributeValue().toLowerCase().equals("--")
-                            || cha.getAttributeValue().toLowerCase().equals(".")
-                            || cha.getAttributeValue().toLowerCase().equals("null")
-                            || cha.getAttributeValue().toLowerCase().equals("missing")
-                            || cha.getAttributeValue().toLowerCase().equals("[not reported]")
-                            || cha.getAttributeValue().toLowerCase().equals("[not requested]")
-                            || cha.getAttributeValue().toLowerCase().equals("not applicable")
-                            || cha.getAttributeValue().toLowerCase().equals("not collected")
-                            || cha.getAttributeValue().toLowerCase().equals("not specified")
-                            || cha.getAttributeValue().toLowerCase().equals("not known")
-                            || cha.getAttributeValue().toLowerCase().equals("not reported")) {
-                        //leave unknown-sex as is. implies it has been looked at and is non-determinate
-                        s.removeAttribute(cha);
-                        continue;
-                    }
-                }
-
-                SCDNodeAttribute updated = a;
-                
-                boolean isCharacteristic = false;
-                synchronized(CharacteristicAttribute.class) {
-                    isCharacteristic = CharacteristicAttribute.class.isInstance(a);
-                }
-                boolean isComment = false;
-                synchronized(CommentAttribute.class) {
-                    isComment = CommentAttribute.class.isInstance(a);
-                }
-                boolean isSex = false;
-                synchronized(SexAttribute.class) {
-                    isSex = SexAttribute.class.isInstance(a);
-                }
-                boolean isOrganism = false;
-                synchronized(OrganismAttribute.class) {
-                    isOrganism = OrganismAttribute.class.isInstance(a);
-                }
-                // tidy all characteristics
-                if (isCharacteristic) {
-                    updated = correctCharacteristic((CharacteristicAttribute) a, sampledata);
-                } else if (isSex) {
-                    updated = correctSex((SexAttribute) a, sampledata);
-                } else if (isOrganism) {
-                    updated = correctOrganism((OrganismAttribute) a, sampledata);
-                } else if (isComment) {
-                    updated = correctComment((CommentAttribute) a, s, sampledata);
-                }
-                
-                //TODO promote some comments to characteristics
-                //age
-                //gender
-                //strain
-                //tissue
-
-                boolean isRelationship = false;
-                synchronized(AbstractRelationshipAttribute.class) {
-                    isRelationship = AbstractRelationshipAttribute.class.isInstance(a);
-                }
-                
-                if (isRelationship) {
-                    //Relationships may refer to other samples in the same submission by name
-                    //It is better to refer by BioSD accession.
-                    AbstractRelationshipAttribute rela = (AbstractRelationshipAttribute) a;
-                    String targetName = rela.getAttributeValue();
-                    SampleNode target = sampledata.scd.getNode(targetName, SampleNode.class);
-                    if (target != null && target.getSampleAccession() != null) {
-                        rela.setAttributeValue(target.getSampleAccession());
-                    }
-                }
-
-                
-                //comparison by identity
-                //replace in same position
-                if (updated != a) {
-                    int i = s.getAttributes().indexOf(a);
-                    s.removeAttribute(a);
-                    if (updated != null) {
-                        s.addAttribute(updated, i);
-                    }
-                }
-            }
-            //convert some attributes into values on the sample itself i.e. Sample Description
-            for (SCDNodeAttribute a : new ArrayList<SCDNodeAttribute>(s.getAttributes())) {
-                boolean isCommentAttribute = false;
-                synchronized(CommentAttribute.class){
-                    isCommentAttribute = CommentAttribute.class.isInstance(a);
-                }
-                boolean isCharacteristicAttribute = false;
-                synchronized(CharacteristicAttribute.class){
-                    isCharacteristicAttribute = CharacteristicAttribute.class.isInstance(a);
-                }
-                
-                if (s.getSampleDescription() == null && isCommentAttribute) {
-                    CommentAttribute ca = (CommentAttribute) a;
-                    if (ca.type.toLowerCase().equals("sample description") || 
-                            ca.type.toLowerCase().equals("sample_description") || 
-                            ca.type.toLowerCase().equals("description")) {
-                        s.setSampleDescription(ca.getAttributeValue());
-                        s.removeAttribute(a);
-                    }
-                } else if (s.getSampleDescription() == null && isCharacteristicAttribute) {
-                    CharacteristicAttribute ca = (CharacteristicAttribute) a;
-                    if (ca.type.toLowerCase().equals("sample description") || 
-                            ca.type.toLowerCase().equals("sample_description") || 
-                            ca.type.toLowerCase().equals("description")) {
-                        s.setSampleDescription(ca.getAttributeValue());
-                        s.removeAttribute(a);
-                    }
-                }
+            correctRelationships(s, sampledata);
+        }
+        
+        prefetchTaxa(samples);
+        
+        TermSourceAccumulator termSources = new TermSourceAccumulator(sampledata.msi);
+        if (forkJoinPool != null && samples.size() >= FORK_JOIN_MIN_SAMPLES) {
+            forkJoinPool.invoke(new SampleAction(samples, 0, samples.size(), termSources));
+        } else {
+            for (int i = 0; i < samples.size(); i++) {
+                correctSample(samples.get(i), termSources.forSample(i));
             }
         }
+        //same order of term sources as if done one at a time
+        termSources.merge();
         
         //correct term sources
         CorrectorTermSource cts = new CorrectorTermSource();
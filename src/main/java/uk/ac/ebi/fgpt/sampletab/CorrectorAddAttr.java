@@ -1,9 +1,17 @@
 package uk.ac.ebi.fgpt.sampletab;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import javax.sql.DataSource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,6 +24,8 @@ import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.attribute.CommentAtt
 import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.attribute.MaterialAttribute;
 import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.attribute.SexAttribute;
 import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.attribute.UnitAttribute;
+import uk.ac.ebi.fgpt.sampletab.utils.BuildManifest;
+import uk.ac.ebi.fgpt.sampletab.utils.Retry;
 
 import com.jolbox.bonecp.BoneCPDataSource;
 
@@ -27,7 +37,17 @@ public class CorrectorAddAttr {
     private String username;
     private String password;
 
-    private BoneCPDataSource ds = null;
+    private DataSource ds = null;
+    
+    //one pool per database and user, shared by every instance in the same JVM
+    private static final Map<String, BoneCPDataSource> dataSources = new HashMap<String, BoneCPDataSource>();
+    
+    //digest of the ATTR_ADD rows of each SAMPLE_ID, loaded once on first use
+    private Map<String, String> rowDigests = null;
+    //set if ATTR_ADD could not be read for the digests, so it is not tried for every submission
+    private boolean rowDigestsFailed = false;
+
+    private static final Retry retry = Retry.forDatabase("CorrectorAddAttr");
 
     private Logger log = LoggerFactory.getLogger(getClass());
 
@@ -39,6 +59,10 @@ public class CorrectorAddAttr {
         this.port = port;
         this.database = database;
     }
+
+    public CorrectorAddAttr(DataSource ds) {
+        this.ds = ds;
+    }
     
     protected void doSetup() {
         synchronized(this) {
@@ -52,16 +76,24 @@ public class CorrectorAddAttr {
 
                 String connectURI = "jdbc:oracle:thin:@"+hostname+":"+port+":"+database;
                 
-                ds = new BoneCPDataSource();
-                ds.setJdbcUrl(connectURI);
-                ds.setUsername(username);
-                ds.setPassword(password);
-                
-                //remember, there is a limit of 500 on the database
-                //set each accessioner to a limit of 10, and always run less than 50 cluster jobs
-                ds.setPartitionCount(1); 
-                ds.setMaxConnectionsPerPartition(10); 
-                ds.setAcquireIncrement(1); 
+                synchronized (dataSources) {
+                    String key = connectURI+" "+username;
+                    BoneCPDataSource pool = dataSources.get(key);
+                    if (pool == null) {
+                        pool = new BoneCPDataSource();
+                        pool.setJdbcUrl(connectURI);
+                        pool.setUsername(username);
+                        pool.setPassword(password);
+                        
+                        //remember, there is a limit of 500 on the database
+                        //set each accessioner to a limit of 10, and always run less than 50 cluster jobs
+                        pool.setPartitionCount(1); 
+                        pool.setMaxConnectionsPerPartition(10); 
+                        pool.setAcquireIncrement(1); 
+                        dataSources.put(key, pool);
+                    }
+                    ds = pool;
+                }
             }
         }
     }
@@ -70,55 +102,24 @@ public class CorrectorAddAttr {
         doSetup();
         
         String acc = st.msi.submissionIdentifier;
-        String sql = "SELECT * FROM ATTR_ADD WHERE SAMPLE_ID = '"+acc+"'";
-        Connection conn = null;
-        Statement statement = null;
-        ResultSet results = null;
-        try {
-            conn = ds.getConnection();
-            statement = conn.createStatement();
-            results = statement.executeQuery(sql);
-            
-            while (results.next()) {
-                String key = results.getString("ATTR_KEY");
-                String value = results.getString("ATTR_VALUE");
-                                
-                log.info("Adding "+key+" : "+value+" to "+acc);
-
-                if (key.toLowerCase().equals("submission description")) {
-                    st.msi.submissionDescription = value;
-                } else if (key.toLowerCase().equals("submission title")) {
-                    st.msi.submissionTitle = value;
-                } else {
-                    log.warn("Unable to add "+key+" : "+value+" to "+acc);
-                }
-            }
-        } catch (SQLException e) {
-            log.error("Problem running sql", e);
-        } finally {
-            if (results != null) {
-                try {
-                    results.close();
-                } catch (SQLException e) {
-                    // do nothing
-                }
-            }
-            if (statement != null) {
-                try {
-                    statement.close();
-                } catch (SQLException e) {
-                    // do nothing
-                }
-            }
-            if (conn != null) {
-                try {
-                    conn.close();
-                } catch (SQLException e) {
-                    // do nothing
-                }
+        List<Map<String, String>> rows = getRows(acc);
+        if (rows == null) {
+            return;
+        }
+        for (Map<String, String> row : rows) {
+            String key = row.get("ATTR_KEY");
+            String value = row.get("ATTR_VALUE");
+
+            log.info("Adding "+key+" : "+value+" to "+acc);
+
+            if (key.toLowerCase().equals("submission description")) {
+                st.msi.submissionDescription = value;
+            } else if (key.toLowerCase().equals("submission title")) {
+                st.msi.submissionTitle = value;
+            } else {
+                log.warn("Unable to add "+key+" : "+value+" to "+acc);
             }
         }
-        
     }
     
     
@@ -142,84 +143,191 @@ public class CorrectorAddAttr {
         //only do setup once we are ready to add attributes
         doSetup();
         
-        String sql = "SELECT * FROM ATTR_ADD WHERE SAMPLE_ID = '"+acc+"'";
-        Connection conn = null;
-        Statement statement = null;
-        ResultSet results = null;
-        try {
-            conn = ds.getConnection();
-            statement = conn.createStatement();
-            results = statement.executeQuery(sql);
+        List<Map<String, String>> rows = getRows(acc);
+        if (rows == null) {
+            return;
+        }
+        for (Map<String, String> row : rows) {
+            String key = row.get("ATTR_KEY");
+            String value = row.get("ATTR_VALUE");
+            String termsourceREF = row.get("TERM_SOURCE_REF");
+            String termsourceID = row.get("TERM_SOURCE_ID");
+            String termsourceURI = row.get("TERM_SOURCE_URI");
+            String termsourceVersion = row.get("TERM_SOURCE_VERSION");
+            String unit = row.get("UNIT");
+
+            TermSource termSource = null;
             
-            while (results.next()) {
-                String key = results.getString("ATTR_KEY");
-                String value = results.getString("ATTR_VALUE");
-                String termsourceREF = results.getString("TERM_SOURCE_REF");
-                String termsourceID = results.getString("TERM_SOURCE_ID");
-                String termsourceURI = results.getString("TERM_SOURCE_URI");
-                String termsourceVersion = results.getString("TERM_SOURCE_VERSION");
-                String unit = results.getString("UNIT");
-                
-                TermSource termSource = null;
-                
-                if (termsourceREF != null && termsourceID != null && termsourceURI != null) {
-                    termSource = new TermSource(termsourceREF, termsourceURI, termsourceVersion);
-                }
-                
-                log.info("Adding "+key+" : "+value+" to "+acc);
+            if (termsourceREF != null && termsourceID != null && termsourceURI != null) {
+                termSource = new TermSource(termsourceREF, termsourceURI, termsourceVersion);
+            }
+            
+            log.info("Adding "+key+" : "+value+" to "+acc);
 
-                if (key.toLowerCase().equals("sex")) {
-                    SexAttribute attr = new SexAttribute(value);
+            if (key.toLowerCase().equals("sex")) {
+                SexAttribute attr = new SexAttribute(value);
+                if (termSource != null) {
+                    attr.setTermSourceREF(st.msi.getOrAddTermSource(termSource));
+                    attr.setTermSourceID(termsourceID);
+                }
+                sample.addAttribute(attr);
+            } else if (key.toLowerCase().equals("material")) {
+                MaterialAttribute attr = new MaterialAttribute(value);
+                if (termSource != null) {
+                    attr.setTermSourceREF(st.msi.getOrAddTermSource(termSource));
+                    attr.setTermSourceID(termsourceID);
+                }
+                sample.addAttribute(attr);
+            } else if (key.toLowerCase().equals("sample name")) {
+                //automatically make the existing name a synonym
+                sample.addAttribute(new CommentAttribute("synonym", sample.getNodeName()), 0);
+                sample.setNodeName(value);
+            } else if (key.toLowerCase().startsWith("characteristic[")){
+                String keyTrim = key.substring(15, key.length()-1);
+                CharacteristicAttribute attr = new CharacteristicAttribute(keyTrim, value);
+                if (unit != null) {
+                    attr.unit = new UnitAttribute(unit);
                     if (termSource != null) {
-                        attr.setTermSourceREF(st.msi.getOrAddTermSource(termSource));
-                        attr.setTermSourceID(termsourceID);
+                        attr.unit.setTermSourceREF(st.msi.getOrAddTermSource(termSource));
+                        attr.unit.setTermSourceID(termsourceID);
                     }
-                    sample.addAttribute(attr);
-                } else if (key.toLowerCase().equals("material")) {
-                    MaterialAttribute attr = new MaterialAttribute(value);
+                } else if (termSource != null) {
+                    attr.setTermSourceREF(st.msi.getOrAddTermSource(termSource));
+                    attr.setTermSourceID(termsourceID);
+                }
+                sample.addAttribute(attr);
+            } else if (key.toLowerCase().startsWith("comment[")){
+                String keyTrim = key.substring(8, key.length()-1);
+                CommentAttribute attr = new CommentAttribute(keyTrim, value);
+                if (unit != null) {
+                    attr.unit = new UnitAttribute(unit);
                     if (termSource != null) {
-                        attr.setTermSourceREF(st.msi.getOrAddTermSource(termSource));
-                        attr.setTermSourceID(termsourceID);
+                        attr.unit.setTermSourceREF(st.msi.getOrAddTermSource(termSource));
+                        attr.unit.setTermSourceID(termsourceID);
                     }
-                    sample.addAttribute(attr);
-                } else if (key.toLowerCase().equals("sample name")) {
-                    //automatically make the existing name a synonym
-                    sample.addAttribute(new CommentAttribute("synonym", sample.getNodeName()), 0);
-                    sample.setNodeName(value);
-                } else if (key.toLowerCase().startsWith("characteristic[")){
-                    String keyTrim = key.substring(15, key.length()-1);
-                    CharacteristicAttribute attr = new CharacteristicAttribute(keyTrim, value);
-                    if (unit != null) {
-                        attr.unit = new UnitAttribute(unit);
-                        if (termSource != null) {
-                            attr.unit.setTermSourceREF(st.msi.getOrAddTermSource(termSource));
-                            attr.unit.setTermSourceID(termsourceID);
-                        }
-                    } else if (termSource != null) {
-                        attr.setTermSourceREF(st.msi.getOrAddTermSource(termSource));
-                        attr.setTermSourceID(termsourceID);
-                    }
-                    sample.addAttribute(attr);
-                } else if (key.toLowerCase().startsWith("comment[")){
-                    String keyTrim = key.substring(8, key.length()-1);
-                    CommentAttribute attr = new CommentAttribute(keyTrim, value);
-                    if (unit != null) {
-                        attr.unit = new UnitAttribute(unit);
-                        if (termSource != null) {
-                            attr.unit.setTermSourceREF(st.msi.getOrAddTermSource(termSource));
-                            attr.unit.setTermSourceID(termsourceID);
-                        }
-                    } else if (termSource != null) {
-                        attr.setTermSourceREF(st.msi.getOrAddTermSource(termSource));
-                        attr.setTermSourceID(termsourceID);
-                    }
-                    sample.addAttribute(attr);
-                } else {
-                    log.warn("Unable to add "+key+" : "+value+" to "+acc);
+                } else if (termSource != null) {
+                    attr.setTermSourceREF(st.msi.getOrAddTermSource(termSource));
+                    attr.setTermSourceID(termsourceID);
                 }
+                sample.addAttribute(attr);
+            } else {
+                log.warn("Unable to add "+key+" : "+value+" to "+acc);
+            }
+        }
+    }
+    
+    /**
+     * Digest of all the ATTR_ADD rows that apply to any of the given submission or sample
+     * identifiers. This changes whenever rows affecting them are added, removed or edited.
+     * 
+     * The whole table is read once and kept, so this is cheap to call for every submission.
+     * If that fails, it is not tried again by this instance.
+     * 
+     * @return the digest, or null if the table could not be read
+     */
+    public String getDigest(Collection<String> ids) {
+        Map<String, String> digests = getRowDigests();
+        if (digests == null) {
+            return null;
+        }
+        Map<String, String> relevant = new HashMap<String, String>();
+        for (String id : ids) {
+            if (digests.containsKey(id)) {
+                relevant.put(id, digests.get(id));
             }
+        }
+        return BuildManifest.digest(relevant);
+    }
+    
+    private synchronized Map<String, String> getRowDigests() {
+        if (rowDigests != null) {
+            return rowDigests;
+        }
+        if (rowDigestsFailed) {
+            return null;
+        }
+        
+        doSetup();
+        
+        List<Map<String, String>> all = getRows(null);
+        if (all == null) {
+            log.warn("Unable to digest ATTR_ADD, not trying again this run");
+            rowDigestsFailed = true;
+            return null;
+        }
+
+        Map<String, Collection<String>> rows = new HashMap<String, Collection<String>>();
+        for (Map<String, String> row : all) {
+            String id = row.get("SAMPLE_ID");
+            StringBuilder sb = new StringBuilder();
+            for (String column : rowColumns) {
+                sb.append(row.get(column)).append('\t');
+            }
+            if (!rows.containsKey(id)) {
+                //sorted so that the digest does not depend on row order
+                rows.put(id, new TreeSet<String>());
+            }
+            rows.get(id).add(sb.toString());
+        }
+
+        Map<String, String> digests = new HashMap<String, String>();
+        for (String id : rows.keySet()) {
+            StringBuilder sb = new StringBuilder();
+            for (String row : rows.get(id)) {
+                sb.append(row).append('\n');
+            }
+            digests.put(id, BuildManifest.digest(sb.toString()));
+        }
+        rowDigests = digests;
+        return rowDigests;
+    }
+
+    /**
+     * Reads the ATTR_ADD rows of one sample or submission, or all of them if the id is null.
+     * Rows are read completely before being used, so that an attempt that fails part way
+     * through can be retried without adding anything twice.
+     *
+     * @return each row by column name, or null if the table could not be read
+     */
+    private List<Map<String, String>> getRows(final String id) {
+        try {
+            return retry.call("reading ATTR_ADD for "+id, new Retry.DatabaseAttempt<List<Map<String, String>>, SQLException>() {
+                public List<Map<String, String>> attempt() throws SQLException {
+                    return readRows(id);
+                }
+            });
         } catch (SQLException e) {
             log.error("Problem running sql", e);
+        } catch (Retry.OpenException e) {
+            log.error("Problem running sql", e);
+        }
+        return null;
+    }
+
+    private List<Map<String, String>> readRows(String id) throws SQLException {
+        Connection conn = null;
+        PreparedStatement statement = null;
+        ResultSet results = null;
+        try {
+            conn = ds.getConnection();
+            if (id == null) {
+                statement = conn.prepareStatement("SELECT * FROM ATTR_ADD");
+            } else {
+                statement = conn.prepareStatement("SELECT * FROM ATTR_ADD WHERE SAMPLE_ID = ?");
+                statement.setString(1, id);
+            }
+            results = statement.executeQuery();
+
+            List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+            while (results.next()) {
+                Map<String, String> row = new HashMap<String, String>();
+                row.put("SAMPLE_ID", results.getString("SAMPLE_ID"));
+                for (String column : rowColumns) {
+                    row.put(column, results.getString(column));
+                }
+                rows.add(row);
+            }
+            return rows;
         } finally {
             if (results != null) {
                 try {
@@ -244,4 +352,7 @@ public class CorrectorAddAttr {
             }
         }
     }
+
+    private static final String[] rowColumns = new String[] {"ATTR_KEY", "ATTR_VALUE", 
+        "TERM_SOURCE_REF", "TERM_SOURCE_ID", "TERM_SOURCE_URI", "TERM_SOURCE_VERSION", "UNIT"};
 }
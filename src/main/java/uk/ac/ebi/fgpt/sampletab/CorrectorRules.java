@@ -0,0 +1,183 @@
+package uk.ac.ebi.fgpt.sampletab;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Tables of values that {@link Corrector} replaces with a canonical form, loaded once from
+ * the corrector-rules.txt resource.
+ *
+ * Each table is an open-addressing hash table, so looking up a value takes the same time
+ * however many rules there are. Tables that ignore case hold their keys lowercased in
+ * {@link Locale#ROOT}, and values are lowercased the same way to look them up, so that
+ * both agree whatever the default locale is.
+ */
+public class CorrectorRules {
+
+    public static final String RESOURCE = "/corrector-rules.txt";
+
+    private static CorrectorRules instance = null;
+
+    private final Map<String, Table> tables = new HashMap<String, Table>();
+
+    /**
+     * What a value should be replaced with.
+     */
+    public static class Rule {
+        public final String canonical;
+        public final String termSourceID;
+
+        public Rule(String canonical, String termSourceID) {
+            this.canonical = canonical;
+            this.termSourceID = termSourceID;
+        }
+    }
+
+    private static class Table {
+        private final boolean ignoreCase;
+        private final String[] keys;
+        private final Rule[] rules;
+        private final int mask;
+
+        /**
+         * @param entries rules by key, which must already be lowercase if ignoring case
+         */
+        public Table(Map<String, Rule> entries, boolean ignoreCase) {
+            this.ignoreCase = ignoreCase;
+            //at most half full, so probe sequences stay short
+            int capacity = Integer.highestOneBit(Math.max(entries.size(), 1) * 4);
+            keys = new String[capacity];
+            rules = new Rule[capacity];
+            mask = capacity - 1;
+            for (String key : entries.keySet()) {
+                int i = hash(key) & mask;
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                rules[i] = entries.get(key);
+            }
+        }
+
+        private int hash(String value) {
+            int h = value.hashCode();
+            //spread the bits, as the table size is a power of two
+            return h ^ (h >>> 16);
+        }
+
+        public Rule get(String value) {
+            if (ignoreCase) {
+                //returns the same string if it is already lowercase
+                value = value.toLowerCase(Locale.ROOT);
+            }
+            int i = hash(value) & mask;
+            while (keys[i] != null) {
+                if (keys[i].equals(value)) {
+                    return rules[i];
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+    }
+
+    protected CorrectorRules(InputStream is) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, Charsets.UTF_8));
+        String name = null;
+        boolean ignoreCase = true;
+        Map<String, Rule> entries = null;
+        String line;
+        int lineNo = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNo++;
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            } else if (line.startsWith("@table ")) {
+                if (name != null) {
+                    tables.put(name, new Table(entries, ignoreCase));
+                }
+                name = line.substring("@table ".length());
+                ignoreCase = true;
+                entries = new HashMap<String, Rule>();
+            } else if (line.equals("@case-sensitive")) {
+                ignoreCase = false;
+            } else if (name == null) {
+                throw new IOException("Rule outside of a table at line "+lineNo);
+            } else {
+                String[] parts = line.split("\t", -1);
+                String key = parts[0];
+                if (ignoreCase) {
+                    key = key.toLowerCase(Locale.ROOT);
+                }
+                String canonical = null;
+                String termSourceID = null;
+                if (parts.length > 1) {
+                    canonical = parts[1];
+                }
+                if (parts.length > 2) {
+                    termSourceID = parts[2];
+                }
+                if (entries.containsKey(key)) {
+                    throw new IOException("Duplicate rule for "+key+" in "+name+" at line "+lineNo);
+                }
+                entries.put(key, new Rule(canonical, termSourceID));
+            }
+        }
+        if (name != null) {
+            tables.put(name, new Table(entries, ignoreCase));
+        }
+    }
+
+    /**
+     * The rules from the corrector-rules.txt resource.
+     */
+    public static synchronized CorrectorRules getInstance() {
+        if (instance == null) {
+            InputStream is = CorrectorRules.class.getResourceAsStream(RESOURCE);
+            if (is == null) {
+                throw new RuntimeException("Unable to find resource "+RESOURCE);
+            }
+            try {
+                instance = new CorrectorRules(is);
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to read resource "+RESOURCE, e);
+            } finally {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    //do nothing
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return the rule for the value in the table, or null if there is not one
+     */
+    public Rule get(String table, String value) {
+        if (value == null) {
+            return null;
+        }
+        Table t = tables.get(table);
+        if (t == null) {
+            return null;
+        }
+        return t.get(value);
+    }
+
+    public boolean contains(String table, String value) {
+        return get(table, value) != null;
+    }
+
+    public boolean hasTable(String table) {
+        return tables.containsKey(table);
+    }
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.sql.SQLException;
 import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.sql.DataSource;
 
@@ -12,6 +13,9 @@ import org.kohsuke.args4j.Option;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.ebi.fgpt.sampletab.utils.PipelineMetrics;
+import uk.ac.ebi.fgpt.sampletab.utils.StagedExecutor;
+
 /**
  * Driver class for sampletab.pre.txt -> sampletab.txt -> sampletab.toload.txt
  * 
@@ -45,14 +49,50 @@ public class SampleTabBulkDriver extends AbstractInfileDriver<SampleTabBulkRunna
     @Option(name = "--no-group", aliases={"-g"}, usage = "skip creating compulsory groups")
     private boolean nogroup = false;
     
+    @Option(name = "--explain", usage = "report why each file is or is not rebuilt")
+    private boolean explain = false;
+    
+    @Option(name = "--in-memory", usage = "build sampletab.toload.txt without re-parsing sampletab.txt")
+    private boolean inMemory = false;
+    
+    @Option(name = "--metrics", usage = "write a summary of timings to this file when finished")
+    private File metricsFile = null;
+    
     @Option(name = "--root", usage = "root directory for sampletab files")
     private File rootDir = null;
+    
+    //if any of these are set, the work of each step is done by a pool of this size, so at most
+    //that many submissions are in the step at once. Each submission still holds a --threads
+    //thread while it waits for its steps, so --threads should be at least the total of these
+    @Option(name = "--parse-threads", usage = "threads parsing sampletab.pre.txt (default: use --threads)")
+    private int parseThreads = 0;
+    
+    @Option(name = "--enrich-threads", usage = "threads adding attributes from the database (default: use --threads)")
+    private int enrichThreads = 0;
+    
+    @Option(name = "--correct-threads", usage = "threads applying corrections (default: use --threads)")
+    private int correctThreads = 0;
+    
+    @Option(name = "--relate-threads", usage = "threads detecting relationships (default: use --threads)")
+    private int relateThreads = 0;
+    
+    @Option(name = "--render-threads", usage = "threads writing output files (default: use --threads)")
+    private int renderThreads = 0;
+    
+    @Option(name = "--stage-queue", usage = "maximum submissions waiting for each stage (default 2 per stage thread)")
+    private int stageQueue = 0;
+
+    @Option(name = "--sample-threads", usage = "threads correcting the samples of one large submission together (default 1)")
+    private int sampleThreads = 1;
 
     private Corrector corrector = new Corrector();
     private CorrectorAddAttr correctorAddAttr = null;
     private DerivedFrom derivedFrom = null;
     private Accessioner accessioner = null;
     private SameAs sameAs = new SameAs();
+    private StagedExecutor stages = null;
+    private PipelineMetrics metrics = new PipelineMetrics();
+    private ForkJoinPool samplePool = null;
     
     private Logger log = LoggerFactory.getLogger(getClass());
 
@@ -107,8 +147,11 @@ public class SampleTabBulkDriver extends AbstractInfileDriver<SampleTabBulkRunna
     @Override
     protected SampleTabBulkRunnable getNewTask(File inputFile) {
         File subdir = inputFile.getAbsoluteFile().getParentFile();
-        return new SampleTabBulkRunnable(subdir, corrector, correctorAddAttr, 
-            accessioner, sameAs, getDerivedFrom(), force, noload, nogroup);
+        SampleTabBulkRunnable runnable = new SampleTabBulkRunnable(subdir, corrector, correctorAddAttr, 
+            accessioner, sameAs, getDerivedFrom(), force, noload, nogroup, explain, inMemory);
+        runnable.setStagedExecutor(stages);
+        runnable.setMetrics(metrics);
+        return runnable;
     }
     
     private synchronized DerivedFrom getDerivedFrom() {
@@ -122,6 +165,8 @@ public class SampleTabBulkDriver extends AbstractInfileDriver<SampleTabBulkRunna
     @Override
     protected void preProcess() {
         
+        metrics.register("SampleTabBulk");
+        
         DataSource ds = null;
 		try {
 			ds = Accessioner.getDataSource(hostname, 
@@ -134,5 +179,45 @@ public class SampleTabBulkDriver extends AbstractInfileDriver<SampleTabBulkRunna
         accessioner = new Accessioner(ds);
         correctorAddAttr = new CorrectorAddAttr(hostname, 
                 port, database, dbusername, dbpassword);
+        
+        if (sampleThreads > 1) {
+            samplePool = new ForkJoinPool(sampleThreads);
+            corrector.setForkJoinPool(samplePool);
+        }
+        
+        int[] stepThreads = {parseThreads, enrichThreads, correctThreads, relateThreads, renderThreads};
+        for (int i = 0; i < stepThreads.length; i++) {
+            if (stepThreads[i] > 0) {
+                if (stages == null) {
+                    stages = new StagedExecutor();
+                }
+                int capacity = stageQueue;
+                if (capacity <= 0) {
+                    capacity = stepThreads[i] * 2;
+                }
+                stages.addStage(SampleTabBulkRunnable.STEPS[i], stepThreads[i], capacity);
+            }
+        }
+    }
+    
+    @Override
+    protected void postProcess() {
+        if (stages != null) {
+            stages.shutdown();
+        }
+        if (samplePool != null) {
+            samplePool.shutdown();
+        }
+        
+        log.info("Timings:\n"+metrics.getSummary());
+        if (metricsFile != null) {
+            try {
+                metrics.writeSummary(metricsFile);
+            } catch (IOException e) {
+                log.error("Unable to write metrics to "+metricsFile, e);
+            }
+        }
+        //so that another run in the same JVM, e.g. from SampleTabDaemon, can register its own
+        metrics.unregister();
     }
 }
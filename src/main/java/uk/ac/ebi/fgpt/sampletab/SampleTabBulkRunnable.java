@@ -1,11 +1,20 @@
 package uk.ac.ebi.fgpt.sampletab;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.Writer;
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.mged.magetab.error.ErrorItem;
 import org.slf4j.Logger;
@@ -18,6 +27,13 @@ import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.SampleNode;
 import uk.ac.ebi.arrayexpress2.sampletab.parser.SampleTabSaferParser;
 import uk.ac.ebi.arrayexpress2.sampletab.renderer.SampleTabWriter;
 import uk.ac.ebi.arrayexpress2.sampletab.validator.SampleTabValidator;
+import uk.ac.ebi.fgpt.sampletab.utils.BuildManifest;
+import uk.ac.ebi.fgpt.sampletab.utils.PipelineMetrics;
+import uk.ac.ebi.fgpt.sampletab.utils.StagedExecutor;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
 
 public class SampleTabBulkRunnable implements Callable<Void> {
     private final File sampletabpre;
@@ -32,12 +48,46 @@ public class SampleTabBulkRunnable implements Callable<Void> {
     private final boolean force;
     private final boolean noload;
     private final boolean nogroup;
+    private final boolean explain;
+    private final boolean inMemory;
 
     private static final String SUBSEVENT = "SampleTabBulk";
     
+    private static final String STAGE_SAMPLETAB = "sampletab";
+    private static final String STAGE_TOLOAD = "toload";
+    //recorded in place of an input that could not be determined, so it is rebuilt next time
+    private static final String UNAVAILABLE = "unavailable";
+    
+    //names of the steps of processing a submission, that can each be run by a separate
+    //stage of a StagedExecutor
+    public static final String PARSE = "parse";
+    public static final String ENRICH = "enrich";
+    public static final String CORRECT = "correct";
+    public static final String RELATE = "relate";
+    public static final String RENDER = "render";
+    public static final String[] STEPS = {PARSE, ENRICH, CORRECT, RELATE, RENDER};
+    
+    private StagedExecutor stages = null;
+    private PipelineMetrics metrics = null;
+    
+    //what was done, for the metrics
+    private boolean processed = false;
+    private int sampleCount = 0;
+    
+    private static final Pattern accessionPattern = Pattern.compile("\\bSAM[A-Z]{0,2}[0-9]+\\b");
+    
     private Logger log = LoggerFactory.getLogger(getClass());
     
     public SampleTabBulkRunnable(File subdir, Corrector corrector, CorrectorAddAttr correctorAddAttr, Accessioner accessioner, SameAs sameAs, DerivedFrom derivedFrom, boolean force, boolean noload, boolean nogroup) {
+        this(subdir, corrector, correctorAddAttr, accessioner, sameAs, derivedFrom, force, noload, nogroup, false, false);
+    }
+    
+    /**
+     * @param explain log the reason each file is or is not rebuilt
+     * @param inMemory if sampletab.txt is rebuilt, build sampletab.toload.txt from the same 
+     * in-memory SampleData rather than parsing sampletab.txt again
+     */
+    public SampleTabBulkRunnable(File subdir, Corrector corrector, CorrectorAddAttr correctorAddAttr, Accessioner accessioner, SameAs sameAs, DerivedFrom derivedFrom, boolean force, boolean noload, boolean nogroup, boolean explain, boolean inMemory) {
         
         sampletabpre = new File(subdir, "sampletab.pre.txt");
         sampletab = new File(subdir, "sampletab.txt");
@@ -51,18 +101,50 @@ public class SampleTabBulkRunnable implements Callable<Void> {
         this.force = force;
         this.noload = noload;
         this.nogroup = nogroup;
+        this.explain = explain;
+        this.inMemory = inMemory;
         
         if (!nogroup && noload) {
         	log.warn("Nonsensical combination of nogroup = False and noload = true");
         }
     }
 
+    /**
+     * Run each step of the processing on the stage with the same name, rather than on the 
+     * thread calling this runnable. Steps without a matching stage are run directly.
+     */
+    public void setStagedExecutor(StagedExecutor stages) {
+        this.stages = stages;
+    }
+
+    /**
+     * Record the time taken by each step of the processing.
+     */
+    public void setMetrics(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     @Override
     public Void call() throws Exception {
         
         String accession = sampletabpre.getParentFile().getName();
         
-        doWork();
+        long start = System.nanoTime();
+        try {
+            doWork();
+        } catch (Exception e) {
+            if (metrics != null) {
+                metrics.recordFailed();
+            }
+            throw e;
+        }
+        if (metrics != null) {
+            if (processed) {
+                metrics.recordSubmission(accession, sampleCount, start);
+            } else {
+                metrics.recordSkipped();
+            }
+        }
             
         return null;
         
@@ -70,141 +152,342 @@ public class SampleTabBulkRunnable implements Callable<Void> {
     
 
     private void doWork() throws Exception {
+        
+        BuildManifest manifest = new BuildManifest(sampletabpre.getParentFile());
+        
+        //the corrected submission, if it was rebuilt in this run
+        SampleData st = null;
 
         // accession sampletab.pre.txt to sampletab.txt
+        //not needed if forced, and ATTR_ADD is too costly to read for nothing
+        Map<String, String> sampletabInputs = null;
+        if (!force) {
+            sampletabInputs = getSampleTabInputs();
+        }
+        String sampletabReason = whyRebuild(manifest, STAGE_SAMPLETAB, sampletabInputs, sampletabpre, sampletab);
         if (!force && sampletab.exists() && sampletab.length()==0) {
             log.warn("Skipping "+sampletab+" - is zero size");
-        } else if (!force && sampletab.exists() && sampletab.lastModified() > sampletabpre.lastModified()) {
-            log.trace("Skipping "+sampletab+" - modifed after "+sampletabpre);
+        } else if (sampletabReason == null) {
+            explain("Skipping "+sampletab+" - inputs unchanged");
         } else {
             log.info("Processing " + sampletab);
+            processed = true;
+            explain("Rebuilding "+sampletab+" - "+sampletabReason);
 
-            SampleTabSaferParser parser = new SampleTabSaferParser(new SampleTabValidator());
-            
-            SampleData st;
-            try {
-                st = parser.parse(sampletabpre);
-            } catch (ParseException e) {
-                log.error("Problem processing "+sampletabpre, e);
-                for (ErrorItem err : e.getErrorItems()){
-                    log.error(err.toString());
+            final SampleData parsed = inStage(PARSE, new Callable<SampleData>() {
+                public SampleData call() throws Exception {
+                    return parse();
                 }
-                throw e;
-            }
-            
-            
-            try {
-                //previously, we would accession here
-                //now we need to accession earlier with a specific username
-                //Therefore, check for unaccessioned stuff and report as errors
-
-                for (SampleNode sample : st.scd.getNodes(SampleNode.class)) {
-                    if (sample.getSampleAccession() == null) {
-                        throw new Exception("Unaccessioned sample "+sample.getNodeName());
-                    }
+            });
+            inStage(ENRICH, new Callable<Void>() {
+                public Void call() throws Exception {
+                    enrich(parsed);
+                    return null;
                 }
-                for (GroupNode group : st.scd.getNodes(GroupNode.class)) {
-                    if (group.getGroupAccession() == null) {
-                        throw new Exception("Unaccessioned group "+group.getNodeName());
-                    }
+            });
+            inStage(CORRECT, new Callable<Void>() {
+                public Void call() throws Exception {
+                    correct(parsed);
+                    return null;
                 }
-            } catch (ParseException e) {
-                log.error("Problem processing "+sampletabpre, e);
-                for (ErrorItem err : e.getErrorItems()){
-                    log.error(err.toString());
+            });
+            inStage(RELATE, new Callable<Void>() {
+                public Void call() throws Exception {
+                    relate(parsed);
+                    return null;
                 }
-                throw e;
-            } catch (SQLException e) {
-                throw e;
-            } catch (RuntimeException e){
-                throw e;
-            }
-            
-            log.trace("Applying extra attributes...");
-            correctorAddAttr.addAttribute(st);
-            for (SampleNode sample : st.scd.getNodes(SampleNode.class)) {
-                correctorAddAttr.addAttribute(st, sample);
-            }
-
-            log.trace("Applying corrections...");
-            corrector.correct(st);
-
-            //dont detect relationships for reference samples
-            //these will be done manually
-            if (!st.msi.submissionReferenceLayer) {
-            	if (derivedFrom != null) {
-	                log.trace("Detecting derived from...");
-	                try {
-	                    derivedFrom.convert(st);
-	                } catch (IOException e) {
-	                    throw e;
-	                }
-            	}
-
-                log.trace("Detecting same as...");
-                if (sameAs != null) {
-	                try {
-	                    sameAs.convert(st);
-	                } catch (IOException e) {
-	                    throw e;
-	                }
+            });
+            inStage(RENDER, new Callable<Void>() {
+                public Void call() throws Exception {
+                    render(parsed);
+                    return null;
                 }
-            }
+            });
+            st = parsed;
             
-            //write it back out
-            Writer writer = null;
-            try {
-                writer = new FileWriter(sampletab);
-                SampleTabWriter sampletabwriter = new SampleTabWriter(writer);
-                log.trace("created SampleTabWriter");
-                sampletabwriter.write(st);
-                sampletabwriter.close();
-            } catch (IOException e) {
-                throw e;
-            } finally {
-                if (writer != null){
-                    try {
-                        writer.close();
-                    } catch (IOException e2) {
-                        //do nothing
-                    }
-                }
+            if (force) {
+                //the next run compares modification times instead, and records the inputs then
+                manifest.forget(STAGE_SAMPLETAB);
+            } else {
+                manifest.record(STAGE_SAMPLETAB, sampletabInputs, sampletab);
             }
-            
         }
 
         // preprocess to load
         if (!noload) {
+            Map<String, String> toloadInputs = getToLoadInputs();
+            String toloadReason = whyRebuild(manifest, STAGE_TOLOAD, toloadInputs, sampletab, sampletabtoload);
             if (!force && sampletabtoload.exists() && sampletabtoload.length()==0) {
                 log.warn("Skipping "+sampletabtoload+" - is zero size");
-            } else if (!force && sampletabtoload.exists() && sampletabtoload.lastModified() > sampletab.lastModified()) {
-                log.trace("Skipping "+sampletabtoload+" - modifed after "+sampletab);
+            } else if (toloadReason == null) {
+                explain("Skipping "+sampletabtoload+" - inputs unchanged");
             } else {
                 log.info("Processing " + sampletabtoload);
+                processed = true;
+                explain("Rebuilding "+sampletabtoload+" - "+toloadReason);
+
+                final SampleData converted = (inMemory ? st : null);
+                inStage(RENDER, "toload", new Callable<Void>() {
+                    public Void call() throws Exception {
+                        renderToLoad(converted);
+                        return null;
+                    }
+                });
+                manifest.record(STAGE_TOLOAD, toloadInputs, sampletabtoload);
+                log.info("Finished " + sampletabtoload);
+            }
+        }
+    }
+    
+    private <V> V inStage(String stage, Callable<V> work) throws Exception {
+        return inStage(stage, stage, work);
+    }
+    
+    /**
+     * Runs some work on the named stage, timing it under the given name. The time 
+     * spent waiting for the stage to have a free thread is not included.
+     */
+    private <V> V inStage(String stage, final String timer, final Callable<V> work) throws Exception {
+        Callable<V> timed = work;
+        if (metrics != null) {
+            timed = new Callable<V>() {
+                public V call() throws Exception {
+                    long start = System.nanoTime();
+                    try {
+                        return work.call();
+                    } finally {
+                        metrics.recordStage(timer, start);
+                    }
+                }
+            };
+        }
+        if (stages == null || !stages.hasStage(stage)) {
+            return timed.call();
+        } else {
+            return stages.run(stage, timed);
+        }
+    }
+    
+    private SampleData parse() throws Exception {
+        SampleData st;
+        SampleTabSaferParser parser = new SampleTabSaferParser(new SampleTabValidator());
+        
+        try {
+            st = parser.parse(sampletabpre);
+        } catch (ParseException e) {
+            log.error("Problem processing "+sampletabpre, e);
+            for (ErrorItem err : e.getErrorItems()){
+                log.error(err.toString());
+            }
+            throw e;
+        }
+        
+        
+        try {
+            //previously, we would accession here
+            //now we need to accession earlier with a specific username
+            //Therefore, check for unaccessioned stuff and report as errors
 
-                SampleTabToLoad c;
+            for (SampleNode sample : st.scd.getNodes(SampleNode.class)) {
+                if (sample.getSampleAccession() == null) {
+                    throw new Exception("Unaccessioned sample "+sample.getNodeName());
+                }
+            }
+            for (GroupNode group : st.scd.getNodes(GroupNode.class)) {
+                if (group.getGroupAccession() == null) {
+                    throw new Exception("Unaccessioned group "+group.getNodeName());
+                }
+            }
+        } catch (ParseException e) {
+            log.error("Problem processing "+sampletabpre, e);
+            for (ErrorItem err : e.getErrorItems()){
+                log.error(err.toString());
+            }
+            throw e;
+        } catch (SQLException e) {
+            throw e;
+        } catch (RuntimeException e){
+            throw e;
+        }
+        
+        sampleCount = st.scd.getNodes(SampleNode.class).size();
+        return st;
+    }
+    
+    private void enrich(SampleData st) throws Exception {
+        log.trace("Applying extra attributes...");
+        correctorAddAttr.addAttribute(st);
+        for (SampleNode sample : st.scd.getNodes(SampleNode.class)) {
+            correctorAddAttr.addAttribute(st, sample);
+        }
+    }
+    
+    private void correct(SampleData st) {
+        log.trace("Applying corrections...");
+        corrector.correct(st);
+    }
+    
+    private void relate(SampleData st) throws IOException {
+        //dont detect relationships for reference samples
+        //these will be done manually
+        if (!st.msi.submissionReferenceLayer) {
+            if (derivedFrom != null) {
+                log.trace("Detecting derived from...");
+                derivedFrom.convert(st);
+            }
+
+            log.trace("Detecting same as...");
+            if (sameAs != null) {
+                sameAs.convert(st);
+            }
+        }
+    }
+    
+    private void render(SampleData st) throws IOException {
+        //write it back out
+        Writer writer = null;
+        try {
+            writer = new FileWriter(sampletab);
+            SampleTabWriter sampletabwriter = new SampleTabWriter(writer);
+            log.trace("created SampleTabWriter");
+            sampletabwriter.write(st);
+            sampletabwriter.close();
+        } catch (IOException e) {
+            throw e;
+        } finally {
+            if (writer != null){
+                try {
+                    writer.close();
+                } catch (IOException e2) {
+                    //do nothing
+                }
+            }
+        }
+    }
+    
+    /**
+     * Converts to sampletab.toload.txt, either from the given in-memory copy of what was 
+     * written to sampletab.txt or, if that is null, by parsing sampletab.txt.
+     */
+    private void renderToLoad(SampleData st) throws Exception {
+        SampleTabToLoad c;
+        try {
+            c = new SampleTabToLoad();
+            if (st != null) {
+                //sampletab.txt was written from this, so no need to parse it again
+                c.convert(st, sampletabtoload);
+            } else {
+                c.convert(sampletab, sampletabtoload);
+            }
+        } catch (ClassNotFoundException e) {
+            log.error("Problem processing "+sampletab, e);
+            throw e;
+        } catch (IOException e) {
+            log.error("Problem processing "+sampletab, e);
+            throw e;
+        } catch (ParseException e) {
+            log.error("Problem processing "+sampletab, e);
+            throw e;
+        } catch (RuntimeException e){
+            log.error("Problem processing "+sampletab, e);
+            throw e;
+        } catch (SQLException e) {
+            log.error("Problem processing "+sampletab, e);
+            throw e;
+        }
+    }
+    
+    /**
+     * Decides if a stage needs to be run, based on the digests recorded in the manifest.
+     * If the manifest has no record of the stage then modification times are compared
+     * instead, and an up to date output is recorded so later runs can use its digests.
+     * 
+     * @return null if the stage can be skipped, otherwise the reason it must be run
+     */
+    private String whyRebuild(BuildManifest manifest, String stage, Map<String, String> inputs, 
+            File input, File output) throws IOException {
+        if (force) {
+            return "forced";
+        }
+        for (String key : inputs.keySet()) {
+            if (UNAVAILABLE.equals(inputs.get(key))) {
+                return key+" could not be determined";
+            }
+        }
+        if (!output.exists()) {
+            return output.getName()+" does not exist";
+        }
+        if (manifest.hasStage(stage)) {
+            return manifest.whyStale(stage, inputs, output);
+        }
+        if (output.lastModified() > input.lastModified()) {
+            manifest.record(stage, inputs, output);
+            return null;
+        }
+        return output.getName()+" modified before "+input.getName()+" and no manifest record";
+    }
+    
+    /**
+     * Everything that can change what sampletab.txt is built from sampletab.pre.txt. 
+     * As well as the file itself, this includes any ATTR_ADD rows for the submission or 
+     * for accessions that are mentioned in it.
+     */
+    private Map<String, String> getSampleTabInputs() throws IOException {
+        Map<String, String> inputs = new HashMap<String, String>();
+        
+        Set<String> ids = new HashSet<String>();
+        ids.add(sampletabpre.getParentFile().getName());
+        
+        //digest the file and look for accessions in one pass
+        HashingInputStream his = null;
+        BufferedReader reader = null;
+        try {
+            his = new HashingInputStream(Hashing.sha1(), new FileInputStream(sampletabpre));
+            reader = new BufferedReader(new InputStreamReader(his, Charsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher m = accessionPattern.matcher(line);
+                while (m.find()) {
+                    ids.add(m.group());
+                }
+            }
+            inputs.put(sampletabpre.getName(), his.hash().toString());
+        } finally {
+            if (reader != null) {
                 try {
-                    c = new SampleTabToLoad();
-                    c.convert(sampletab, sampletabtoload);
-                } catch (ClassNotFoundException e) {
-                    log.error("Problem processing "+sampletab, e);
-                    throw e;
+                    reader.close();
                 } catch (IOException e) {
-                    log.error("Problem processing "+sampletab, e);
-                    throw e;
-                } catch (ParseException e) {
-                    log.error("Problem processing "+sampletab, e);
-                    throw e;
-                } catch (RuntimeException e){
-                    log.error("Problem processing "+sampletab, e);
-                    throw e;
-                } catch (SQLException e) {
-                    log.error("Problem processing "+sampletab, e);
-                    throw e;
+                    //do nothing
                 }
-                log.info("Finished " + sampletabtoload);
             }
         }
+        
+        inputs.put("version", BuildManifest.getPipelineVersion());
+        
+        if (correctorAddAttr != null) {
+            String attrAdd = correctorAddAttr.getDigest(ids);
+            if (attrAdd == null) {
+                attrAdd = UNAVAILABLE;
+            }
+            inputs.put("ATTR_ADD", attrAdd);
+        }
+        
+        return inputs;
+    }
+    
+    private Map<String, String> getToLoadInputs() throws IOException {
+        Map<String, String> inputs = new HashMap<String, String>();
+        inputs.put(sampletab.getName(), BuildManifest.digest(sampletab));
+        inputs.put("version", BuildManifest.getPipelineVersion());
+        return inputs;
+    }
+    
+    private void explain(String message) {
+        if (explain) {
+            log.info(message);
+        } else {
+            log.trace(message);
+        }
     }
            
 }
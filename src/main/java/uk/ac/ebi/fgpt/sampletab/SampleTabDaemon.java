@@ -0,0 +1,491 @@
+package uk.ac.ebi.fgpt.sampletab;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.Permission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Keeps a JVM running and runs the main method of other drivers in it when asked, so that
+ * their caches, connection pools and compiled code are kept between runs.
+ *
+ * Runs can be requested over a socket on the local machine. The request is a line with the
+ * contents of the --secret file, a line with the number of lines that follow, then a line
+ * with the class name, then one line per argument. The reply is a line with the exit code of
+ * the driver. Requests that are not complete within {@value #REQUEST_TIMEOUT}ms, or that have
+ * a line longer than {@value #MAX_LINE_BYTES} bytes, are dropped. Connections beyond the
+ * number given by --connections are closed straight away. See sampletab-daemon-run.sh.
+ *
+ * Runs can also be requested by putting a file ending .job into a spool directory, with the
+ * class name and arguments one per line. To avoid it being read before it is complete, write
+ * it under another name and rename it. When it has finished, it is renamed to end .done and
+ * the exit code is written to a file of the same name ending .exit. The spool directory must
+ * not be writable by other users.
+ *
+ * Only the driver classes given with --allow can be run, by default those with a script in bin.
+ *
+ * Calls to System.exit once the daemon has started end the run that made them rather than the
+ * daemon. This needs a security manager, which from Java 18 has to be allowed by starting the
+ * JVM with -Djava.security.manager=allow, e.g. in the args environment variable.
+ */
+public class SampleTabDaemon extends AbstractDriver {
+
+    @Option(name = "--port", usage = "local port to listen for runs on (sampletab-daemon-run.sh uses 7970)")
+    private int port = 0;
+
+    @Option(name = "--spool", usage = "directory to look for .job files in")
+    private File spoolDir = null;
+
+    @Option(name = "--poll", usage = "seconds between checks of the spool directory")
+    private int pollSeconds = 5;
+
+    @Option(name = "--threads", aliases = { "-t" }, usage = "number of runs at the same time")
+    private int threads = 1;
+
+    @Option(name = "--secret", usage = "file with the secret that requests on the port must start with, not readable by other users")
+    private File secretFile = null;
+
+    @Option(name = "--allow", usage = "driver class that may be run, can be repeated (default is those with scripts in bin)")
+    private List<String> allowed = null;
+
+    @Option(name = "--connections", usage = "most connections on the port at once, including those waiting for their run to finish")
+    private int maxConnections = 16;
+
+    public static final int REQUEST_TIMEOUT = 10000;
+    public static final int MAX_LINE_BYTES = 10000;
+    private static final int MAX_REQUEST_LINES = 1000;
+
+    private static final List<String> DEFAULT_ALLOWED = Arrays.asList(
+        "uk.ac.ebi.fgpt.sampletab.SampleTabBulkDriver",
+        "uk.ac.ebi.fgpt.sampletab.SampleTabStatus",
+        "uk.ac.ebi.fgpt.sampletab.SampleTabToLoadDriver",
+        "uk.ac.ebi.fgpt.sampletab.arrayexpress.MageTabCron",
+        "uk.ac.ebi.fgpt.sampletab.guixml.GUIXMLDriver",
+        "uk.ac.ebi.fgpt.sampletab.guixml.SampleTabFromGUIXML",
+        "uk.ac.ebi.fgpt.sampletab.imsr.IMSRTabcron",
+        "uk.ac.ebi.fgpt.sampletab.tools.AttributeSummary",
+        "uk.ac.ebi.fgpt.sampletab.tools.Matcher",
+        "uk.ac.ebi.fgpt.sampletab.tools.OntologySummary",
+        "uk.ac.ebi.fgpt.sampletab.tools.TaxonIndexDriver",
+        "uk.ac.ebi.fgpt.sampletab.tools.UnitSummary");
+
+    private ExecutorService pool = null;
+    //reads requests, so that slow clients don't hold up the threads that run drivers
+    private ExecutorService connections = null;
+    //closes the sockets of requests that take too long to arrive
+    private ScheduledExecutorService timeouts = null;
+    private byte[] secret = null;
+
+    private Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Thrown instead of exiting the JVM when a driver run by the daemon calls System.exit
+     */
+    private static class ExitException extends SecurityException {
+        private static final long serialVersionUID = -1858384563744133829L;
+
+        private final int status;
+
+        public ExitException(int status) {
+            super("System.exit("+status+") called by driver");
+            this.status = status;
+        }
+    }
+
+    /**
+     * Only installed once the daemon has started, after which nothing should end it but a signal.
+     */
+    private static class ExitTrap extends SecurityManager {
+        @Override
+        public void checkExit(int status) {
+            throw new ExitException(status);
+        }
+
+        @Override
+        public void checkPermission(Permission perm) {
+            //allow everything else
+        }
+
+        @Override
+        public void checkPermission(Permission perm, Object context) {
+            //allow everything else
+        }
+    }
+
+    public static void main(String[] args) {
+        new SampleTabDaemon().doMain(args);
+    }
+
+    @Override
+    protected void doMain(String[] args) {
+        super.doMain(args);
+
+        if (port <= 0 && spoolDir == null) {
+            log.error("At least one of --port and --spool must be given");
+            System.exit(1);
+            return;
+        }
+
+        if (allowed == null) {
+            allowed = DEFAULT_ALLOWED;
+        }
+
+        ServerSocket server = null;
+        if (port > 0) {
+            if (secretFile == null) {
+                log.error("--secret must be given with --port");
+                System.exit(1);
+                return;
+            }
+            try {
+                if (isReadableByOthers(secretFile)) {
+                    log.error(secretFile+" must not be readable by other users");
+                    System.exit(1);
+                    return;
+                }
+                secret = Files.toString(secretFile, Charsets.UTF_8).trim().getBytes(Charsets.UTF_8);
+            } catch (IOException e) {
+                log.error("Unable to read "+secretFile, e);
+                System.exit(1);
+                return;
+            }
+            if (secret.length == 0) {
+                log.error(secretFile+" is empty");
+                System.exit(1);
+                return;
+            }
+            try {
+                //only accept connections from this machine
+                server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+            } catch (IOException e) {
+                log.error("Unable to listen on port "+port, e);
+                System.exit(1);
+                return;
+            }
+        }
+
+        if (spoolDir != null) {
+            try {
+                if (isWritableByOthers(spoolDir)) {
+                    log.error(spoolDir+" must not be writable by other users");
+                    System.exit(1);
+                    return;
+                }
+            } catch (IOException e) {
+                log.error("Unable to check permissions of "+spoolDir, e);
+                System.exit(1);
+                return;
+            }
+        }
+
+        try {
+            System.setSecurityManager(new ExitTrap());
+        } catch (UnsupportedOperationException e) {
+            log.error("Unable to trap System.exit, start the JVM with -Djava.security.manager=allow", e);
+            System.exit(1);
+            return;
+        }
+        pool = Executors.newFixedThreadPool(Math.max(threads, 1));
+        //no queue, so that connections beyond the limit are refused rather than kept waiting
+        connections = new ThreadPoolExecutor(0, Math.max(maxConnections, 1), 60, TimeUnit.SECONDS, 
+            new SynchronousQueue<Runnable>());
+        timeouts = Executors.newSingleThreadScheduledExecutor();
+
+        if (spoolDir != null) {
+            Thread spoolThread = new Thread(new Runnable() {
+                public void run() {
+                    watchSpool();
+                }
+            }, "SampleTabDaemon-spool");
+            spoolThread.start();
+        }
+
+        if (server != null) {
+            listen(server);
+        }
+    }
+
+    private static Set<PosixFilePermission> getPermissions(File file) throws IOException {
+        return java.nio.file.Files.getPosixFilePermissions(file.toPath());
+    }
+
+    private static boolean isReadableByOthers(File file) throws IOException {
+        return getPermissions(file).contains(PosixFilePermission.OTHERS_READ);
+    }
+
+    private static boolean isWritableByOthers(File file) throws IOException {
+        return getPermissions(file).contains(PosixFilePermission.OTHERS_WRITE);
+    }
+
+    /**
+     * Runs the main method of a driver on this thread, and returns its exit code.
+     */
+    private int run(List<String> command) {
+        if (command.size() == 0) {
+            log.error("No class name given");
+            return 1;
+        }
+        String className = command.get(0);
+        if (!allowed.contains(className)) {
+            log.error("Not allowed to run "+className);
+            return 1;
+        }
+        String[] args = command.subList(1, command.size()).toArray(new String[command.size()-1]);
+        log.info("Starting "+className+" "+Arrays.toString(args));
+        long start = System.currentTimeMillis();
+        int status = 0;
+        try {
+            Method main = Class.forName(className).getMethod("main", String[].class);
+            main.invoke(null, (Object) args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof ExitException) {
+                status = ((ExitException) e.getCause()).status;
+            } else {
+                log.error("Problem running "+className, e.getCause());
+                status = 1;
+            }
+        } catch (ClassNotFoundException e) {
+            log.error("Unable to find "+className, e);
+            status = 1;
+        } catch (NoSuchMethodException e) {
+            log.error("Unable to find main method of "+className, e);
+            status = 1;
+        } catch (IllegalAccessException e) {
+            log.error("Unable to run main method of "+className, e);
+            status = 1;
+        }
+        log.info("Finished "+className+" with exit code "+status+" in "+(System.currentTimeMillis()-start)+"ms");
+        return status;
+    }
+
+    private void listen(ServerSocket server) {
+        log.info("Listening on port "+port);
+        while (true) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                log.error("Problem accepting connection", e);
+                continue;
+            }
+            try {
+                connections.submit(new Runnable() {
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.warn("Refused connection, already "+maxConnections+" open");
+                try {
+                    socket.close();
+                } catch (IOException e2) {
+                    //do nothing
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a line of at most the given number of bytes, not counting the end of line, so
+     * that a client can't fill the heap with one long line.
+     * 
+     * @return the line without its end, or null at the end of the stream
+     */
+    private static String readLine(InputStream in, int maxBytes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (bytes.size() == 0) {
+                    return null;
+                }
+                break;
+            }
+            if (bytes.size() >= maxBytes) {
+                throw new IOException("Request line longer than "+maxBytes+" bytes");
+            }
+            bytes.write(b);
+        }
+        String line = new String(bytes.toByteArray(), Charsets.UTF_8);
+        if (line.endsWith("\r")) {
+            line = line.substring(0, line.length()-1);
+        }
+        return line;
+    }
+
+    private void handle(final Socket socket) {
+        //the whole request has to arrive in time, not just each part of it, so close the
+        //socket when the time is up, which makes any read in progress fail
+        ScheduledFuture<?> timeout = timeouts.schedule(new Runnable() {
+            public void run() {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    //do nothing
+                }
+            }
+        }, REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            //room for the end of line, and any space around it as that is trimmed
+            String line = readLine(in, secret.length+2);
+            if (line == null || !MessageDigest.isEqual(secret, line.trim().getBytes(Charsets.UTF_8))) {
+                log.warn("Request without the secret refused");
+                return;
+            }
+            line = readLine(in, MAX_LINE_BYTES);
+            if (line == null) {
+                log.warn("Empty request");
+                return;
+            }
+            int count;
+            try {
+                count = Integer.parseInt(line.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Invalid request "+line);
+                return;
+            }
+            if (count < 0 || count > MAX_REQUEST_LINES) {
+                log.warn("Invalid request of "+count+" lines");
+                return;
+            }
+            final List<String> command = new ArrayList<String>();
+            for (int i = 0; i < count; i++) {
+                line = readLine(in, MAX_LINE_BYTES);
+                if (line == null) {
+                    log.warn("Incomplete request");
+                    return;
+                }
+                command.add(line);
+            }
+            //the run itself can take as long as it needs
+            if (!timeout.cancel(false)) {
+                log.warn("Request not complete within "+REQUEST_TIMEOUT+"ms");
+                return;
+            }
+
+            int status;
+            try {
+                status = pool.submit(new Callable<Integer>() {
+                    public Integer call() {
+                        return SampleTabDaemon.this.run(command);
+                    }
+                }).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.error("Interrupted waiting for "+command, e);
+                status = 1;
+            } catch (ExecutionException e) {
+                log.error("Problem running "+command, e.getCause());
+                status = 1;
+            }
+
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), Charsets.UTF_8);
+            writer.write(status+"\n");
+            writer.flush();
+        } catch (IOException e) {
+            if (timeout.isDone() && !timeout.isCancelled()) {
+                log.warn("Request not complete within "+REQUEST_TIMEOUT+"ms");
+            } else {
+                log.error("Problem handling request", e);
+            }
+        } finally {
+            timeout.cancel(false);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //do nothing
+            }
+        }
+    }
+
+    private void watchSpool() {
+        log.info("Watching "+spoolDir);
+        while (true) {
+            File[] jobs = spoolDir.listFiles();
+            if (jobs != null) {
+                Arrays.sort(jobs);
+                for (File job : jobs) {
+                    if (job.getName().endsWith(".job")) {
+                        runJob(job);
+                    }
+                }
+            }
+            try {
+                Thread.sleep(pollSeconds*1000L);
+            } catch (InterruptedException e) {
+                log.error("Interrupted watching "+spoolDir, e);
+                return;
+            }
+        }
+    }
+
+    private void runJob(File job) {
+        String base = job.getName().substring(0, job.getName().length()-".job".length());
+        //claim it first, so it is not picked up twice
+        final File running = new File(spoolDir, base+".running");
+        if (!job.renameTo(running)) {
+            log.warn("Unable to claim "+job);
+            return;
+        }
+        final File done = new File(spoolDir, base+".done");
+        final File exit = new File(spoolDir, base+".exit");
+        pool.submit(new Runnable() {
+            public void run() {
+                int status;
+                try {
+                    List<String> command = new ArrayList<String>();
+                    for (String line : Files.readLines(running, Charsets.UTF_8)) {
+                        if (line.length() > 0) {
+                            command.add(line);
+                        }
+                    }
+                    status = SampleTabDaemon.this.run(command);
+                } catch (IOException e) {
+                    log.error("Unable to read "+running, e);
+                    status = 1;
+                }
+                try {
+                    Files.write(status+"\n", exit, Charsets.UTF_8);
+                } catch (IOException e) {
+                    log.error("Unable to write "+exit, e);
+                }
+                if (!running.renameTo(done)) {
+                    log.warn("Unable to rename "+running+" to "+done);
+                }
+            }
+        });
+    }
+}
@@ -148,9 +148,9 @@ public class NCBIBiosampleRunnable implements Callable<Void> {
         //handle the organism
         Element organismElement = XMLUtils.getChildByName(description, "Organism");
         if (organismElement.attributeValue("taxonomy_id") == null) {
-	        sn.addAttribute(new OrganismAttribute(Corrector.cleanString(organismElement.attributeValue("taxonomy_name"))));
+	        sn.addAttribute(new OrganismAttribute(Corrector.cleanValue(organismElement.attributeValue("taxonomy_name"))));
         } else {
-            sn.addAttribute(new OrganismAttribute(Corrector.cleanString(organismElement.attributeValue("taxonomy_name")),
+            sn.addAttribute(new OrganismAttribute(Corrector.cleanValue(organismElement.attributeValue("taxonomy_name")),
                     st.msi.getOrAddTermSource(ncbitaxonomy),
                     Integer.parseInt(organismElement.attributeValue("taxonomy_id"))));
         	
@@ -163,14 +163,14 @@ public class NCBIBiosampleRunnable implements Callable<Void> {
                 type = attrElem.attributeValue("attribute_name");
             }
             String value = attrElem.getTextTrim();
-            sn.addAttribute(new CharacteristicAttribute(Corrector.cleanString(type), Corrector.cleanString(value)));
+            sn.addAttribute(new CharacteristicAttribute(Corrector.cleanValue(type), Corrector.cleanValue(value)));
         }
 
         //handle model and packages
         for (Element modelElem : XMLUtils.getChildrenByName(XMLUtils.getChildByName(sample, "Models"), "Model")) {
-            sn.addAttribute(new CommentAttribute(Corrector.cleanString("model"), Corrector.cleanString(modelElem.getTextTrim())));
+            sn.addAttribute(new CommentAttribute(Corrector.cleanValue("model"), Corrector.cleanValue(modelElem.getTextTrim())));
         }
-        sn.addAttribute(new CommentAttribute(Corrector.cleanString("package"), Corrector.cleanString(XMLUtils.getChildByName(sample, "Package").getTextTrim())));
+        sn.addAttribute(new CommentAttribute(Corrector.cleanValue("package"), Corrector.cleanValue(XMLUtils.getChildByName(sample, "Package").getTextTrim())));
         
         //TODO handle links
         
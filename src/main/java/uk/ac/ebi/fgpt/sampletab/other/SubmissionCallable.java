@@ -7,6 +7,8 @@ import uk.ac.ebi.fgpt.sampletab.utils.ConanUtils;
 import uk.ac.ebi.fgpt.sampletab.utils.FileUtils;
 import uk.ac.ebi.fgpt.sampletab.utils.SampleTabUtils;
 
+import com.google.common.io.Files;
+
 public class SubmissionCallable implements Callable<Void> {
 
     private final File inputFile;
@@ -29,6 +31,10 @@ public class SubmissionCallable implements Callable<Void> {
         if (targetFile.exists() && targetFile.lastModified() > inputFile.lastModified()) {
             return null;
         }
+        //don't copy identical content, as that would make everything downstream look out of date
+        if (targetFile.exists() && Files.equal(inputFile, targetFile)) {
+            return null;
+        }
         
         //copy the input over the target
         FileUtils.copy(inputFile, targetFile);
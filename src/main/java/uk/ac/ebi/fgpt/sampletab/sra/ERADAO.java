@@ -11,15 +11,20 @@ import java.util.Properties;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.datasource.DriverManagerDataSource;
 
+import uk.ac.ebi.fgpt.sampletab.utils.Retry;
+
 public class ERADAO {
 
     protected JdbcTemplate jdbcTemplate = null;
     
     private Logger log = LoggerFactory.getLogger(getClass());
+    
+    private static final Retry retry = Retry.forDatabase("ERADAO");
 
 	public ERADAO() {
 		// Auto-generated constructor stub
@@ -67,14 +72,14 @@ select * from cv_status;
 		String query = "SELECT UNIQUE(SUBMISSION_ID) FROM SAMPLE WHERE SUBMISSION_ID LIKE 'ER%' AND EGA_ID IS NULL AND BIOSAMPLE_AUTHORITY= 'N' " +
 				"AND STATUS_ID = 4 AND ((LAST_UPDATED BETWEEN ? AND ?) OR (FIRST_PUBLIC BETWEEN ? AND ?)) ORDER BY SUBMISSION_ID ASC";
 		
-		List<String> submissions = jdbcTemplate.queryForList(query, String.class, minDate, maxDate, minDate, maxDate);
+		List<String> submissions = queryForList(query, minDate, maxDate, minDate, maxDate);
 		
 		//also query for submissions with updated groups
 		
         log.info("Got "+submissions.size()+" submission ids");
         query = "SELECT UNIQUE(SUBMISSION_ID) FROM STUDY WHERE SUBMISSION_ID LIKE 'ER%' AND EGA_ID IS NULL " +
 				"AND STATUS_ID = 4 AND ((LAST_UPDATED BETWEEN ? AND ?) OR (FIRST_PUBLIC BETWEEN ? AND ?)) ORDER BY SUBMISSION_ID ASC";
-        for (String submission : jdbcTemplate.queryForList(query, String.class, minDate, maxDate, minDate, maxDate) ) {
+        for (String submission : queryForList(query, minDate, maxDate, minDate, maxDate) ) {
         	if (!submissions.contains(submission)) {
         		submissions.add(submission);
         	}
@@ -91,21 +96,25 @@ select * from cv_status;
 		String query = "SELECT UNIQUE(BIOSAMPLE_ID) FROM SAMPLE WHERE STATUS_ID > 4 AND BIOSAMPLE_ID LIKE 'SAME%' "
 				+ "AND EGA_ID IS NULL AND BIOSAMPLE_AUTHORITY= 'N' ORDER BY BIOSAMPLE_ID ASC";
         	
-		List<String> sampleIds = jdbcTemplate.queryForList(query, String.class);
+		List<String> sampleIds = queryForList(query);
         
         log.info("Got "+sampleIds.size()+" private sample ids");
 	
         return sampleIds;
 	}
 	
-	public boolean getBioSamplesAuthority(String biosampleAccession) {
-		String query = "SELECT BIOSAMPLE_AUTHORITY FROM SAMPLE WHERE BIOSAMPLE_ID = ? ";
-		String result = jdbcTemplate.queryForObject(query, new RowMapper<String>() {
+	public boolean getBioSamplesAuthority(final String biosampleAccession) {
+		final String query = "SELECT BIOSAMPLE_AUTHORITY FROM SAMPLE WHERE BIOSAMPLE_ID = ? ";
+		String result = retry.call(query, new Retry.DatabaseAttempt<String, DataAccessException>() {
+			public String attempt() throws DataAccessException {
+				return jdbcTemplate.queryForObject(query, new RowMapper<String>() {
 
-			@Override
-			public String mapRow(ResultSet rs, int rowNum) throws SQLException {
-				return rs.getString(1);
-			}}, biosampleAccession);
+					@Override
+					public String mapRow(ResultSet rs, int rowNum) throws SQLException {
+						return rs.getString(1);
+					}}, biosampleAccession);
+			}
+		});
 		if (result.equals("Y")) { 
 			return true;
 		} else if (result.equals("N")) {
@@ -114,4 +123,12 @@ select * from cv_status;
 			throw new IllegalArgumentException("Unrecongized BIOSAMPLE_AUTHORITY "+result);
 		}	
 	}	
+
+	private List<String> queryForList(final String query, final Object... args) {
+		return retry.call(query, new Retry.DatabaseAttempt<List<String>, DataAccessException>() {
+			public List<String> attempt() throws DataAccessException {
+				return jdbcTemplate.queryForList(query, String.class, args);
+			}
+		});
+	}
 }
@@ -0,0 +1,60 @@
+package uk.ac.ebi.fgpt.sampletab.tools;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.kohsuke.args4j.Argument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.ebi.fgpt.sampletab.AbstractDriver;
+import uk.ac.ebi.fgpt.sampletab.utils.TaxonIndex;
+import uk.ac.ebi.fgpt.sampletab.utils.TaxonUtils;
+
+/**
+ * Builds the local taxonomy index used by TaxonUtils from an unpacked taxdump.tar.gz, 
+ * from ftp://ftp.ncbi.nih.gov/pub/taxonomy/
+ * 
+ * Point the biosamples.taxonomy.index property at the output to use it.
+ */
+public class TaxonIndexDriver extends AbstractDriver {
+
+    @Argument(required = true, index = 0, metaVar = "TAXDUMP", usage = "directory with names.dmp and nodes.dmp")
+    protected File taxdump;
+
+    @Argument(required = true, index = 1, metaVar = "OUTPUT", usage = "index file to write")
+    protected File output;
+
+    private Logger log = LoggerFactory.getLogger(getClass());
+
+    public static void main(String[] args) {
+        new TaxonIndexDriver().doMain(args);
+    }
+
+    @Override
+    protected void doMain(String[] args) {
+        super.doMain(args);
+
+        //write to a temporary file, so a run using the old index never sees half of it
+        File temp = new File(output.getAbsoluteFile().getParentFile(), output.getName()+".tmp");
+        try {
+            TaxonIndex.build(taxdump, temp);
+        } catch (IOException e) {
+            log.error("Unable to build taxonomy index from "+taxdump, e);
+            temp.delete();
+            System.exit(1);
+            return;
+        }
+        if (output.exists() && !output.delete()) {
+            log.error("Unable to replace "+output);
+            System.exit(1);
+            return;
+        }
+        if (!temp.renameTo(output)) {
+            log.error("Unable to rename "+temp+" to "+output);
+            System.exit(1);
+            return;
+        }
+        log.info("Set "+TaxonUtils.INDEX_PROPERTY+"="+output.getAbsolutePath()+" to use it");
+    }
+}
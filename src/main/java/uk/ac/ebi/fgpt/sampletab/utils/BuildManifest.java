@@ -0,0 +1,180 @@
+package uk.ac.ebi.fgpt.sampletab.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Records, for each stage that builds a file in a submission directory, digests of what
+ * went into it and of what came out of it.
+ *
+ * A stage is up to date if every recorded input digest is unchanged and the output still
+ * has the recorded digest. This is independent of modification times, so copying or
+ * syncing files that have not changed does not cause them to be rebuilt.
+ *
+ * The manifest is stored as a properties file in the submission directory.
+ */
+public class BuildManifest {
+
+    public static final String FILENAME = "sampletab.manifest";
+
+    private static final String INPUT = ".input.";
+    private static final String OUTPUT = ".output";
+
+    private final File file;
+    private final Properties properties = new Properties();
+
+    public BuildManifest(File subdir) throws IOException {
+        this.file = new File(subdir, FILENAME);
+        if (file.exists()) {
+            InputStream is = null;
+            try {
+                is = new FileInputStream(file);
+                properties.load(is);
+            } finally {
+                if (is != null) {
+                    try {
+                        is.close();
+                    } catch (IOException e) {
+                        //do nothing
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Has this stage ever been recorded in the manifest?
+     */
+    public boolean hasStage(String stage) {
+        return properties.containsKey(stage+OUTPUT);
+    }
+
+    /**
+     * Compares the current inputs and output of a stage against what was recorded.
+     *
+     * @return null if the stage is up to date, otherwise a description of what changed
+     */
+    public String whyStale(String stage, Map<String, String> inputs, File output) throws IOException {
+        if (!hasStage(stage)) {
+            return "no manifest record for "+stage;
+        }
+        for (String key : inputs.keySet()) {
+            String recorded = properties.getProperty(stage+INPUT+key);
+            if (recorded == null) {
+                return "no recorded digest of "+key;
+            } else if (!recorded.equals(inputs.get(key))) {
+                return key+" has changed";
+            }
+        }
+        //make sure no inputs have been dropped since it was recorded
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(stage+INPUT) && !inputs.containsKey(name.substring((stage+INPUT).length()))) {
+                return "recorded input "+name.substring((stage+INPUT).length())+" is no longer used";
+            }
+        }
+        if (!output.exists()) {
+            return output.getName()+" does not exist";
+        }
+        if (!properties.getProperty(stage+OUTPUT).equals(digest(output))) {
+            return output.getName()+" has been modified since it was built";
+        }
+        return null;
+    }
+
+    /**
+     * Stores the inputs and the current output of a stage, replacing anything previously
+     * recorded for it, and writes the manifest to disk.
+     */
+    public synchronized void record(String stage, Map<String, String> inputs, File output) throws IOException {
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(stage+INPUT)) {
+                properties.remove(name);
+            }
+        }
+        for (String key : inputs.keySet()) {
+            properties.setProperty(stage+INPUT+key, inputs.get(key));
+        }
+        properties.setProperty(stage+OUTPUT, digest(output));
+        save();
+    }
+
+    /**
+     * Removes everything recorded for a stage, so the next run falls back to comparing
+     * modification times, and writes the manifest to disk.
+     */
+    public synchronized void forget(String stage) throws IOException {
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(stage+INPUT) || name.equals(stage+OUTPUT)) {
+                properties.remove(name);
+            }
+        }
+        save();
+    }
+
+    private void save() throws IOException {
+        //write to a temporary file and then move it, so a crash never leaves a partial manifest
+        File tempFile = new File(file.getParentFile(), FILENAME+".tmp");
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(tempFile);
+            properties.store(os, "digests of the inputs and outputs of each build stage");
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    //do nothing
+                }
+            }
+        }
+        java.nio.file.Files.move(tempFile.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static String digest(File file) throws IOException {
+        return Files.hash(file, Hashing.sha1()).toString();
+    }
+
+    public static String digest(String value) {
+        if (value == null) {
+            value = "";
+        }
+        return Hashing.sha1().hashUnencodedChars(value).toString();
+    }
+
+    /**
+     * Digest of a set of named values, independent of the order they were added in.
+     */
+    public static String digest(Map<String, String> values) {
+        SortedMap<String, String> sorted = new TreeMap<String, String>(values);
+        StringBuilder sb = new StringBuilder();
+        for (String key : sorted.keySet()) {
+            sb.append(key).append('\t').append(sorted.get(key)).append('\n');
+        }
+        return digest(sb.toString());
+    }
+
+    /**
+     * Version of this code, so that upgrading it causes everything to be rebuilt.
+     */
+    public static String getPipelineVersion() {
+        String version = BuildManifest.class.getPackage().getImplementationVersion();
+        if (version == null) {
+            //not running from a packaged jar
+            version = "development";
+        }
+        return version;
+    }
+}
@@ -9,6 +9,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
@@ -24,14 +25,72 @@ public class ENAUtils {
 
     private static Logger log = LoggerFactory.getLogger(ENAUtils.class);
     
+    //records are updated, so only keep them on disk for a short while
+    private static final PersistentCache.Source storedDocuments = PersistentCache.getInstance()
+        .getSource("ena.document", 2, TimeUnit.DAYS);
+    
+    //responses that are not records, such as for private or mistyped IDs
+    private static final NotFoundCache notRecords = new NotFoundCache("ena.document");
+    
     private static LoadingCache<String, Document> lookupDocument = CacheBuilder.newBuilder()
     .maximumSize(10000)
     .build(
         new CacheLoader<String, Document>() {
           public Document load(String id) throws DocumentException, MalformedURLException, IOException {
+              String stored = storedDocuments.get(id);
+              if (stored != null) {
+                  return XMLUtils.getDocument(stored);
+              }
+              String notRecord = notRecords.getIfPresent(id);
+              if (notRecord != null) {
+                  if (notRecord.startsWith("<")) {
+                      return XMLUtils.getDocument(notRecord);
+                  }
+                  throw new DocumentException(notRecord);
+              }
+              
               String urlstr = "http://www.ebi.ac.uk/ena/data/view/" + id + "&display=xml";
-              URL url = new URL(urlstr);
-              Document doc = XMLUtils.getDocument(url);
+              final URL url = new URL(urlstr);
+              Document doc;
+              try {
+                  //retry failures to connect and replies that aren't from ENA, such as a
+                  //maintenance page, but not replies saying there is no record
+                  doc = Retry.DEFAULT.call(urlstr, new Retry.Attempt<Document, Exception>() {
+                      public Document attempt() throws DocumentException, IOException {
+                          Document doc = XMLUtils.getDocument(url);
+                          if (doc.getRootElement() == null || !"ROOT".equals(doc.getRootElement().getName())) {
+                              throw new DocumentException("Unexpected response from "+url);
+                          }
+                          return doc;
+                      }
+                      
+                      public boolean isTransient(Exception e) {
+                          return HttpService.isTransient(e) || e instanceof DocumentException;
+                      }
+                  });
+              } catch (DocumentException e) {
+                  //not remembered, as it says nothing about whether there is a record
+                  throw e;
+              } catch (HttpService.StatusException e) {
+                  if (HttpService.isTransient(e)) {
+                      throw e;
+                  }
+                  notRecords.put(id, e.getMessage());
+                  throw new DocumentException(e.getMessage(), e);
+              } catch (IOException e) {
+                  throw e;
+              } catch (RuntimeException e) {
+                  throw e;
+              } catch (Exception e) {
+                  throw new RuntimeException("Unrecognised exception", e);
+              }
+              
+              if (doc.getRootElement() == null || doc.getRootElement().elements().isEmpty()) {
+                  //e.g. "entry is not found", which may change sooner than a record would
+                  notRecords.put(id, doc.asXML());
+              } else {
+                  storedDocuments.put(id, doc.asXML());
+              }
               return doc;
           }
         });
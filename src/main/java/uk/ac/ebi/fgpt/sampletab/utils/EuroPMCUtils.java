@@ -1,34 +1,168 @@
 package uk.ac.ebi.fgpt.sampletab.utils;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
 import org.dom4j.Element;
 
+import com.google.common.base.Joiner;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+
 
 public class EuroPMCUtils {
-    
-    
+
+    //number of PubMed IDs in each request, to keep URLs short enough
+    private static final int BATCH_SIZE = 100;
+
+    //titles of published papers don't change
+    private static final PersistentCache.Source storedTitles = PersistentCache.getInstance()
+        .getSource("europepmc.title", 90, TimeUnit.DAYS);
+    private static final NotFoundCache unknownIDs = new NotFoundCache("europepmc.title");
+
+    //the same papers are referenced by many submissions
+    private static LoadingCache<Integer, String> titles = CacheBuilder.newBuilder()
+        .maximumSize(10000)
+        .build(new CacheLoader<Integer, String>() {
+            public String load(Integer pubmed) throws DocumentException, IOException {
+                String title = fetchTitles(Collections.singleton(pubmed)).get(pubmed);
+                if (title == null) {
+                    throw new DocumentException("No title for PubMed ID "+pubmed);
+                }
+                return title;
+            }
+        });
+
     public static String getTitleByPUBMEDid(Integer pubmed) throws DocumentException, IOException {
-        URL url = new URL("http://www.ebi.ac.uk/europepmc/webservices/rest/search/query=ext_id:"+pubmed);
-        Document doc =  XMLUtils.getDocument(url);
-        
-        Element root = doc.getRootElement();
-        if (root == null) throw new DocumentException("root is null");
-        
-        Element resultList = XMLUtils.getChildByName(root, "resultList");
-        if (resultList == null) throw new DocumentException("resultList is null");
-        
-        Element result = XMLUtils.getChildByName(resultList, "result");
-        if (result == null) throw new DocumentException("result is null");
-        
-        Element title = XMLUtils.getChildByName(result, "title");
-        if (title == null) throw new DocumentException("title is null");
-        
-        return title.getTextTrim();
-        
+        try {
+            return titles.get(pubmed);
+        } catch (ExecutionException e) {
+            try {
+                throw e.getCause();
+            } catch (DocumentException e2) {
+                throw e2;
+            } catch (IOException e2) {
+                throw e2;
+            } catch (Throwable e2) {
+                throw new RuntimeException("Unrecognised ExecutionException", e2);
+            }
+        }
+    }
+
+    /**
+     * As {@link #getTitleByPUBMEDid(Integer)} for many papers at once. Those that are not
+     * already cached are looked up with one request per {@value #BATCH_SIZE}, rather than one each.
+     *
+     * @return the title of each paper that could be found
+     */
+    public static Map<Integer, String> getTitlesByPUBMEDids(Collection<Integer> pubmeds) throws DocumentException, IOException {
+        Map<Integer, String> found = new HashMap<Integer, String>(titles.getAllPresent(pubmeds));
+        List<Integer> missing = new ArrayList<Integer>();
+        for (Integer pubmed : new LinkedHashSet<Integer>(pubmeds)) {
+            if (pubmed != null && !found.containsKey(pubmed)) {
+                missing.add(pubmed);
+            }
+        }
+        Map<Integer, String> fetched = fetchTitles(missing);
+        titles.putAll(fetched);
+        found.putAll(fetched);
+        return found;
+    }
+
+    /**
+     * Titles from the persistent cache, or else from EuropePMC.
+     */
+    private static Map<Integer, String> fetchTitles(Collection<Integer> pubmeds) throws DocumentException, IOException {
+        Map<Integer, String> found = new HashMap<Integer, String>();
+        List<Integer> missing = new ArrayList<Integer>();
+        for (Integer pubmed : pubmeds) {
+            String stored = storedTitles.get(pubmed.toString());
+            if (stored != null) {
+                found.put(pubmed, stored);
+            } else if (unknownIDs.getIfPresent(pubmed.toString()) == null) {
+                missing.add(pubmed);
+            }
+        }
+
+        for (List<Integer> batch : Lists.partition(missing, BATCH_SIZE)) {
+            List<String> query = new ArrayList<String>();
+            for (Integer pubmed : batch) {
+                query.add("ext_id:"+pubmed);
+            }
+            String urlstr;
+            try {
+                urlstr = "http://www.ebi.ac.uk/europepmc/webservices/rest/search?format=xml&resultType=lite"
+                    + "&pageSize="+batch.size()
+                    + "&query="+URLEncoder.encode("src:MED AND ("+Joiner.on(" OR ").join(query)+")", "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+            final URL url = new URL(urlstr);
+            Document doc;
+            try {
+                doc = Retry.DEFAULT.call(urlstr, new Retry.Attempt<Document, Exception>() {
+                    public Document attempt() throws DocumentException, IOException {
+                        return XMLUtils.getDocument(url);
+                    }
+
+                    public boolean isTransient(Exception e) {
+                        return HttpService.isTransient(e);
+                    }
+                });
+            } catch (DocumentException e) {
+                throw e;
+            } catch (IOException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("Unrecognised exception", e);
+            }
+
+            Element root = doc.getRootElement();
+            if (root == null) throw new DocumentException("root is null");
+
+            Element resultList = XMLUtils.getChildByName(root, "resultList");
+            if (resultList == null) throw new DocumentException("resultList is null");
+
+            for (Element result : XMLUtils.getChildrenByName(resultList, "result")) {
+                Element pmid = XMLUtils.getChildByName(result, "pmid");
+                Element title = XMLUtils.getChildByName(result, "title");
+                if (pmid == null || title == null) {
+                    continue;
+                }
+                Integer pubmed;
+                try {
+                    pubmed = new Integer(pmid.getTextTrim());
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                storedTitles.put(pubmed.toString(), title.getTextTrim());
+                found.put(pubmed, title.getTextTrim());
+            }
+
+            for (Integer pubmed : batch) {
+                if (!found.containsKey(pubmed)) {
+                    unknownIDs.put(pubmed.toString(), "No title for PubMed ID "+pubmed);
+                }
+            }
+        }
+        return found;
     }
-    
+
 }
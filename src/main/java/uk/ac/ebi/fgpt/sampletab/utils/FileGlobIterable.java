@@ -6,6 +6,10 @@ public class FileGlobIterable extends FileRegexIterable {
     public FileGlobIterable(String glob){
         super(globToRegex(glob));
     }
+    
+    public FileGlobIterable(String glob, boolean sorted, int parallelism){
+        super(globToRegex(glob), sorted, parallelism);
+    }
 
     public static String globToRegex(String glob) {
         StringBuilder sb = new StringBuilder(glob.length());
@@ -20,6 +24,19 @@ public class FileGlobIterable extends FileRegexIterable {
                 case '?':
                     sb.append("\\?");
                     break;
+                //anything else that means something in a regular expression is literal in a glob
+                case '+':
+                case '(':
+                case ')':
+                case '[':
+                case ']':
+                case '{':
+                case '}':
+                case '^':
+                case '$':
+                case '|':
+                    sb.append('\\').append(currentChar);
+                    break;
                 default:
                     sb.append(currentChar);
                     break;
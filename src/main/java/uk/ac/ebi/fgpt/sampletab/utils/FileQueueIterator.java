@@ -0,0 +1,114 @@
+package uk.ac.ebi.fgpt.sampletab.utils;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Iterator over files that are found by a {@link Producer} running on a background thread.
+ *
+ * The files are handed over through a bounded queue, so the producer will wait if the
+ * consumer falls behind. hasNext() blocks until either another file is available or the
+ * producer has finished; it does not poll.
+ */
+public class FileQueueIterator implements Iterator<File> {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    //marker put on the end of the queue by the producer thread when it finishes
+    private static final File END = new File("");
+
+    private final BlockingQueue<File> filequeue;
+    private final Thread thread;
+
+    private File nextFile = null;
+    private boolean finished = false;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Something that puts files onto a queue. Called once, on its own thread.
+     */
+    public interface Producer {
+        public void produce(BlockingQueue<File> filequeue) throws Exception;
+    }
+
+    public FileQueueIterator(String name, Producer producer) {
+        this(name, producer, DEFAULT_CAPACITY);
+    }
+
+    public FileQueueIterator(String name, Producer producer, int capacity) {
+        filequeue = new ArrayBlockingQueue<File>(capacity);
+        thread = new Thread(new ProducerRunnable(name, producer), "FileQueueIterator-"+name);
+        //don't keep the JVM alive if the consumer has stopped reading
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean hasNext() {
+        if (finished) {
+            return false;
+        }
+        if (nextFile == null) {
+            try {
+                nextFile = filequeue.take();
+            } catch (InterruptedException e) {
+                log.error("Interrupted waiting for queue to be non-empty");
+                thread.interrupt();
+                Thread.currentThread().interrupt();
+                finished = true;
+                return false;
+            }
+        }
+        if (nextFile == END) {
+            finished = true;
+            nextFile = null;
+            return false;
+        }
+        return true;
+    }
+
+    public File next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        File toReturn = nextFile;
+        nextFile = null;
+        return toReturn;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("FileQueueIterator.remove() not implemented");
+    }
+
+    private class ProducerRunnable implements Runnable {
+        private final String name;
+        private final Producer producer;
+
+        public ProducerRunnable(String name, Producer producer) {
+            this.name = name;
+            this.producer = producer;
+        }
+
+        public void run() {
+            try {
+                producer.produce(filequeue);
+            } catch (InterruptedException e) {
+                log.error("Interrupted while matching "+name, e);
+            } catch (Exception e) {
+                log.error("Problem while matching "+name, e);
+            } finally {
+                try {
+                    filequeue.put(END);
+                } catch (InterruptedException e) {
+                    log.error("Interrupted finishing matching "+name, e);
+                }
+            }
+        }
+    }
+}
@@ -1,21 +1,43 @@
 package uk.ac.ebi.fgpt.sampletab.utils;
 
 import java.io.File;
-import java.util.Arrays;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-
+/**
+ * Finds all files with a particular name under a starting directory.
+ *
+ * By default, the tree is walked on a single thread in sorted order. If unsorted output
+ * is acceptable, directories can be listed concurrently by a fork-join pool of the given
+ * parallelism, which is much faster on network filesystems.
+ */
 public class FileRecursiveIterable implements Iterable<File> {
 
     private final String name;
     private final File startfile;
-    
+    private final boolean sorted;
+    private final int parallelism;
+
     public FileRecursiveIterable(String name, File startfile){
+        this(name, startfile, true, 1);
+    }
+
+    public FileRecursiveIterable(String name, File startfile, boolean sorted, int parallelism){
         this.name = name;
         if (startfile == null){
             startfile =  new File(".");
@@ -23,120 +45,115 @@ public class FileRecursiveIterable implements Iterable<File> {
             startfile = startfile.getParentFile();
         }
         this.startfile = startfile;
+        this.sorted = sorted;
+        if (parallelism < 1) {
+            parallelism = 1;
+        }
+        this.parallelism = parallelism;
     }
 
     public Iterator<File> iterator() {
-        return new FileRecursiveIterator(name, startfile);
+        return new FileQueueIterator(name, new FileRecursiveProducer());
     }
-    
-    private class FileRecursiveIterator implements Iterator<File> {
-    
-        private final BlockingQueue<File> filequeue = new LinkedBlockingQueue<File>();
-        private final Thread thread;
-        
-        private final Logger log = LoggerFactory.getLogger(getClass());
-    
-        
-        public FileRecursiveIterator(String name, File startfile){
-            thread = new Thread(new FileRecursiveRunnable(name, startfile, filequeue));
-            thread.start();
+
+    private static final Comparator<Path> nameComparator = new Comparator<Path>() {
+        public int compare(Path a, Path b) {
+            return a.getFileName().toString().compareTo(b.getFileName().toString());
         }
-        
-        public boolean hasNext() {
-            while (thread.isAlive()) {
-                
-                if (!filequeue.isEmpty()) {
-                    return true;
-                }
-                
+    };
+
+    private class FileRecursiveProducer implements FileQueueIterator.Producer {
+
+        private final Logger log = LoggerFactory.getLogger(getClass());
+
+        public void produce(BlockingQueue<File> filequeue) throws InterruptedException {
+            Path start = startfile.toPath().toAbsolutePath();
+            if (sorted || parallelism == 1) {
+                getRecursiveFiles(start, filequeue);
+            } else {
+                ForkJoinPool pool = new ForkJoinPool(parallelism);
                 try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                    log.error("Interrupted waiting for queue to be non-empty");
-                    thread.interrupt();
-                    return false;
+                    pool.invoke(new DirectoryAction(start, filequeue));
+                } finally {
+                    pool.shutdown();
                 }
             }
-            if (filequeue.isEmpty()) {
-                //can only guarantee no more files when thread is dead and list is empty
-                return false;
-            } else {
-                return true;
-            }
         }
-    
-        public File next() {
-            while (thread.isAlive()) {
-                if (!filequeue.isEmpty()) {
-                    try {
-                        return filequeue.take();
-                    } catch (InterruptedException e) {
-                        log.error("Interupted taking item from queue", e);
-                        return null;
-                    }
-                }
-                
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                    log.error("Interrupted waiting for queue to be non-empty");
-                    thread.interrupt();
-                    return null;
-                }
+
+        private void getRecursiveFiles(Path dir, BlockingQueue<File> filequeue) throws InterruptedException {
+            List<Path> subdirs = new ArrayList<Path>();
+            List<Path> matches = new ArrayList<Path>();
+            listDirectory(dir, subdirs, matches);
+
+            //visit in the same order as a sorted File.listFiles()
+            List<Path> children = new ArrayList<Path>(subdirs.size()+matches.size());
+            children.addAll(subdirs);
+            children.addAll(matches);
+            if (sorted) {
+                Collections.sort(children, nameComparator);
             }
-            if (filequeue.isEmpty()) {
-                //can only guarantee no more files when thread is dead and list is empty
-                return null;
-            } else {
-                try {
-                    return filequeue.take();
-                } catch (InterruptedException e) {
-                    log.error("Interupted taking item from queue", e);
-                    return null;
+            Set<Path> matchSet = new HashSet<Path>(matches);
+            for (Path child : children) {
+                if (matchSet.contains(child)) {
+                    filequeue.put(child.toFile());
+                } else {
+                    getRecursiveFiles(child, filequeue);
                 }
             }
         }
-    
-        public void remove() {
-            throw new RuntimeException("GlobIterator.remove() not implemented");
+
+        /**
+         * Lists a single directory, splitting its contents into sub-directories to descend into
+         * and regular files with the name being looked for.
+         */
+        private void listDirectory(Path dir, List<Path> subdirs, List<Path> matches) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path child : stream) {
+                    //descend into all directories, but only keep regular files with the right name
+                    if (Files.isDirectory(child)) {
+                        subdirs.add(child);
+                    } else if (name.equals(child.getFileName().toString()) && Files.isRegularFile(child)) {
+                        matches.add(child);
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("Unable to list "+dir, e);
+            }
         }
-        
-        private class FileRecursiveRunnable implements Runnable {
-            private final String name;
-            private final File startfile;
+
+        private class DirectoryAction extends RecursiveAction {
+            private static final long serialVersionUID = 3937389617151880442L;
+
+            private final Path dir;
             private final BlockingQueue<File> filequeue;
-            
-            private final Logger log = LoggerFactory.getLogger(getClass());
-    
-            public FileRecursiveRunnable(String name, File startfile, BlockingQueue<File> filequeue) {
-                this.name = name;
-                this.startfile = startfile;
+
+            public DirectoryAction(Path dir, BlockingQueue<File> filequeue) {
+                this.dir = dir;
                 this.filequeue = filequeue;
             }
-    
-            public void run() {
-                try {
-                    getRecursiveFiles(startfile);
-                } catch (InterruptedException e) {
-                    log.error("Interrupted while matching "+name, e);
-                } 
-            }
-            
-            private void getRecursiveFiles(File startfile) throws InterruptedException {
-                File[] subfiles = startfile.listFiles();
-                if (subfiles != null && subfiles.length > 0) {
-                    Arrays.sort(subfiles);
-                    for (File testfile : subfiles){
-                        if (testfile.isDirectory()) {
-                            getRecursiveFiles(testfile);
-                        } else if (testfile.isFile()) {
-                            if (name.equals(testfile.getName())){
-                               filequeue.put(testfile.getAbsoluteFile()); 
-                            }
-                        }
+
+            @Override
+            protected void compute() {
+                List<Path> subdirs = new ArrayList<Path>();
+                List<Path> matches = new ArrayList<Path>();
+                listDirectory(dir, subdirs, matches);
+
+                for (Path match : matches) {
+                    try {
+                        filequeue.put(match.toFile());
+                    } catch (InterruptedException e) {
+                        log.error("Interrupted while matching "+name, e);
+                        Thread.currentThread().interrupt();
+                        return;
                     }
                 }
+
+                List<DirectoryAction> actions = new ArrayList<DirectoryAction>(subdirs.size());
+                for (Path subdir : subdirs) {
+                    actions.add(new DirectoryAction(subdir, filequeue));
+                }
+                invokeAll(actions);
             }
         }
     }
-}
\ No newline at end of file
+}
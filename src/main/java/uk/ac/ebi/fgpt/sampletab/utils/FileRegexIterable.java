@@ -1,152 +1,254 @@
 package uk.ac.ebi.fgpt.sampletab.utils;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-
+/**
+ * Finds all files whose path matches a regular expression, one path element at a time.
+ *
+ * Each element of the path is compiled once. Elements without any regular expression
+ * characters are looked up directly rather than listing their parent directory, so
+ * matching starts from the longest literal prefix rather than from the filesystem root.
+ * If unsorted output is acceptable, directories can be listed concurrently by a fork-join
+ * pool of the given parallelism.
+ */
 public class FileRegexIterable implements Iterable<File> {
 
     private final String regex;
-    
+    private final boolean sorted;
+    private final int parallelism;
+
     public FileRegexIterable(String regex){
+        this(regex, true, 1);
+    }
+
+    public FileRegexIterable(String regex, boolean sorted, int parallelism){
         this.regex = regex;
+        this.sorted = sorted;
+        if (parallelism < 1) {
+            parallelism = 1;
+        }
+        this.parallelism = parallelism;
     }
 
     public Iterator<File> iterator() {
-        return new FileRegexIterator(regex);
+        return new FileQueueIterator(regex, new FileRegexProducer());
     }
-    
-    private class FileRegexIterator implements Iterator<File> {
-    
-        private final BlockingQueue<File> filequeue = new LinkedBlockingQueue<File>();
-        private final Thread thread;
-        
-        private final Logger log = LoggerFactory.getLogger(getClass());
-    
-        
-        public FileRegexIterator(String regex){
-            thread = new Thread(new FileRegexRunnable(regex, filequeue));
-            thread.start();
-        }
-        
-        public boolean hasNext() {
-            while (thread.isAlive()) {
-                
-                if (!filequeue.isEmpty()) {
-                    return true;
-                }
-                
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                    log.error("Interrupted waiting for queue to be non-empty");
-                    thread.interrupt();
-                    return false;
-                }
+
+    /**
+     * One element of the path, either a literal name or a compiled pattern.
+     */
+    private static class Segment {
+        private final String literal;
+        private final Pattern pattern;
+
+        public Segment(String regexPart) {
+            this.literal = literalOf(regexPart);
+            if (literal == null) {
+                pattern = Pattern.compile(regexPart);
+            } else {
+                pattern = null;
             }
-            if (filequeue.isEmpty()) {
-                //can only guarantee no more files when thread is dead and list is empty
-                return false;
+        }
+
+        public boolean isLiteral() {
+            return literal != null;
+        }
+
+        public boolean matches(String name) {
+            if (literal != null) {
+                return literal.equals(name);
             } else {
-                return true;
+                return pattern.matcher(name).matches();
             }
         }
-    
-        public File next() {
-            try {
-                return filequeue.take();
-            } catch (InterruptedException e) {
-                log.error("Interupted taking item from queue", e);
+    }
+
+    /**
+     * Returns the plain string that a regular expression matches, or null if it could
+     * match more than one string.
+     */
+    protected static String literalOf(String regexPart) {
+        StringBuilder sb = new StringBuilder(regexPart.length());
+        for (int i = 0; i < regexPart.length(); i++) {
+            char c = regexPart.charAt(i);
+            if (c == '\\') {
+                i++;
+                if (i >= regexPart.length()) {
+                    return null;
+                }
+                char escaped = regexPart.charAt(i);
+                //escaped letters and digits are character classes or back references
+                if (Character.isLetterOrDigit(escaped)) {
+                    return null;
+                }
+                sb.append(escaped);
+            } else if (".[]{}()*+?^$|".indexOf(c) >= 0) {
                 return null;
+            } else {
+                sb.append(c);
             }
         }
-    
-        public void remove() {
-            throw new RuntimeException("GlobIterator.remove() not implemented");
-        }
-        
-        private class FileRegexRunnable implements Runnable {
-            private final BlockingQueue<File> filequeue;
-            private final String regex;
-            
-            private final Logger log = LoggerFactory.getLogger(getClass());
-    
-            public FileRegexRunnable(String regex, BlockingQueue<File> filequeue){
-                this.regex = regex;
-                this.filequeue = filequeue;
+        return sb.toString();
+    }
+
+    private class FileRegexProducer implements FileQueueIterator.Producer {
+
+        private final Logger log = LoggerFactory.getLogger(getClass());
+
+        public void produce(BlockingQueue<File> filequeue) throws InterruptedException {
+            log.debug("regex = " + regex);
+
+            //split the expression into its path elements
+            //relative expressions are relative to the current directory, which is literal
+            File regfile = new File(regex);
+            File base;
+            List<Segment> segments = new ArrayList<Segment>();
+            if (regfile.isAbsolute()) {
+                base = regfile;
+                while (base.getParentFile() != null) {
+                    base = base.getParentFile();
+                }
+            } else {
+                base = new File(".").getAbsoluteFile().getParentFile();
             }
-    
-            public void run() {
+            File totest = regfile;
+            while (totest != null && totest.getName().length() > 0) {
+                segments.add(0, new Segment(totest.getName()));
+                totest = totest.getParentFile();
+            }
+
+            //jump directly to the end of the literal prefix
+            int start = 0;
+            while (start < segments.size()-1 && segments.get(start).isLiteral()) {
+                base = new File(base, segments.get(start).literal);
+                start++;
+            }
+            log.debug("starting from "+base+" with "+(segments.size()-start)+" elements to match");
+
+            if (!base.isDirectory()) {
+                return;
+            }
+            if (segments.size() == 0) {
+                filequeue.put(base);
+            } else if (sorted || parallelism == 1) {
+                lookIn(base.toPath(), segments, start, filequeue);
+            } else {
+                ForkJoinPool pool = new ForkJoinPool(parallelism);
                 try {
-                    addMatchesRegex(null);
-                } catch (InterruptedException e) {
-                    log.error("Interrupted while matching "+regex, e);
-                } 
-            }
-            
-            public void addMatchesRegex(File startfile) throws InterruptedException {
-                log.debug("regex = " + regex);
-                
-                File regfile;
-                if (startfile == null){
-                    regfile = new File(regex);
-                } else {
-                    regfile = new File(startfile, regex);
+                    pool.invoke(new DirectoryAction(base.toPath(), segments, start, filequeue));
+                } finally {
+                    pool.shutdown();
                 }
-                regfile = regfile.getAbsoluteFile();
-                List<String> regparts = new ArrayList<String>();
-                regparts.add(regfile.getName());
-                File totest = regfile;
-                while (totest.getParentFile() != null) {
-                    totest = totest.getParentFile();
-                    regparts.add(0, totest.getName());
-                }
-                //trim root
-                if (regparts.get(0).equals("")){
-                    regparts = regparts.subList(1, regparts.size());
+            }
+        }
+
+        /**
+         * Finds the children of a directory that match a path element, and splits them into
+         * final matches and directories to look in for the next element.
+         */
+        private void listMatches(Path dir, List<Segment> segments, int index, List<File> matches, List<Path> subdirs) {
+            Segment segment = segments.get(index);
+            boolean last = (index == segments.size()-1);
+
+            if (segment.isLiteral()) {
+                Path child = dir.resolve(segment.literal);
+                if (last) {
+                    if (Files.exists(child)) {
+                        matches.add(child.toFile());
+                    }
+                } else if (Files.isDirectory(child)) {
+                    subdirs.add(child);
                 }
-                
-                log.debug("regparts= " + regparts);
-                
-                File root = regfile;
-                while (root.getParentFile() != null){
-                    root = root.getParentFile();
+                return;
+            }
+
+            List<Path> children = new ArrayList<Path>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path child : stream) {
+                    if (segment.matches(child.getFileName().toString())) {
+                        children.add(child);
+                    }
                 }
-                File[] subfiles = root.listFiles();
-                Arrays.sort(subfiles);
-                for (File subfile : subfiles) {
-                    lookAt(subfile, regparts);
+            } catch (IOException e) {
+                log.warn("Unable to list "+dir, e);
+                return;
+            }
+            if (sorted) {
+                Collections.sort(children);
+            }
+            for (Path child : children) {
+                if (last) {
+                    matches.add(child.toFile());
+                } else if (Files.isDirectory(child)) {
+                    subdirs.add(child);
                 }
             }
-    
-            private void lookAt(File tolook, List<String> regparts) throws InterruptedException{
-                log.debug("tolook : "+tolook);
-                log.debug("regparts.get(0) : "+regparts.get(0));
-                log.debug("matches : "+tolook.getName().matches(regparts.get(0)));
-                if (tolook.getName().matches(regparts.get(0))){
-                    if (regparts.size() == 1){
-                        filequeue.put(tolook);
-                    } else {
-                        log.debug("isDirectory() : "+tolook.isDirectory());
-                        log.debug("listFiles() : "+tolook.listFiles());
-                        if (tolook.isDirectory()) {
-                            File[] subfiles = tolook.listFiles();
-                            Arrays.sort(subfiles);
-                            for (File subfile : subfiles) {
-                                lookAt(subfile, regparts.subList(1, regparts.size()));
-                            }
-                        }
+        }
+
+        private void lookIn(Path dir, List<Segment> segments, int index, BlockingQueue<File> filequeue) throws InterruptedException {
+            List<File> matches = new ArrayList<File>();
+            List<Path> subdirs = new ArrayList<Path>();
+            listMatches(dir, segments, index, matches, subdirs);
+            for (File match : matches) {
+                filequeue.put(match);
+            }
+            for (Path subdir : subdirs) {
+                lookIn(subdir, segments, index+1, filequeue);
+            }
+        }
+
+        private class DirectoryAction extends RecursiveAction {
+            private static final long serialVersionUID = -4393427306040993307L;
+
+            private final Path dir;
+            private final List<Segment> segments;
+            private final int index;
+            private final BlockingQueue<File> filequeue;
+
+            public DirectoryAction(Path dir, List<Segment> segments, int index, BlockingQueue<File> filequeue) {
+                this.dir = dir;
+                this.segments = segments;
+                this.index = index;
+                this.filequeue = filequeue;
+            }
+
+            @Override
+            protected void compute() {
+                List<File> matches = new ArrayList<File>();
+                List<Path> subdirs = new ArrayList<Path>();
+                listMatches(dir, segments, index, matches, subdirs);
+
+                for (File match : matches) {
+                    try {
+                        filequeue.put(match);
+                    } catch (InterruptedException e) {
+                        log.error("Interrupted while matching "+regex, e);
+                        Thread.currentThread().interrupt();
+                        return;
                     }
                 }
+
+                List<DirectoryAction> actions = new ArrayList<DirectoryAction>(subdirs.size());
+                for (Path subdir : subdirs) {
+                    actions.add(new DirectoryAction(subdir, segments, index+1, filequeue));
+                }
+                invokeAll(actions);
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,350 @@
+package uk.ac.ebi.fgpt.sampletab.utils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Makes all HTTP GET requests to remote services, so that however many threads are doing
+ * lookups, each host is only sent as many requests per second as it allows.
+ *
+ * Each host has a token bucket of {@value #RATE_PROPERTY}.&lt;host&gt; requests per second,
+ * or {@value #DEFAULT_RATE_PROPERTY} if it has no rate of its own. NCBI E-utilities
+ * defaults to {@value #NCBI_RATE} as that is what it allows without an API key. Requests for
+ * a URL that is already being fetched wait for that response rather than fetching it again.
+ *
+ * Each host has its own queue, where requests wait for their turn before being given to the
+ * shared threads, and at most {@value #HOST_THREADS_PROPERTY} requests to a host are given to
+ * them at once, {@value #DEFAULT_HOST_THREADS} by default. So a burst of requests to a slow
+ * host leaves the rest of the {@value #THREADS_PROPERTY} threads for other hosts, as long as
+ * there are not too many slow hosts at the same time. Connecting and each read time out after
+ * {@value #TIMEOUT_PROPERTY} milliseconds.
+ */
+public class HttpService {
+    private static Logger log = LoggerFactory.getLogger(HttpService.class);
+
+    /**
+     * Prefix of system properties, or keys in sampletabconverters.properties, of the requests
+     * per second to send to a host, e.g. biosamples.http.rate.www.ebi.ac.uk=20
+     */
+    public static final String RATE_PROPERTY = "biosamples.http.rate";
+    public static final String DEFAULT_RATE_PROPERTY = "biosamples.http.rate.default";
+    public static final String THREADS_PROPERTY = "biosamples.http.threads";
+    public static final String HOST_THREADS_PROPERTY = "biosamples.http.host.threads";
+    public static final String TIMEOUT_PROPERTY = "biosamples.http.timeout";
+    public static final long DEFAULT_RATE = 20;
+    public static final long NCBI_RATE = 3;
+    public static final long DEFAULT_THREADS = 32;
+    public static final long DEFAULT_HOST_THREADS = 8;
+    public static final long DEFAULT_TIMEOUT = 30000;
+
+    private static final Map<String, Long> defaultRates = new HashMap<String, Long>();
+    static {
+        defaultRates.put("eutils.ncbi.nlm.nih.gov", NCBI_RATE);
+    }
+
+    private static volatile HttpService instance = null;
+
+    private final CloseableHttpClient httpClient;
+    private final ExecutorService executor;
+    private final int hostThreads;
+    private final Map<String, RateLimiter> rateLimiters = new ConcurrentHashMap<String, RateLimiter>();
+    private final Map<String, ExecutorService> hostQueues = new ConcurrentHashMap<String, ExecutorService>();
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<String, CompletableFuture<String>>();
+
+    public static HttpService getInstance() {
+        if (instance == null) {
+            synchronized (HttpService.class) {
+                if (instance == null) {
+                    instance = new HttpService((int) PersistentCache.getLongProperty(THREADS_PROPERTY, DEFAULT_THREADS),
+                        (int) PersistentCache.getLongProperty(HOST_THREADS_PROPERTY, DEFAULT_HOST_THREADS),
+                        (int) PersistentCache.getLongProperty(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT));
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Everything should normally share the one from {@link #getInstance()}, so that the rate
+     * limits apply to all the requests made by this JVM.
+     *
+     * @param hostThreads the most requests to one host that can be in progress at once
+     */
+    public HttpService(int threads, int hostThreads, int timeout) {
+        PoolingHttpClientConnectionManager conman = new PoolingHttpClientConnectionManager();
+        conman.setMaxTotal(128);
+        conman.setDefaultMaxPerRoute(64);
+        conman.setValidateAfterInactivity(0);
+
+        ConnectionKeepAliveStrategy keepAliveStrategy = new ConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                //see if the user provides a live time
+                HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+                while (it.hasNext()) {
+                    HeaderElement he = it.nextElement();
+                    String param = he.getName();
+                    String value = he.getValue();
+                    if (value != null && param.equalsIgnoreCase("timeout")) {
+                        return Long.parseLong(value) * 1000;
+                    }
+                }
+                //default to one second live time
+                return 1 * 1000;
+            }
+        };
+
+        //so that a host that stops responding doesn't hold a thread forever
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(timeout)
+            .setSocketTimeout(timeout)
+            .setConnectionRequestTimeout(timeout).build();
+
+        httpClient = HttpClients.custom()
+            .setKeepAliveStrategy(keepAliveStrategy)
+            .setDefaultRequestConfig(requestConfig)
+            .setConnectionManager(conman).build();
+
+        executor = Executors.newFixedThreadPool(threads, getThreadFactory("HttpService"));
+        this.hostThreads = Math.max(1, Math.min(hostThreads, threads));
+    }
+
+    /**
+     * Daemon threads, so that they don't keep finished programs running.
+     */
+    private static ThreadFactory getThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name+"-"+count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * The response had a status other than 2xx.
+     */
+    public static class StatusException extends IOException {
+        private static final long serialVersionUID = -3525404711562392042L;
+
+        private final int statusCode;
+
+        public StatusException(String url, int statusCode) {
+            super("HTTP status "+statusCode+" for "+url);
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+    }
+
+    /**
+     * Whether a request that failed with this might succeed if made again, i.e. it did not
+     * get a response at all, the server had an error, or it was asked to slow down.
+     */
+    public static boolean isTransient(Exception e) {
+        if (e instanceof StatusException) {
+            int status = ((StatusException) e).getStatusCode();
+            return status == 429 || status >= 500;
+        }
+        return e instanceof IOException;
+    }
+
+    /**
+     * @return the body of the response, which completes exceptionally with an IOException
+     * if it can't be got or has a status other than 2xx
+     */
+    public CompletableFuture<String> getAsync(final String url) {
+        CompletableFuture<String> future = inFlight.get(url);
+        if (future != null) {
+            return future;
+        }
+        CompletableFuture<String> created = new CompletableFuture<String>();
+        future = inFlight.putIfAbsent(url, created);
+        if (future != null) {
+            return future;
+        }
+        final CompletableFuture<String> result = created;
+        final Runnable fetch = new Runnable() {
+            public void run() {
+                String body = null;
+                Throwable failure = null;
+                try {
+                    body = fetch(url);
+                } catch (Throwable e) {
+                    failure = e;
+                }
+                //removed before anyone is told, so a request made after the response fetches it again
+                inFlight.remove(url, result);
+                if (failure == null) {
+                    result.complete(body);
+                } else {
+                    result.completeExceptionally(failure);
+                }
+            }
+        };
+
+        String host;
+        try {
+            host = new URI(url).getHost();
+        } catch (URISyntaxException e) {
+            inFlight.remove(url, result);
+            result.completeExceptionally(new IOException("Invalid URL "+url, e));
+            return result;
+        }
+        if (host == null) {
+            executor.execute(fetch);
+        } else {
+            //wait for permits in the queue of the host, not in one of the shared threads
+            final RateLimiter rateLimiter = getRateLimiter(host.toLowerCase());
+            final Semaphore permits = getHostPermits(host.toLowerCase());
+            getHostQueue(host.toLowerCase()).execute(new Runnable() {
+                public void run() {
+                    permits.acquireUninterruptibly();
+                    rateLimiter.acquire();
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                fetch.run();
+                            } finally {
+                                permits.release();
+                            }
+                        }
+                    });
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * As {@link #getAsync(String)}, waiting for the response.
+     */
+    public String get(String url) throws IOException {
+        try {
+            return getAsync(url).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted getting "+url, e);
+        } catch (ExecutionException e) {
+            try {
+                throw e.getCause();
+            } catch (IOException e2) {
+                throw e2;
+            } catch (RuntimeException e2) {
+                throw e2;
+            } catch (Throwable e2) {
+                throw new RuntimeException("Unrecognised ExecutionException", e2);
+            }
+        }
+    }
+
+    private String fetch(String url) throws IOException {
+        log.trace("Getting "+url);
+        HttpGet get = new HttpGet(url);
+        try (CloseableHttpResponse response = httpClient.execute(get)) {
+            int status = response.getStatusLine().getStatusCode();
+            if (status < 200 || status >= 300) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                throw new StatusException(url, status);
+            }
+            if (response.getEntity() == null) {
+                return "";
+            }
+            return EntityUtils.toString(response.getEntity(), Charsets.UTF_8);
+        }
+    }
+
+    private RateLimiter getRateLimiter(String host) {
+        RateLimiter rateLimiter = rateLimiters.get(host);
+        if (rateLimiter == null) {
+            synchronized (rateLimiters) {
+                rateLimiter = rateLimiters.get(host);
+                if (rateLimiter == null) {
+                    Long defaultRate = defaultRates.get(host);
+                    if (defaultRate == null) {
+                        defaultRate = PersistentCache.getLongProperty(DEFAULT_RATE_PROPERTY, DEFAULT_RATE);
+                    }
+                    long rate = PersistentCache.getLongProperty(RATE_PROPERTY+"."+host, defaultRate);
+                    log.debug("Limiting "+host+" to "+rate+" requests per second");
+                    //holds up to a second of unused permits, so short bursts are allowed
+                    rateLimiter = RateLimiter.create(rate);
+                    rateLimiters.put(host, rateLimiter);
+                }
+            }
+        }
+        return rateLimiter;
+    }
+
+    /**
+     * @return the permits for requests to the host to be in progress, one per shared thread
+     * it may use
+     */
+    private Semaphore getHostPermits(String host) {
+        Semaphore permits = hostPermits.get(host);
+        if (permits == null) {
+            synchronized (hostPermits) {
+                permits = hostPermits.get(host);
+                if (permits == null) {
+                    permits = new Semaphore(hostThreads);
+                    hostPermits.put(host, permits);
+                }
+            }
+        }
+        return permits;
+    }
+
+    /**
+     * @return the single thread that hands requests to the host on to the shared threads,
+     * in the order they were made, as the rate limit of the host allows
+     */
+    private ExecutorService getHostQueue(String host) {
+        ExecutorService hostQueue = hostQueues.get(host);
+        if (hostQueue == null) {
+            synchronized (hostQueues) {
+                hostQueue = hostQueues.get(host);
+                if (hostQueue == null) {
+                    hostQueue = Executors.newSingleThreadExecutor(getThreadFactory("HttpService-"+host));
+                    hostQueues.put(host, hostQueue);
+                }
+            }
+        }
+        return hostQueue;
+    }
+}
@@ -0,0 +1,66 @@
+package uk.ac.ebi.fgpt.sampletab.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Remembers keys that a remote lookup definitely could not resolve, such as species names
+ * that are not in the taxonomy, so that they are not asked for again for every sample
+ * that uses them. Only for answers that the remote service actually gave; failures that
+ * might not happen again, such as timeouts, should not be put here.
+ *
+ * Entries are kept in memory and in the {@link PersistentCache} for {@value #TTL_PROPERTY}
+ * hours, {@value #DEFAULT_TTL} by default, which is shorter than the positive results are
+ * kept for as things that don't exist yet are more likely to be added.
+ */
+public class NotFoundCache {
+
+    /**
+     * System property, or key in sampletabconverters.properties, of the number of hours to
+     * remember that something could not be found.
+     */
+    public static final String TTL_PROPERTY = "biosamples.cache.notfound.ttl";
+    public static final long DEFAULT_TTL = 24;
+
+    private final Cache<String, String> cache;
+    private final PersistentCache.Source stored;
+
+    /**
+     * @param name identifies these keys in the persistent cache
+     */
+    public NotFoundCache(String name) {
+        long ttl = PersistentCache.getLongProperty(TTL_PROPERTY, DEFAULT_TTL);
+        cache = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(ttl, TimeUnit.HOURS)
+            .build();
+        stored = PersistentCache.getInstance().getSource("notfound."+name, ttl, TimeUnit.HOURS);
+    }
+
+    /**
+     * @return why the key could not be found, or null if it might be
+     */
+    public String getIfPresent(String key) {
+        String reason = cache.getIfPresent(key);
+        if (reason == null) {
+            reason = stored.get(key);
+            if (reason != null) {
+                cache.put(key, reason);
+            }
+        }
+        return reason;
+    }
+
+    /**
+     * @param reason why the key could not be found, e.g. the message of the exception
+     */
+    public void put(String key, String reason) {
+        if (reason == null) {
+            reason = "";
+        }
+        cache.put(key, reason);
+        stored.put(key, reason);
+    }
+}
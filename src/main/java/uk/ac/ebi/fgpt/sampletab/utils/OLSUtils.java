@@ -8,25 +8,12 @@ import java.util.Iterator;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.http.HeaderElement;
-import org.apache.http.HeaderElementIterator;
-import org.apache.http.HttpResponse;
-import org.apache.http.conn.ConnectionKeepAliveStrategy;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import org.apache.http.message.BasicHeaderElementIterator;
-import org.apache.http.protocol.HTTP;
-import org.apache.http.protocol.HttpContext;
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
-import org.springframework.web.client.RestTemplate;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -36,70 +23,64 @@ public class OLSUtils {
 
 	private static Logger log = LoggerFactory.getLogger(OLSUtils.class);
 
-	private static RestTemplate restTemplate = new RestTemplate();
-	
-	//make the rest template use a pool of http connections
-	static{
-    	PoolingHttpClientConnectionManager conman = new PoolingHttpClientConnectionManager();
-    	conman.setMaxTotal(128);
-    	conman.setDefaultMaxPerRoute(64);
-    	conman.setValidateAfterInactivity(0);
-    	
-    	ConnectionKeepAliveStrategy keepAliveStrategy = new ConnectionKeepAliveStrategy() {
-            @Override
-            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
-            	//see if the user provides a live time
-                HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
-                while (it.hasNext()) {
-                    HeaderElement he = it.nextElement();
-                    String param = he.getName();
-                    String value = he.getValue();
-                    if (value != null && param.equalsIgnoreCase("timeout")) {
-                        return Long.parseLong(value) * 1000;
-                    }
-                }
-                //default to one second live time 
-                return 1 * 1000;
-            }
-        };
-    	
-    	CloseableHttpClient httpClient = HttpClients.custom()
-    			.setKeepAliveStrategy(keepAliveStrategy)
-    			.setConnectionManager(conman).build();
-    	
-		restTemplate.setRequestFactory(new HttpComponentsClientHttpRequestFactory(httpClient));
-	}
-
 	private static ObjectMapper mapper = new ObjectMapper();
 
+	//responses with exactly one IRI
+	private static final PersistentCache.Source storedTerms = PersistentCache.getInstance()
+		.getSource("ols.terms", 7, TimeUnit.DAYS);
+	//responses with no IRIs, or more than one as the short form is in more than one ontology
+	private static final NotFoundCache unresolvedTerms = new NotFoundCache("ols.terms.unresolved");
+
 	private static LoadingCache<String, Optional<URI>> guessedURIs = CacheBuilder.newBuilder()
 		.maximumSize(1000)
 		.build(new CacheLoader<String, Optional<URI>>() {
 			public Optional<URI> load(String shortTerm) throws IOException, URISyntaxException, TooManyIRIsException {
-				String queryUrl = "https://www.ebi.ac.uk/ols/api/terms?short_form=" + shortTerm;
-				ResponseEntity<String> response = restTemplate.getForEntity(queryUrl, String.class);
-				if (!response.getStatusCode().equals(HttpStatus.OK)) {
-					throw new IOException("Problem getting HTTP response " + response.getStatusCode());
+				boolean fetched = false;
+				String body = storedTerms.get(shortTerm);
+				if (body == null) {
+					body = unresolvedTerms.getIfPresent(shortTerm);
+				}
+				if (body == null) {
+					final String queryUrl = "https://www.ebi.ac.uk/ols/api/terms?short_form=" + shortTerm;
+					body = Retry.DEFAULT.call(queryUrl, new Retry.Attempt<String, IOException>() {
+						public String attempt() throws IOException {
+							return HttpService.getInstance().get(queryUrl);
+						}
+
+						public boolean isTransient(Exception e) {
+							return HttpService.isTransient(e);
+						}
+					});
+					fetched = true;
 				}
 	
-				JsonNode root = mapper.readTree(response.getBody());
+				JsonNode root = mapper.readTree(body);
 				log.trace("root " + root);
 				log.trace("_embedded " + root.path("_embedded"));
 				log.trace("terms " + root.path("_embedded").path("terms"));
 	
-				if (!root.path("_embedded").path("terms").isContainerNode()) {
-					//no matches
-					return Optional.empty();
-				}
-	
 				Set<URI> iris = new HashSet<>();
-				Iterator<JsonNode> termIterator = root.path("_embedded").path("terms").getElements();
-				while (termIterator.hasNext()) {
-					JsonNode term = termIterator.next();
-					iris.add(new URI(term.path("iri").asText()));
+				if (root.path("_embedded").path("terms").isContainerNode()) {
+					Iterator<JsonNode> termIterator = root.path("_embedded").path("terms").getElements();
+					while (termIterator.hasNext()) {
+						JsonNode term = termIterator.next();
+						iris.add(new URI(term.path("iri").asText()));
+					}
 				}
 	
-				if (iris.size() == 1) {
+				//only keep a match for as long as a match, as terms may be added
+				if (fetched) {
+					if (iris.size() == 1) {
+						storedTerms.put(shortTerm, body);
+					} else {
+						unresolvedTerms.put(shortTerm, body);
+					}
+				}
+
+				if (iris.size() == 0) {
+					//no matches
+					return Optional.empty();
+				} else if (iris.size() == 1) {
 					return Optional.ofNullable(iris.iterator().next());
 				} else {
 					throw new TooManyIRIsException("" + shortTerm + " has " + iris.size() + " IRIs");
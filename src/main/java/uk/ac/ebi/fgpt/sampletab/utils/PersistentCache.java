@@ -0,0 +1,714 @@
+package uk.ac.ebi.fgpt.sampletab.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Keeps the responses of remote lookups on disk between runs, so that daily jobs
+ * don't have to fetch the same taxa, ENA records, terms and papers every time.
+ *
+ * Each kind of lookup has its own {@link Source}, with its own time to live. Values are
+ * strings, typically the text of the response, and are appended to a segment file of
+ * the directory given by {@value #DIR_PROPERTY}. Each process writes its own segment, so
+ * several jobs can share the directory. When a process starts, and whenever the segment it
+ * writes to has grown enough that it starts another, if the segments are larger than
+ * {@value #SIZE_PROPERTY} megabytes or there are too many of them, the values that have not
+ * expired are rewritten into one segment, dropping the oldest if there are still too many.
+ * So a process that runs for a long time, such as the daemon, stays within the size too.
+ *
+ * If no directory is configured, or it can't be used, every lookup misses and nothing is kept.
+ */
+public class PersistentCache {
+    private static Logger log = LoggerFactory.getLogger(PersistentCache.class);
+
+    /**
+     * System property, or key in sampletabconverters.properties, of the directory to keep values in.
+     */
+    public static final String DIR_PROPERTY = "biosamples.cache.dir";
+    /**
+     * System property, or key in sampletabconverters.properties, of the size in megabytes
+     * to keep the directory to. Defaults to {@value #DEFAULT_SIZE}.
+     */
+    public static final String SIZE_PROPERTY = "biosamples.cache.size";
+    public static final long DEFAULT_SIZE = 1024;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String COMPACT_LOCK = "compact.lock";
+    //compact when there are more segments than this, as each is read on startup
+    private static final int MAX_SEGMENTS = 16;
+    //a process starts a new segment once its own is this fraction of the size
+    private static final double SEGMENT_FRACTION = 1.0 / MAX_SEGMENTS;
+    //after compaction the values kept should fill no more than this fraction of the size
+    private static final double COMPACTED_FRACTION = 0.75;
+
+    private static volatile PersistentCache instance = null;
+
+    private final File dir;
+    private final long maxSize;
+
+    private final Map<String, Source> sources = new ConcurrentHashMap<String, Source>();
+    //latest location of each value, by source and key, replaced whenever the segments are compacted
+    private volatile Map<String, Location> locations = new ConcurrentHashMap<String, Location>();
+    private final List<Segment> segments = new ArrayList<Segment>();
+    //the segment this process appends to, created when the first value is put
+    private Segment output = null;
+
+    /**
+     * @return the cache configured by {@value #DIR_PROPERTY}, which is never null but may be disabled
+     */
+    public static PersistentCache getInstance() {
+        if (instance == null) {
+            synchronized (PersistentCache.class) {
+                if (instance == null) {
+                    instance = load();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @return the system property, or else the key in sampletabconverters.properties, 
+     * trimmed, or null if neither is set
+     */
+    public static String getProperty(String key) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            InputStream is = PersistentCache.class.getResourceAsStream("/sampletabconverters.properties");
+            if (is != null) {
+                Properties properties = new Properties();
+                try {
+                    properties.load(is);
+                    value = properties.getProperty(key);
+                } catch (IOException e) {
+                    log.error("Unable to read resource sampletabconverters.properties", e);
+                } finally {
+                    try {
+                        is.close();
+                    } catch (IOException e) {
+                        //do nothing
+                    }
+                }
+            }
+        }
+        if (value == null || value.trim().length() == 0) {
+            return null;
+        }
+        return value.trim();
+    }
+
+    /**
+     * @return the property parsed as a number, or the default if it is not set or not a number
+     */
+    public static long getLongProperty(String key, long defaultValue) {
+        String value = getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            log.warn("Unable to parse "+key+" of "+value+", using "+defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static PersistentCache load() {
+        String path = getProperty(DIR_PROPERTY);
+        if (path == null) {
+            return new PersistentCache(null, 0);
+        }
+        long size = getLongProperty(SIZE_PROPERTY, DEFAULT_SIZE);
+        final PersistentCache cache;
+        try {
+            cache = open(new File(path), size*1024*1024);
+        } catch (IOException e) {
+            log.warn("Unable to open cache directory "+path+", will not cache lookups between runs", e);
+            return new PersistentCache(null, 0);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                log.info(cache.getStatistics());
+                cache.close();
+            }
+        });
+        return cache;
+    }
+
+    /**
+     * Opens the cache kept in the directory, creating it if needed.
+     *
+     * @param maxSize size in bytes to keep the directory to
+     */
+    public static PersistentCache open(File dir, long maxSize) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create "+dir);
+        }
+        if (!dir.isDirectory()) {
+            throw new IOException(dir+" is not a directory");
+        }
+        PersistentCache cache = new PersistentCache(dir, maxSize);
+        cache.readSegments();
+        return cache;
+    }
+
+    private PersistentCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+    /**
+     * The values of one kind of lookup.
+     *
+     * @param name identifies these values in the cache, so must be the same from run to run
+     * @param ttl how long values stay valid for after they are put
+     */
+    public Source getSource(String name, long ttl, TimeUnit unit) {
+        Source source = sources.get(name);
+        if (source == null) {
+            synchronized (sources) {
+                source = sources.get(name);
+                if (source == null) {
+                    source = new Source(name, unit.toMillis(ttl));
+                    sources.put(name, source);
+                }
+            }
+        }
+        return source;
+    }
+
+    public class Source {
+        private final String name;
+        private final long ttl;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong expired = new AtomicLong();
+        private final AtomicLong puts = new AtomicLong();
+
+        private Source(String name, long ttl) {
+            this.name = name;
+            this.ttl = ttl;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the value put for the key, or null if there isn't one or it has expired
+         */
+        public String get(String key) {
+            if (!isEnabled()) {
+                misses.incrementAndGet();
+                return null;
+            }
+            Location location = locations.get(getIndexKey(name, key));
+            if (location == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            if (location.expires < System.currentTimeMillis()) {
+                expired.incrementAndGet();
+                return null;
+            }
+            Record record = read(location);
+            if (record == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return record.value;
+        }
+
+        public void put(String key, String value) {
+            if (!isEnabled() || value == null) {
+                return;
+            }
+            puts.incrementAndGet();
+            long now = System.currentTimeMillis();
+            write(new Record(name, key, now, now + ttl, value));
+        }
+
+        public long getHitCount() {
+            return hits.get();
+        }
+
+        public long getMissCount() {
+            return misses.get();
+        }
+
+        public long getExpiredCount() {
+            return expired.get();
+        }
+
+        public long getPutCount() {
+            return puts.get();
+        }
+
+        public String toString() {
+            return name+": "+hits+" hits, "+misses+" misses, "+expired+" expired, "+puts+" puts";
+        }
+    }
+
+    /**
+     * @return the hits and misses of each source since the cache was opened
+     */
+    public String getStatistics() {
+        List<String> names = new ArrayList<String>(sources.keySet());
+        Collections.sort(names);
+        StringBuilder sb = new StringBuilder("Persistent cache ");
+        sb.append(dir).append(", ").append(locations.size()).append(" values");
+        for (String name : names) {
+            sb.append("; ").append(sources.get(name));
+        }
+        return sb.toString();
+    }
+
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        locations.clear();
+        output = null;
+    }
+
+    private static String getIndexKey(String source, String key) {
+        return source+"\u0000"+key;
+    }
+
+    private static class Record {
+        private final String source;
+        private final String key;
+        private final long time;
+        private final long expires;
+        private final String value;
+
+        private Record(String source, String key, long time, long expires, String value) {
+            this.source = source;
+            this.key = key;
+            this.time = time;
+            this.expires = expires;
+            this.value = value;
+        }
+
+        /**
+         * The record as length, contents and checksum, so that one partly written
+         * when a process died can be recognised.
+         */
+        private byte[] toBytes() throws IOException {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(contents);
+            out.writeUTF(source);
+            out.writeUTF(key);
+            out.writeLong(time);
+            out.writeLong(expires);
+            byte[] valueBytes = value.getBytes(Charsets.UTF_8);
+            out.writeInt(valueBytes.length);
+            out.write(valueBytes);
+            out.flush();
+            byte[] bytes = contents.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+
+            ByteBuffer buffer = ByteBuffer.allocate(bytes.length+12);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+            buffer.putLong(crc.getValue());
+            return buffer.array();
+        }
+
+        private static Record fromBytes(byte[] bytes) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            String source = in.readUTF();
+            String key = in.readUTF();
+            long time = in.readLong();
+            long expires = in.readLong();
+            byte[] valueBytes = new byte[in.readInt()];
+            in.readFully(valueBytes);
+            return new Record(source, key, time, expires, new String(valueBytes, Charsets.UTF_8));
+        }
+    }
+
+    private static class Segment {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        //only held on the segment this process writes to
+        private FileLock lock = null;
+
+        private Segment(File file, boolean write) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, write ? "rw" : "r");
+            this.channel = raf.getChannel();
+            if (write) {
+                lock = channel.lock();
+            }
+        }
+
+        /**
+         * Stops writing to the segment, so that it can be compacted, but it can still be read.
+         */
+        private void unlock() throws IOException {
+            if (lock != null) {
+                lock.release();
+                lock = null;
+            }
+        }
+
+        private void close() {
+            try {
+                unlock();
+                raf.close();
+            } catch (IOException e) {
+                //do nothing
+            }
+        }
+
+        /**
+         * @return the record at the position, or null if it was not completely written
+         */
+        private byte[] readRecord(long position) throws IOException {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            if (!readFully(length, position)) {
+                return null;
+            }
+            int size = length.getInt(0);
+            if (size < 0 || position+size+12 > channel.size()) {
+                return null;
+            }
+            ByteBuffer contents = ByteBuffer.allocate(size+8);
+            if (!readFully(contents, position+4)) {
+                return null;
+            }
+            byte[] bytes = new byte[size];
+            contents.rewind();
+            contents.get(bytes);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            if (crc.getValue() != contents.getLong()) {
+                return null;
+            }
+            return bytes;
+        }
+
+        private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position+buffer.position());
+                if (read < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Location {
+        private final Segment segment;
+        private final long position;
+        private final long time;
+        private final long expires;
+
+        private Location(Segment segment, long position, long time, long expires) {
+            this.segment = segment;
+            this.position = position;
+            this.time = time;
+            this.expires = expires;
+        }
+    }
+
+    private Record read(Location location) {
+        try {
+            byte[] bytes = location.segment.readRecord(location.position);
+            if (bytes == null) {
+                return null;
+            }
+            return Record.fromBytes(bytes);
+        } catch (ClosedChannelException e) {
+            //compacted while being read
+            return null;
+        } catch (IOException e) {
+            log.warn("Unable to read from "+location.segment.file, e);
+            return null;
+        }
+    }
+
+    private synchronized void write(Record record) {
+        try {
+            if (output == null) {
+                output = new Segment(newSegmentFile(), true);
+                segments.add(output);
+            }
+            byte[] bytes = record.toBytes();
+            long position = output.channel.size();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                output.channel.write(buffer, position+buffer.position());
+            }
+            locations.put(getIndexKey(record.source, record.key),
+                new Location(output, position, record.time, record.expires));
+            if (position + bytes.length > maxSize * SEGMENT_FRACTION) {
+                roll();
+            }
+        } catch (IOException e) {
+            //keys longer than writeUTF allows end up here too
+            log.warn("Unable to write "+record.key+" of "+record.source+" to "+dir, e);
+        }
+    }
+
+    private File newSegmentFile() {
+        //named so that they sort in the order they were created
+        return new File(dir, String.format("%013d-%s%s", System.currentTimeMillis(),
+            UUID.randomUUID(), SEGMENT_SUFFIX));
+    }
+
+    private File[] listSegmentFiles() {
+        File[] files = dir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private boolean isTooBig(File[] files) {
+        long totalSize = 0;
+        for (File file : files) {
+            totalSize += file.length();
+        }
+        return totalSize > maxSize || files.length > MAX_SEGMENTS;
+    }
+
+    private synchronized void readSegments() throws IOException {
+        File[] files = listSegmentFiles();
+        if (isTooBig(files)) {
+            compact(files);
+            files = listSegmentFiles();
+        }
+        locations = index(files);
+    }
+
+    /**
+     * Finishes the segment this process writes to, so the next value put starts another, and
+     * compacts the segments if they have got too big. Otherwise a process that runs for days
+     * would never drop anything, from the directory or from memory.
+     */
+    private void roll() throws IOException {
+        output.unlock();
+        output = null;
+        File[] files = listSegmentFiles();
+        if (!isTooBig(files)) {
+            return;
+        }
+        compact(files);
+
+        //read the segments again, as the values may have moved and some have been dropped
+        List<Segment> previous = new ArrayList<Segment>(segments);
+        segments.clear();
+        locations = index(listSegmentFiles());
+        //so that the space of those deleted is freed
+        for (Segment segment : previous) {
+            segment.close();
+        }
+    }
+
+    /**
+     * Opens the segments, and finds the latest value of each key in them.
+     */
+    private Map<String, Location> index(File[] files) throws IOException {
+        Map<String, Location> indexed = new ConcurrentHashMap<String, Location>();
+        for (File file : files) {
+            Segment segment;
+            try {
+                segment = new Segment(file, false);
+            } catch (IOException e) {
+                //compacted away by another process since being listed
+                log.debug("Unable to open "+file, e);
+                continue;
+            }
+            segments.add(segment);
+            long position = 0;
+            long size = segment.channel.size();
+            while (position < size) {
+                byte[] bytes = segment.readRecord(position);
+                if (bytes == null) {
+                    //the rest is still being written, or was left by a process that died
+                    break;
+                }
+                Record record = Record.fromBytes(bytes);
+                String indexKey = getIndexKey(record.source, record.key);
+                Location previous = indexed.get(indexKey);
+                if (previous == null || previous.time <= record.time) {
+                    indexed.put(indexKey, new Location(segment, position, record.time, record.expires));
+                }
+                position += bytes.length+12;
+            }
+        }
+        return indexed;
+    }
+
+    /**
+     * Rewrites the latest values of the segments into one, unless another process is
+     * already doing so. Segments that are still being written to are left alone.
+     */
+    private void compact(File[] files) throws IOException {
+        RandomAccessFile lockFile = new RandomAccessFile(new File(dir, COMPACT_LOCK), "rw");
+        try {
+            FileLock lock;
+            try {
+                lock = lockFile.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                return;
+            }
+            try {
+                compactLocked(files);
+            } finally {
+                lock.release();
+            }
+        } finally {
+            try {
+                lockFile.close();
+            } catch (IOException e) {
+                //do nothing
+            }
+        }
+    }
+
+    private void compactLocked(File[] files) throws IOException {
+        List<File> compacted = new ArrayList<File>();
+        //in the order they were written
+        Map<String, Record> latest = new LinkedHashMap<String, Record>();
+        for (File file : files) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileLock lock;
+                try {
+                    lock = raf.getChannel().tryLock();
+                } catch (OverlappingFileLockException e) {
+                    lock = null;
+                }
+                if (lock == null) {
+                    //another process is writing to it
+                    continue;
+                }
+                try {
+                    Segment segment = new Segment(file, false);
+                    try {
+                        long position = 0;
+                        long size = segment.channel.size();
+                        while (position < size) {
+                            byte[] bytes = segment.readRecord(position);
+                            if (bytes == null) {
+                                break;
+                            }
+                            Record record = Record.fromBytes(bytes);
+                            String indexKey = getIndexKey(record.source, record.key);
+                            Record previous = latest.get(indexKey);
+                            if (previous == null || previous.time <= record.time) {
+                                latest.remove(indexKey);
+                                latest.put(indexKey, record);
+                            }
+                            position += bytes.length+12;
+                        }
+                    } finally {
+                        segment.close();
+                    }
+                    compacted.add(file);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    //do nothing
+                }
+            }
+        }
+        if (compacted.size() == 0) {
+            return;
+        }
+
+        //newest first, dropping those that have expired and those that don't fit
+        List<Record> records = new ArrayList<Record>(latest.values());
+        Collections.reverse(records);
+        Collections.sort(records, new Comparator<Record>() {
+            public int compare(Record a, Record b) {
+                return Long.compare(b.time, a.time);
+            }
+        });
+        long budget = (long) (maxSize * COMPACTED_FRACTION);
+        long now = System.currentTimeMillis();
+        File tmp = new File(dir, "compacting.tmp");
+        File target = newSegmentFile();
+        long written = 0;
+        int kept = 0;
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            out.setLength(0);
+            for (Record record : records) {
+                if (record.expires < now) {
+                    continue;
+                }
+                byte[] bytes = record.toBytes();
+                if (written + bytes.length > budget) {
+                    break;
+                }
+                out.write(bytes);
+                written += bytes.length;
+                kept++;
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("Unable to rename "+tmp+" to "+target);
+        }
+        for (File file : compacted) {
+            file.delete();
+        }
+        log.info("Compacted "+compacted.size()+" segments of "+dir+" to "+kept+" values");
+    }
+}
@@ -0,0 +1,298 @@
+package uk.ac.ebi.fgpt.sampletab.utils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timings and counts for each stage of a pipeline, plus the slowest submissions processed.
+ *
+ * Latencies are kept as a histogram with power-of-two millisecond buckets, so recording is
+ * cheap and thread-safe, and percentiles are reported as the upper bound of their bucket.
+ */
+public class PipelineMetrics implements PipelineMetricsMBean {
+
+    private static final int BUCKETS = 32;
+    private static final int SLOWEST = 20;
+
+    private final long startTime = System.nanoTime();
+
+    private final Map<String, StageStats> stages = new LinkedHashMap<String, StageStats>();
+
+    private final AtomicLong submissions = new AtomicLong(0);
+    private final AtomicLong skipped = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private final AtomicLong samples = new AtomicLong(0);
+
+    //smallest at the head, so it can be dropped when a slower one arrives
+    private final PriorityQueue<Submission> slowest = new PriorityQueue<Submission>(SLOWEST+1, new Comparator<Submission>() {
+        public int compare(Submission a, Submission b) {
+            return Long.compare(a.nanos, b.nanos);
+        }
+    });
+
+    //name these are registered with JMX as, if they are
+    private ObjectName objectName = null;
+    //which metrics are registered with each name, so that replaced ones don't unregister
+    private static final Map<ObjectName, PipelineMetrics> registered = new HashMap<ObjectName, PipelineMetrics>();
+
+    private Logger log = LoggerFactory.getLogger(getClass());
+
+    private static class StageStats {
+        private final AtomicLong count = new AtomicLong(0);
+        private final AtomicLong totalNanos = new AtomicLong(0);
+        private final AtomicLong maxNanos = new AtomicLong(0);
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        public void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+            buckets.incrementAndGet(bucketOf(nanos));
+        }
+
+        /**
+         * Upper bound, in milliseconds, of the bucket that the given fraction of timings fall in.
+         */
+        public long percentile(double fraction) {
+            long max = TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+            long target = (long) Math.ceil(count.get() * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= target && seen > 0) {
+                    return Math.min(1L << i, max);
+                }
+            }
+            return max;
+        }
+
+        public String getSummary(String name) {
+            long n = count.get();
+            long mean = 0;
+            if (n > 0) {
+                mean = TimeUnit.NANOSECONDS.toMillis(totalNanos.get() / n);
+            }
+            return name+": count="+n
+                +" total="+TimeUnit.NANOSECONDS.toSeconds(totalNanos.get())+"s"
+                +" mean="+mean+"ms"
+                +" p50<="+percentile(0.5)+"ms"
+                +" p90<="+percentile(0.9)+"ms"
+                +" p99<="+percentile(0.99)+"ms"
+                +" max="+TimeUnit.NANOSECONDS.toMillis(maxNanos.get())+"ms";
+        }
+    }
+
+    private static int bucketOf(long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        //bucket i holds timings less than 2^i ms
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, BUCKETS-1);
+    }
+
+    private static class Submission {
+        private final String id;
+        private final int samples;
+        private final long nanos;
+
+        public Submission(String id, int samples, long nanos) {
+            this.id = id;
+            this.samples = samples;
+            this.nanos = nanos;
+        }
+
+        public String toString() {
+            return id+": "+TimeUnit.NANOSECONDS.toMillis(nanos)+"ms for "+samples+" samples";
+        }
+    }
+
+    private synchronized StageStats getStage(String stage) {
+        StageStats stats = stages.get(stage);
+        if (stats == null) {
+            stats = new StageStats();
+            stages.put(stage, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Records the time taken by one run of a stage, from a start time given by System.nanoTime().
+     */
+    public void recordStage(String stage, long startNanos) {
+        getStage(stage).record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records a submission that was processed, from a start time given by System.nanoTime().
+     */
+    public void recordSubmission(String id, int sampleCount, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        submissions.incrementAndGet();
+        samples.addAndGet(sampleCount);
+        getStage("submission").record(nanos);
+        synchronized (slowest) {
+            slowest.add(new Submission(id, sampleCount, nanos));
+            if (slowest.size() > SLOWEST) {
+                slowest.poll();
+            }
+        }
+    }
+
+    public void recordSkipped() {
+        skipped.incrementAndGet();
+    }
+
+    public void recordFailed() {
+        failed.incrementAndGet();
+    }
+
+    public long getSubmissionCount() {
+        return submissions.get();
+    }
+
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getSampleCount() {
+        return samples.get();
+    }
+
+    public double getSamplesPerSecond() {
+        double seconds = (System.nanoTime() - startTime) / 1000000000.0;
+        if (seconds <= 0.0) {
+            return 0.0;
+        }
+        return samples.get() / seconds;
+    }
+
+    public synchronized String[] getStageSummaries() {
+        List<String> summaries = new ArrayList<String>();
+        for (String stage : stages.keySet()) {
+            summaries.add(stages.get(stage).getSummary(stage));
+        }
+        return summaries.toArray(new String[summaries.size()]);
+    }
+
+    public String[] getSlowestSubmissions() {
+        List<Submission> sorted;
+        synchronized (slowest) {
+            sorted = new ArrayList<Submission>(slowest);
+        }
+        Collections.sort(sorted, Collections.reverseOrder(slowest.comparator()));
+        List<String> summaries = new ArrayList<String>();
+        for (Submission submission : sorted) {
+            summaries.add(submission.toString());
+        }
+        return summaries.toArray(new String[summaries.size()]);
+    }
+
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Elapsed: ").append(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startTime)).append("s\n");
+        sb.append("Submissions processed: ").append(getSubmissionCount()).append("\n");
+        sb.append("Submissions skipped: ").append(getSkippedCount()).append("\n");
+        sb.append("Submissions failed: ").append(getFailedCount()).append("\n");
+        sb.append("Samples processed: ").append(getSampleCount()).append("\n");
+        sb.append("Samples per second: ").append(String.format("%.2f", getSamplesPerSecond())).append("\n");
+        sb.append("\nStages:\n");
+        for (String summary : getStageSummaries()) {
+            sb.append(summary).append("\n");
+        }
+        sb.append("\nSlowest submissions:\n");
+        for (String summary : getSlowestSubmissions()) {
+            sb.append(summary).append("\n");
+        }
+        return sb.toString();
+    }
+
+    public void writeSummary(File file) throws IOException {
+        Writer writer = null;
+        try {
+            writer = new FileWriter(file);
+            writer.write(getSummary());
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    //do nothing
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes these metrics visible over JMX, in place of any already registered with the same
+     * name, e.g. by an earlier run in the same JVM. Failure to do so is logged but otherwise
+     * ignored.
+     */
+    public void register(String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        synchronized (registered) {
+            try {
+                ObjectName newName = new ObjectName("uk.ac.ebi.fgpt.sampletab:type=PipelineMetrics,name="+name);
+                if (server.isRegistered(newName)) {
+                    server.unregisterMBean(newName);
+                }
+                server.registerMBean(this, newName);
+                registered.put(newName, this);
+                objectName = newName;
+            } catch (JMException e) {
+                log.warn("Unable to register metrics "+name+" with JMX", e);
+            }
+        }
+    }
+
+    /**
+     * Stops these metrics being visible over JMX, if they were registered.
+     */
+    public void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        synchronized (registered) {
+            if (objectName == null) {
+                return;
+            }
+            //unless replaced by other metrics with the same name
+            if (registered.get(objectName) == this) {
+                registered.remove(objectName);
+                try {
+                    server.unregisterMBean(objectName);
+                } catch (InstanceNotFoundException e) {
+                    //do nothing
+                } catch (JMException e) {
+                    log.warn("Unable to unregister metrics "+objectName+" from JMX", e);
+                }
+            }
+            objectName = null;
+        }
+    }
+}
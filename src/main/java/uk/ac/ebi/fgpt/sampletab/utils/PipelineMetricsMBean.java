@@ -0,0 +1,21 @@
+package uk.ac.ebi.fgpt.sampletab.utils;
+
+/**
+ * JMX view of {@link PipelineMetrics}.
+ */
+public interface PipelineMetricsMBean {
+
+    public long getSubmissionCount();
+
+    public long getSkippedCount();
+
+    public long getFailedCount();
+
+    public long getSampleCount();
+
+    public double getSamplesPerSecond();
+
+    public String[] getStageSummaries();
+
+    public String[] getSlowestSubmissions();
+}
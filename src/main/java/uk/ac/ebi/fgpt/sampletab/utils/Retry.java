@@ -0,0 +1,267 @@
+package uk.ac.ebi.fgpt.sampletab.utils;
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+
+/**
+ * Tries remote calls again when they fail in a way that might not happen the next time,
+ * such as a dropped connection or an overloaded server, waiting longer after each failure.
+ *
+ * Optionally has a circuit breaker: after a number of transient failures in a row, calls
+ * fail straight away with an {@link OpenException} for a while rather than every thread
+ * waiting on something that is down. After that, one call is let through as a trial, and
+ * the breaker closes again if it gets an answer.
+ */
+public class Retry implements RetryMBean {
+    private static Logger log = LoggerFactory.getLogger(Retry.class);
+
+    /**
+     * Three attempts, one and then two seconds apart.
+     */
+    public static final Retry DEFAULT = new Retry(3, 1000);
+
+    private final String name;
+    private final int attempts;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final int breakerThreshold;
+    private final long breakerDelay;
+    private final Random random = new Random();
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+    //zero while the breaker is closed, otherwise when it will allow a trial call
+    private volatile long openUntil = 0;
+    private final AtomicBoolean trialRunning = new AtomicBoolean(false);
+
+    private final AtomicLong calls = new AtomicLong(0);
+    private final AtomicLong retries = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+    private final AtomicLong trips = new AtomicLong(0);
+    private final AtomicLong rejections = new AtomicLong(0);
+
+    /**
+     * @param attempts how many times to try, including the first
+     * @param initialDelay milliseconds to wait after the first failure, doubled after each one after that
+     */
+    public Retry(int attempts, long initialDelay) {
+        this(null, attempts, initialDelay, Long.MAX_VALUE, 0, 0);
+    }
+
+    /**
+     * @param name identifies this over JMX, or null to not register it
+     * @param attempts how many times to try, including the first
+     * @param initialDelay milliseconds to wait after the first failure, doubled after each one after that
+     * @param maxDelay most milliseconds to wait between attempts
+     * @param breakerThreshold transient failures in a row that open the circuit breaker, or 0 for no breaker
+     * @param breakerDelay milliseconds the breaker stays open before a trial call is let through
+     */
+    public Retry(String name, int attempts, long initialDelay, long maxDelay, int breakerThreshold, long breakerDelay) {
+        if (attempts < 1) {
+            throw new IllegalArgumentException("Must make at least one attempt");
+        }
+        this.name = name;
+        this.attempts = attempts;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.breakerThreshold = breakerThreshold;
+        this.breakerDelay = breakerDelay;
+        if (name != null) {
+            register();
+        }
+    }
+
+    /**
+     * For calls to a database. Five attempts over about twenty seconds, and if ten in a
+     * row fail then nothing more is tried for thirty seconds, so that a failover stalls
+     * the callers briefly rather than piling them all up on the connection pool.
+     */
+    public static Retry forDatabase(String name) {
+        return new Retry(name, 5, 1000, 30000, 10, 30000);
+    }
+
+    public static abstract class Attempt<T, E extends Exception> {
+        public abstract T attempt() throws E;
+
+        /**
+         * Whether trying again might succeed. Those that won't, such as something not
+         * existing, are thrown straight away.
+         */
+        public boolean isTransient(Exception e) {
+            return true;
+        }
+    }
+
+    /**
+     * An attempt that only retries database errors that the driver or Spring consider might
+     * not happen again, such as a lost connection or a deadlock.
+     */
+    public static abstract class DatabaseAttempt<T, E extends Exception> extends Attempt<T, E> {
+        public boolean isTransient(Exception e) {
+            return e instanceof RecoverableDataAccessException
+                || e instanceof TransientDataAccessException
+                || e instanceof SQLRecoverableException
+                || e instanceof SQLTransientException;
+        }
+    }
+
+    /**
+     * Thrown instead of making a call while the circuit breaker is open.
+     */
+    public static class OpenException extends RuntimeException {
+        private static final long serialVersionUID = 6410359217845519236L;
+
+        public OpenException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * @param description what is being attempted, for logging
+     * @return the result of the first attempt that succeeds
+     * @throws E from the last attempt, or the first that was not transient
+     * @throws OpenException if the circuit breaker is open
+     */
+    public <T, E extends Exception> T call(String description, Attempt<T, E> attempt) throws E {
+        calls.incrementAndGet();
+        long delay = initialDelay;
+        Exception last = null;
+        for (int i = 1; ; i++) {
+            boolean trial = allow(description, last);
+            try {
+                T result = attempt.attempt();
+                succeeded();
+                return result;
+            } catch (Exception e) {
+                boolean isTransient = attempt.isTransient(e);
+                if (isTransient) {
+                    failed(trial);
+                } else {
+                    //something answered, even if it was not what was wanted
+                    succeeded();
+                }
+                if (i >= attempts || !isTransient) {
+                    failures.incrementAndGet();
+                    throw e;
+                }
+                //jitter so that threads that failed together don't all retry together
+                long wait = Math.min(delay + (long) (random.nextDouble() * delay / 2), maxDelay);
+                log.warn("Attempt "+i+" of "+attempts+" at "+description+" failed, retrying in "+wait+"ms", e);
+                retries.incrementAndGet();
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e2) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                delay = Math.min(delay * 2, maxDelay);
+                last = e;
+            } finally {
+                if (trial) {
+                    //an Error skips both of the above, so let the next call have a trial instead
+                    trialRunning.set(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether this call is the trial after the breaker has been open
+     */
+    private boolean allow(String description, Exception last) {
+        if (openUntil == 0) {
+            return false;
+        }
+        if (System.currentTimeMillis() < openUntil || !trialRunning.compareAndSet(false, true)) {
+            rejections.incrementAndGet();
+            throw new OpenException("Not attempting "+description+" as "+getDescription()+" circuit breaker is open", last);
+        }
+        log.info("Trying "+description+" to see if "+getDescription()+" circuit breaker can close");
+        return true;
+    }
+
+    private void succeeded() {
+        consecutiveFailures.set(0);
+        if (openUntil != 0) {
+            openUntil = 0;
+            trialRunning.set(false);
+            log.info("Closed "+getDescription()+" circuit breaker");
+        }
+    }
+
+    private void failed(boolean trial) {
+        if (breakerThreshold <= 0) {
+            return;
+        }
+        //only the failure that reaches the threshold trips it, not those already in progress
+        if (trial || consecutiveFailures.incrementAndGet() == breakerThreshold) {
+            openUntil = System.currentTimeMillis() + breakerDelay;
+            trialRunning.set(false);
+            trips.incrementAndGet();
+            log.warn("Opened "+getDescription()+" circuit breaker for "+breakerDelay+"ms");
+        }
+    }
+
+    private String getDescription() {
+        if (name == null) {
+            return "retry";
+        }
+        return name;
+    }
+
+    public long getCallCount() {
+        return calls.get();
+    }
+
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    public long getTripCount() {
+        return trips.get();
+    }
+
+    public long getRejectionCount() {
+        return rejections.get();
+    }
+
+    public String getState() {
+        long until = openUntil;
+        if (until == 0) {
+            return "closed";
+        } else if (System.currentTimeMillis() < until) {
+            return "open";
+        } else {
+            return "half-open";
+        }
+    }
+
+    /**
+     * Makes these counts visible over JMX. Failure to do so is logged but otherwise ignored.
+     */
+    private void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName("uk.ac.ebi.fgpt.sampletab:type=Retry,name="+name));
+        } catch (JMException e) {
+            log.warn("Unable to register retry "+name+" with JMX", e);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package uk.ac.ebi.fgpt.sampletab.utils;
+
+/**
+ * JMX view of {@link Retry}.
+ */
+public interface RetryMBean {
+
+    public long getCallCount();
+
+    public long getRetryCount();
+
+    public long getFailureCount();
+
+    public long getTripCount();
+
+    public long getRejectionCount();
+
+    public String getState();
+}
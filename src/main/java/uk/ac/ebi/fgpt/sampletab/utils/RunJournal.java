@@ -0,0 +1,155 @@
+package uk.ac.ebi.fgpt.sampletab.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Append-only record of which inputs of a run have been finished, so that a run which
+ * is interrupted can be resumed without redoing them.
+ *
+ * Each line is the run ID, the outcome, and the absolute path of the input, separated by
+ * tabs. A new run starts with a line with the outcome {@value #STARTED} and no input, so a
+ * run can be resumed even if nothing was finished. Lines are flushed as they are written, 
+ * so they survive the JVM dying. A line that was only partly written when it died has no 
+ * trailing newline, and is ignored.
+ */
+public class RunJournal {
+
+    public static final String STARTED = "STARTED";
+    public static final String DONE = "DONE";
+    public static final String FAILED = "FAILED";
+
+    private final String runId;
+    private final Set<String> done = new HashSet<String>();
+    private final Writer writer;
+
+    private Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * @param resume continue a run already in the journal, rather than starting a new one
+     * @throws IOException if resuming a run that is not in the journal, or starting one that is
+     */
+    public RunJournal(File file, String runId, boolean resume) throws IOException {
+        this.runId = runId;
+
+        boolean incomplete = false;
+        boolean found = false;
+        if (file.exists()) {
+            incomplete = !endsWithNewline(file);
+            //the journal may hold many earlier runs, so only keep the lines of this one
+            String runPrefix = runId+"\t";
+            String prefix = runId+"\t"+DONE+"\t";
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+                String line = reader.readLine();
+                while (line != null) {
+                    String next = reader.readLine();
+                    if (next == null && incomplete) {
+                        log.warn("Ignoring incomplete last line of "+file);
+                    } else if (line.startsWith(runPrefix)) {
+                        found = true;
+                        if (line.startsWith(prefix)) {
+                            done.add(line.substring(prefix.length()));
+                        }
+                    }
+                    line = next;
+                }
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        //do nothing
+                    }
+                }
+            }
+            log.info("Journal "+file+" has "+done.size()+" inputs done for run "+runId);
+        }
+        if (resume && !found) {
+            throw new IOException("No run "+runId+" in journal "+file);
+        } else if (!resume && found) {
+            throw new IOException("Run "+runId+" is already in journal "+file+", resume it or use another ID");
+        }
+
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), Charsets.UTF_8));
+        if (incomplete) {
+            //terminate it, so it doesn't get joined to the next line written
+            writer.write("\n");
+            writer.flush();
+        }
+        if (!resume) {
+            writer.write(runId+"\t"+STARTED+"\t\n");
+            writer.flush();
+        }
+    }
+
+    private static boolean endsWithNewline(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() == 0) {
+                return true;
+            }
+            raf.seek(raf.length()-1);
+            return raf.read() == '\n';
+        } finally {
+            raf.close();
+        }
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    public synchronized boolean isDone(File input) {
+        return done.contains(input.getAbsolutePath());
+    }
+
+    public synchronized void markDone(File input) throws IOException {
+        done.add(input.getAbsolutePath());
+        write(DONE, input);
+    }
+
+    public synchronized void markFailed(File input) throws IOException {
+        write(FAILED, input);
+    }
+
+    private void write(String outcome, File input) throws IOException {
+        writer.write(runId+"\t"+outcome+"\t"+input.getAbsolutePath()+"\n");
+        writer.flush();
+    }
+
+    public synchronized void close() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            //do nothing
+        }
+    }
+
+    /**
+     * A new run ID, based on the current time with a random suffix, so that runs started
+     * in the same second (such as the shards of one job) do not share an ID.
+     */
+    public static String newRunId() {
+        return new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date())+"-"+UUID.randomUUID().toString().substring(0, 8);
+    }
+}
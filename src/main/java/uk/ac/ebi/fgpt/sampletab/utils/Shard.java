@@ -0,0 +1,311 @@
+package uk.ac.ebi.fgpt.sampletab.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.Hashing;
+
+/**
+ * One of a number of disjoint parts of a set of inputs, so that separate jobs can each
+ * process a part without any coordination between them.
+ *
+ * Inputs are divided by submission ID, which is the name of the directory the input is in,
+ * so all the files of a submission are always in the same shard. By default the shard of a
+ * submission depends only on a hash of its ID, so every job agrees on it. Alternatively,
+ * submissions can be assigned so that each shard has about the same total size of input;
+ * this needs all the inputs to be listed before any are processed, and jobs only agree on
+ * the assignment if the inputs don't change or they share a plan file, see
+ * {@link #filterBySize(Iterable, File, String)}.
+ */
+public class Shard {
+
+    private static final String PLAN_HEADER = "#shards";
+
+    private final int index;
+    private final int count;
+
+    private Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * @param index from 1 to count inclusive, as with cluster array job indexes
+     */
+    public Shard(int index, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Number of shards must be at least 1");
+        }
+        if (index < 1 || index > count) {
+            throw new IllegalArgumentException("Shard must be between 1 and "+count);
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * Parses a shard in the form i/N.
+     */
+    public static Shard parse(String spec) {
+        String[] parts = spec.split("/");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Shard must be of the form i/N, not "+spec);
+        }
+        try {
+            return new Shard(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Shard must be of the form i/N, not "+spec);
+        }
+    }
+
+    public static String getSubmissionId(File input) {
+        File parent = input.getAbsoluteFile().getParentFile();
+        if (parent == null) {
+            return input.getName();
+        }
+        return parent.getName();
+    }
+
+    /**
+     * Which shard, from 1 to count, the submission belongs to.
+     */
+    private int shardOf(String submissionId) {
+        //a consistent hash moves as few submissions as possible if the number of shards changes
+        return Hashing.consistentHash(Hashing.murmur3_128().hashString(submissionId, Charsets.UTF_8), count) + 1;
+    }
+
+    public boolean contains(File input) {
+        return shardOf(getSubmissionId(input)) == index;
+    }
+
+    /**
+     * The inputs that are in this shard, by hash of their submission ID.
+     */
+    public Iterable<File> filter(Iterable<File> inputs) {
+        return Iterables.filter(inputs, new Predicate<File>() {
+            public boolean apply(File input) {
+                return contains(input);
+            }
+        });
+    }
+
+    /**
+     * The inputs that are in this shard, with submissions assigned so each shard has about
+     * the same total file size. This lists all the inputs before returning, and then they are
+     * listed again as they are used.
+     *
+     * The assignment depends on the sizes of the inputs, so jobs that list them at different
+     * times only agree if nothing has changed in between. To be sure they agree, give all the
+     * jobs the same plan file: the first job to finish listing writes its assignment there,
+     * and the others use that instead of their own. Submissions that are not in the plan, as
+     * they were added afterwards, are assigned by hash of their ID as {@link #filter} does.
+     *
+     * The plan records the run it was written for and the number of shards, so that a plan
+     * left by another run is not used by mistake.
+     *
+     * @param plan file shared by all the jobs, or null if the inputs will not change
+     * @param runId identifies the jobs that share the plan, such as the cluster job ID
+     * @throws IOException if the plan is for another run or number of shards
+     */
+    public Iterable<File> filterBySize(Iterable<File> inputs, File plan, String runId) throws IOException {
+        if (plan != null && runId == null) {
+            throw new IllegalArgumentException("A shard plan needs a run ID");
+        }
+        Map<String, Integer> assignment = null;
+        if (plan != null && plan.exists()) {
+            assignment = readPlan(plan, runId);
+            log.info("Using shard plan "+plan+" of "+assignment.size()+" submissions");
+        } else {
+            assignment = assignBySize(inputs);
+            if (plan != null) {
+                assignment = writePlan(plan, runId, assignment);
+            }
+        }
+
+        final Map<String, Integer> shards = assignment;
+        return Iterables.filter(inputs, new Predicate<File>() {
+            public boolean apply(File input) {
+                String id = getSubmissionId(input);
+                Integer shard = shards.get(id);
+                if (shard == null) {
+                    shard = shardOf(id);
+                }
+                return shard == index;
+            }
+        });
+    }
+
+    /**
+     * @return the shard, from 1 to count, of each submission
+     */
+    private Map<String, Integer> assignBySize(Iterable<File> inputs) {
+        //total size of each submission, in a fixed order so every job does the same thing
+        Map<String, Long> sizes = new TreeMap<String, Long>();
+        for (File input : inputs) {
+            String id = getSubmissionId(input);
+            Long size = sizes.get(id);
+            if (size == null) {
+                size = 0L;
+            }
+            sizes.put(id, size + input.length());
+        }
+
+        //largest first, each to whichever shard has the least so far
+        final Map<String, Long> weights = sizes;
+        List<String> ids = new ArrayList<String>(sizes.keySet());
+        Collections.sort(ids, new Comparator<String>() {
+            public int compare(String a, String b) {
+                int c = weights.get(b).compareTo(weights.get(a));
+                if (c == 0) {
+                    c = a.compareTo(b);
+                }
+                return c;
+            }
+        });
+        final long[] loads = new long[count];
+        PriorityQueue<Integer> shards = new PriorityQueue<Integer>(count, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int c = Long.compare(loads[a], loads[b]);
+                if (c == 0) {
+                    c = a.compareTo(b);
+                }
+                return c;
+            }
+        });
+        for (int i = 0; i < count; i++) {
+            shards.add(i);
+        }
+        Map<String, Integer> assignment = new HashMap<String, Integer>();
+        int mine = 0;
+        for (String id : ids) {
+            int shard = shards.poll();
+            loads[shard] += weights.get(id);
+            shards.add(shard);
+            assignment.put(id, shard+1);
+            if (shard+1 == index) {
+                mine += 1;
+            }
+        }
+        log.info("Shard "+index+"/"+count+" has "+mine+" of "+ids.size()+" submissions, totalling "+loads[index-1]+" bytes");
+        return assignment;
+    }
+
+    /**
+     * Writes the assignment to the plan, unless another job already has.
+     *
+     * @return the assignment in the plan
+     */
+    private Map<String, Integer> writePlan(File plan, String runId, Map<String, Integer> assignment) throws IOException {
+        File temp = new File(plan.getAbsoluteFile().getParentFile(), plan.getName()+"."+UUID.randomUUID()+".tmp");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temp), Charsets.UTF_8);
+            try {
+                writer.write(PLAN_HEADER+"\t"+count+"\t"+runId+"\n");
+                for (Map.Entry<String, Integer> entry : assignment.entrySet()) {
+                    writer.write(entry.getKey()+"\t"+entry.getValue()+"\n");
+                }
+            } finally {
+                writer.close();
+            }
+            //a link can only be made if there is nothing there yet, even on NFS, so only one
+            //job's plan is ever used, and it is never seen half written
+            try {
+                Files.createLink(plan.toPath(), temp.toPath());
+                log.info("Wrote shard plan "+plan+" of "+assignment.size()+" submissions");
+                return assignment;
+            } catch (FileAlreadyExistsException e) {
+                Map<String, Integer> existing = readPlan(plan, runId);
+                log.info("Using shard plan "+plan+" of "+existing.size()+" submissions written by another job");
+                return existing;
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private Map<String, Integer> readPlan(File plan, String runId) throws IOException {
+        Map<String, Integer> assignment = new HashMap<String, Integer>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(plan), Charsets.UTF_8));
+        try {
+            String line = reader.readLine();
+            if (line == null || !line.startsWith(PLAN_HEADER+"\t")) {
+                throw new IOException("Shard plan "+plan+" has no header, remove it or use another file");
+            }
+            if (!line.equals(PLAN_HEADER+"\t"+count+"\t"+runId)) {
+                String[] parts = line.split("\t", 3);
+                throw new IOException("Shard plan "+plan+" is for "+(parts.length > 1 ? parts[1] : "?")+" shards of run "
+                    +(parts.length > 2 ? parts[2] : "?")+", not "+count+" of run "+runId+", remove it or use another file");
+            }
+            while ((line = reader.readLine()) != null) {
+                int tab = line.lastIndexOf('\t');
+                if (tab < 0) {
+                    continue;
+                }
+                int shard;
+                try {
+                    shard = Integer.parseInt(line.substring(tab+1));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Unexpected line in shard plan "+plan+": "+line, e);
+                }
+                if (shard < 1 || shard > count) {
+                    throw new IOException("Shard plan "+plan+" is not for "+count+" shards");
+                }
+                assignment.put(line.substring(0, tab), shard);
+            }
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                //do nothing
+            }
+        }
+        return assignment;
+    }
+
+    /**
+     * The file with this shard added to its name before the extension, so that each shard
+     * of a job can have its own, such as run.journal becoming run.2of4.journal.
+     */
+    public File getShardFile(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot)+"."+index+"of"+count+name.substring(dot);
+        } else {
+            name = name+"."+index+"of"+count;
+        }
+        return new File(file.getParentFile(), name);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public String toString() {
+        return index+"/"+count;
+    }
+}
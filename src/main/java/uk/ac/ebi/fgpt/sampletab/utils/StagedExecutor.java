@@ -0,0 +1,124 @@
+package uk.ac.ebi.fgpt.sampletab.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A set of named stages, each with its own fixed size pool of threads and a bounded queue
+ * of work waiting for that pool. This is a bulkhead rather than a pipeline: it limits how
+ * many callers can be doing each kind of work at once, e.g. so that a slow database can't
+ * tie up every thread, but it doesn't let a caller get on with anything else meanwhile.
+ *
+ * Work is passed to a stage with {@link #run(String, Callable)}, which blocks the caller
+ * until the stage has done it. A task that moves through several stages occupies its own
+ * thread for the whole time, plus one thread of whichever stage it is in, so the number of
+ * callers still bounds how many tasks are in progress. If a stage's queue is full, the
+ * caller waits for space rather than the work being rejected.
+ */
+public class StagedExecutor {
+
+    private final Map<String, ThreadPoolExecutor> stages = new LinkedHashMap<String, ThreadPoolExecutor>();
+
+    private Logger log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Adds a stage. Stages must all be added before any work is run.
+     */
+    public void addStage(final String name, int threads, int capacity) {
+        if (threads < 1) {
+            threads = 1;
+        }
+        if (capacity < 1) {
+            capacity = threads;
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(capacity),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger(0);
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "stage-"+name+"-"+count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            },
+            new RejectedExecutionHandler() {
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    //block until there is space, so that a slow stage holds back the ones before it
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("Stage "+name+" has been shut down");
+                    }
+                    try {
+                        executor.getQueue().put(r);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted waiting for stage "+name, e);
+                    }
+                    //it may have been shut down while waiting, and then nothing would run this
+                    if (executor.isShutdown() && executor.remove(r)) {
+                        throw new RejectedExecutionException("Stage "+name+" has been shut down");
+                    }
+                }
+            });
+        stages.put(name, pool);
+        log.info("Stage "+name+" has "+threads+" threads and a queue of "+capacity);
+    }
+
+    public boolean hasStage(String name) {
+        return stages.containsKey(name);
+    }
+
+    /**
+     * Runs some work on the pool of the named stage, and waits for it to finish.
+     * Any exception thrown by the work is re-thrown to the caller.
+     */
+    public <V> V run(String name, Callable<V> work) throws Exception {
+        ThreadPoolExecutor pool = stages.get(name);
+        if (pool == null) {
+            throw new IllegalArgumentException("Unknown stage "+name);
+        }
+        Future<V> future = pool.submit(work);
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            } else {
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        for (String name : stages.keySet()) {
+            ThreadPoolExecutor pool = stages.get(name);
+            pool.shutdown();
+            try {
+                if (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.warn("Stage "+name+" did not finish in time");
+                }
+            } catch (InterruptedException e) {
+                log.error("Interupted awaiting stage "+name+" termination", e);
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
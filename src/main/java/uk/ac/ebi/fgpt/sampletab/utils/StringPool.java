@@ -0,0 +1,26 @@
+package uk.ac.ebi.fgpt.sampletab.utils;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Shares one instance of each short string that is used as an attribute type, value, unit
+ * or term source ID, so that many SampleData objects in memory don't each hold their own
+ * copies of "Homo sapiens" and "male".
+ *
+ * Strings are only held weakly, so they can still be garbage collected once nothing uses them.
+ * Long strings, such as descriptions, are rarely repeated and are not pooled.
+ */
+public class StringPool {
+
+    public static final int MAX_LENGTH = 256;
+
+    private static final Interner<String> pool = Interners.newWeakInterner();
+
+    public static String intern(String in) {
+        if (in == null || in.length() > MAX_LENGTH) {
+            return in;
+        }
+        return pool.intern(in);
+    }
+}
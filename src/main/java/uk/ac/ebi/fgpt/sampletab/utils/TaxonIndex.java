@@ -0,0 +1,442 @@
+package uk.ac.ebi.fgpt.sampletab.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Local copy of the NCBI taxonomy, built from the names.dmp and nodes.dmp files of
+ * ftp://ftp.ncbi.nih.gov/pub/taxonomy/taxdump.tar.gz and memory mapped, so that looking up
+ * a taxon doesn't need a request to NCBI.
+ *
+ * The division of a taxon is what eutils calls its Division, e.g. "eudicots" or "bony fishes".
+ * That is the blast name of the taxon or its nearest ancestor that has one, not the much
+ * broader division of division.dmp.
+ *
+ * The file has a header, a table of divisions, a table of taxa sorted by taxid, a table of
+ * names sorted by hash, and then the strings they refer to. Each string is its length in
+ * bytes as an unsigned short followed by its UTF-8 bytes.
+ *
+ * Names are matched ignoring case, brackets and repeated whitespace. A name that is the
+ * scientific name of more than one taxon, or is not a scientific name and is some other
+ * kind of name of more than one taxon, is left out, since it can't be resolved from here.
+ */
+public class TaxonIndex {
+
+    private static final int MAGIC = 0x54415849; //TAXI
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int DIVISION_ENTRY = 8;
+    private static final int TAXON_ENTRY = 12;
+    private static final int NAME_ENTRY = 16;
+
+    //kinds of name from names.dmp that are looked up, other than scientific names
+    private static final Set<String> OTHER_NAME_CLASSES = new HashSet<String>(Arrays.asList(
+        "synonym", "equivalent name", "genbank synonym", "common name", "genbank common name",
+        "misspelling", "acronym", "genbank acronym"));
+
+    private final MappedByteBuffer buffer;
+    private final int taxonCount;
+    private final int nameCount;
+    private final int taxonTable;
+    private final int nameTable;
+    private final int strings;
+    private final Map<Integer, String> divisions = new HashMap<Integer, String>();
+
+    private TaxonIndex(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a taxonomy index, or from a different version");
+        }
+        int divisionCount = buffer.getInt(8);
+        taxonCount = buffer.getInt(12);
+        nameCount = buffer.getInt(16);
+        taxonTable = buffer.getInt(20);
+        nameTable = buffer.getInt(24);
+        strings = buffer.getInt(28);
+        for (int i = 0; i < divisionCount; i++) {
+            int entry = HEADER_SIZE + i*DIVISION_ENTRY;
+            divisions.put(buffer.getInt(entry), getString(buffer.getInt(entry+4)));
+        }
+    }
+
+    public static TaxonIndex open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            //the mapping stays valid after the channel is closed
+            return new TaxonIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                //do nothing
+            }
+        }
+    }
+
+    public int size() {
+        return taxonCount;
+    }
+
+    private String getString(int offset) {
+        int start = strings + offset;
+        int length = buffer.getShort(start) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(start + 2 + i);
+        }
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    /**
+     * @return the position of the taxon in the table of taxa, or -1 if it is not there
+     */
+    private int findTaxID(int taxID) {
+        int low = 0;
+        int high = taxonCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int value = buffer.getInt(taxonTable + middle*TAXON_ENTRY);
+            if (value < taxID) {
+                low = middle + 1;
+            } else if (value > taxID) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the scientific name of the taxon, or null if it is not in the index
+     */
+    public String getScientificName(int taxID) {
+        int i = findTaxID(taxID);
+        if (i < 0) {
+            return null;
+        }
+        return getString(buffer.getInt(taxonTable + i*TAXON_ENTRY + 4));
+    }
+
+    /**
+     * @return the division of the taxon as eutils gives it, or null if it is not in the index
+     * or neither it nor its ancestors have a blast name
+     */
+    public String getDivision(int taxID) {
+        int i = findTaxID(taxID);
+        if (i < 0) {
+            return null;
+        }
+        return divisions.get(buffer.getInt(taxonTable + i*TAXON_ENTRY + 8));
+    }
+
+    /**
+     * @return the taxid with this name, or null if there is not exactly one
+     */
+    public Integer findTaxon(String name) {
+        String normalized = normalize(name);
+        if (normalized.length() == 0) {
+            return null;
+        }
+        long hash = hash(normalized);
+
+        //find the first entry with this hash
+        int low = 0;
+        int high = nameCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (buffer.getLong(nameTable + middle*NAME_ENTRY) < hash) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        //check each name with the hash, in case of collisions
+        for (int i = low; i < nameCount && buffer.getLong(nameTable + i*NAME_ENTRY) == hash; i++) {
+            int entry = nameTable + i*NAME_ENTRY;
+            if (normalized.equals(getString(buffer.getInt(entry+12)))) {
+                return buffer.getInt(entry+8);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lowercase, with brackets as spaces, and runs of whitespace as one space.
+     */
+    protected static String normalize(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        boolean space = false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '(' || c == ')' || Character.isWhitespace(c)) {
+                space = true;
+            } else {
+                if (space && sb.length() > 0) {
+                    sb.append(' ');
+                }
+                space = false;
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 64-bit FNV-1a, so that collisions between different names are rare.
+     */
+    private static long hash(String normalized) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < normalized.length(); i++) {
+            hash ^= normalized.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static String[] readFields(String line) {
+        //fields are separated by tab, pipe, tab, and the last is followed by tab, pipe
+        if (line.endsWith("\t|")) {
+            line = line.substring(0, line.length()-2);
+        }
+        return line.split("\t\\|\t", -1);
+    }
+
+    private static BufferedReader openDump(File taxdump, String name) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(new File(taxdump, name)), Charsets.UTF_8));
+    }
+
+    /**
+     * Writes an index of the names.dmp and nodes.dmp files in the taxdump directory. For the
+     * whole of the NCBI taxonomy this needs a couple of gigabytes of heap.
+     */
+    public static void build(File taxdump, File output) throws IOException {
+        Logger log = LoggerFactory.getLogger(TaxonIndex.class);
+        String line;
+
+        Map<Integer, Integer> parents = new HashMap<Integer, Integer>();
+        BufferedReader reader = openDump(taxdump, "nodes.dmp");
+        try {
+            while ((line = reader.readLine()) != null) {
+                String[] fields = readFields(line);
+                parents.put(new Integer(fields[0].trim()), new Integer(fields[1].trim()));
+            }
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                //do nothing
+            }
+        }
+        log.info("Read "+parents.size()+" taxa");
+
+        Map<Integer, String> scientificNames = new HashMap<Integer, String>();
+        Map<Integer, String> blastNames = new HashMap<Integer, String>();
+        //normalized name to taxid, or -1 if more than one taxon has it
+        Map<String, Integer> scientific = new HashMap<String, Integer>();
+        Map<String, Integer> other = new HashMap<String, Integer>();
+        reader = openDump(taxdump, "names.dmp");
+        try {
+            while ((line = reader.readLine()) != null) {
+                String[] fields = readFields(line);
+                Integer taxID = new Integer(fields[0].trim());
+                String name = fields[1].trim();
+                String nameClass = fields[3].trim();
+                Map<String, Integer> names;
+                if (nameClass.equals("blast name")) {
+                    blastNames.put(taxID, name);
+                    continue;
+                } else if (nameClass.equals("scientific name")) {
+                    scientificNames.put(taxID, name);
+                    names = scientific;
+                } else if (OTHER_NAME_CLASSES.contains(nameClass)) {
+                    names = other;
+                } else {
+                    continue;
+                }
+                String normalized = normalize(name);
+                if (normalized.length() == 0) {
+                    continue;
+                }
+                Integer existing = names.get(normalized);
+                if (existing == null) {
+                    names.put(normalized, taxID);
+                } else if (!existing.equals(taxID)) {
+                    names.put(normalized, -1);
+                }
+            }
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                //do nothing
+            }
+        }
+        for (String normalized : scientific.keySet()) {
+            other.remove(normalized);
+        }
+        other.putAll(scientific);
+        scientific = null;
+
+        ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+        DataOutputStream stringData = new DataOutputStream(stringBytes);
+
+        //each different blast name is a division, numbered in order
+        Map<String, Integer> divisionNames = new TreeMap<String, Integer>();
+        for (String blastName : blastNames.values()) {
+            divisionNames.put(blastName, 0);
+        }
+        int[] divisionIDs = new int[divisionNames.size()];
+        int[] divisionOffsets = new int[divisionNames.size()];
+        int d = 0;
+        for (String divisionName : divisionNames.keySet()) {
+            divisionNames.put(divisionName, d);
+            divisionIDs[d] = d;
+            divisionOffsets[d] = writeString(stringData, divisionName);
+            d++;
+        }
+        log.info("Read "+blastNames.size()+" blast names in "+divisionNames.size()+" divisions");
+
+        int[] taxIDs = new int[scientificNames.size()];
+        int t = 0;
+        for (Integer taxID : scientificNames.keySet()) {
+            taxIDs[t++] = taxID;
+        }
+        Arrays.sort(taxIDs);
+        int[] taxonOffsets = new int[taxIDs.length];
+        int[] taxonDivisions = new int[taxIDs.length];
+        for (int i = 0; i < taxIDs.length; i++) {
+            taxonOffsets[i] = writeString(stringData, scientificNames.get(taxIDs[i]));
+            String blastName = getBlastName(taxIDs[i], parents, blastNames);
+            taxonDivisions[i] = blastName == null ? -1 : divisionNames.get(blastName);
+        }
+        scientificNames = null;
+        parents = null;
+        blastNames = null;
+
+        final long[] nameHashes = new long[other.size()];
+        int[] nameTaxIDs = new int[other.size()];
+        int[] nameOffsets = new int[other.size()];
+        int n = 0;
+        for (Map.Entry<String, Integer> entry : other.entrySet()) {
+            if (entry.getValue() < 0) {
+                continue;
+            }
+            nameHashes[n] = hash(entry.getKey());
+            nameTaxIDs[n] = entry.getValue();
+            nameOffsets[n] = writeString(stringData, entry.getKey());
+            n++;
+        }
+        log.info("Indexing "+n+" unambiguous names of "+other.size());
+        other = null;
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(nameHashes[a], nameHashes[b]);
+            }
+        });
+
+        stringData.flush();
+        long taxonTable = HEADER_SIZE + (long) divisionIDs.length*DIVISION_ENTRY;
+        long nameTable = taxonTable + (long) taxIDs.length*TAXON_ENTRY;
+        long strings = nameTable + (long) n*NAME_ENTRY;
+        if (strings + stringBytes.size() > Integer.MAX_VALUE) {
+            throw new IOException("Taxonomy is too large to index");
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(divisionIDs.length);
+            out.writeInt(taxIDs.length);
+            out.writeInt(n);
+            out.writeInt((int) taxonTable);
+            out.writeInt((int) nameTable);
+            out.writeInt((int) strings);
+            for (int i = 0; i < divisionIDs.length; i++) {
+                out.writeInt(divisionIDs[i]);
+                out.writeInt(divisionOffsets[i]);
+            }
+            for (int i = 0; i < taxIDs.length; i++) {
+                out.writeInt(taxIDs[i]);
+                out.writeInt(taxonOffsets[i]);
+                out.writeInt(taxonDivisions[i]);
+            }
+            for (int i = 0; i < n; i++) {
+                out.writeLong(nameHashes[order[i]]);
+                out.writeInt(nameTaxIDs[order[i]]);
+                out.writeInt(nameOffsets[order[i]]);
+            }
+            stringBytes.writeTo(out);
+            out.flush();
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                //do nothing
+            }
+        }
+        log.info("Wrote "+taxIDs.length+" taxa to "+output);
+    }
+
+    /**
+     * @return the blast name of the taxon or its nearest ancestor that has one, or null
+     */
+    private static String getBlastName(Integer taxID, Map<Integer, Integer> parents, Map<Integer, String> blastNames) {
+        //the root is its own parent, and the depth is limited in case of a loop
+        for (int depth = 0; taxID != null && depth < 1000; depth++) {
+            String blastName = blastNames.get(taxID);
+            if (blastName != null) {
+                return blastName;
+            }
+            Integer parent = parents.get(taxID);
+            if (taxID.equals(parent)) {
+                return null;
+            }
+            taxID = parent;
+        }
+        return null;
+    }
+
+    /**
+     * @return the offset the string was written at
+     */
+    private static int writeString(DataOutputStream out, String value) throws IOException {
+        int offset = out.size();
+        //writeUTF would use modified UTF-8
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("Name too long to index: "+value.substring(0, 100));
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+        return offset;
+    }
+}
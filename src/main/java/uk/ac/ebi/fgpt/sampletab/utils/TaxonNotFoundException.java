@@ -0,0 +1,12 @@
+package uk.ac.ebi.fgpt.sampletab.utils;
+
+/**
+ * NCBI was asked about a taxon and said there is no such thing, as opposed to not answering.
+ */
+public class TaxonNotFoundException extends TaxonException {
+
+    public TaxonNotFoundException(String message) {
+        super(message);
+    }
+
+}
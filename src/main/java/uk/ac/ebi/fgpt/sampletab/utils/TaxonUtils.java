@@ -1,11 +1,22 @@
 package uk.ac.ebi.fgpt.sampletab.utils;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
@@ -13,48 +24,52 @@ import org.dom4j.Element;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Joiner;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
 
 public class TaxonUtils {    
     private static Logger log = LoggerFactory.getLogger("uk.ac.ebi.fgpt.sampletab.utils.TaxonUtils");
    
+    //taxonomy rarely changes, so these can be kept on disk for a while
+    private static final PersistentCache.Source storedNames = PersistentCache.getInstance()
+        .getSource("taxonomy.name", 30, TimeUnit.DAYS);
+    private static final PersistentCache.Source storedIDs = PersistentCache.getInstance()
+        .getSource("taxonomy.id", 30, TimeUnit.DAYS);
+    private static final PersistentCache.Source storedDivisions = PersistentCache.getInstance()
+        .getSource("taxonomy.division", 30, TimeUnit.DAYS);
+
+    //taxids and names that NCBI has said don't exist, so each is only asked about once
+    private static final NotFoundCache unknownIDs = new NotFoundCache("taxonomy.id");
+    private static final NotFoundCache unknownNames = new NotFoundCache("taxonomy.name");
 
     private static LoadingCache<Integer, String> taxNameCache = CacheBuilder.newBuilder()
         .maximumSize(10000)
         .build(new CacheLoader<Integer, String>() {
             public String load(Integer taxID) throws TaxonException {
-                // TODO add meta information identifying this tool
-                URL url;
-                try {
-                    url = new URL("http://eutils.ncbi.nlm.nih.gov/entrez/eutils/esummary.fcgi?db=taxonomy&id=" + taxID);
-                } catch (MalformedURLException e) {
-                    throw new TaxonException(e);
-                }
-                
-                Document doc = null;
-                try {
-                    doc = XMLUtils.getDocument(url);
-                } catch (DocumentException e) {
-                    throw new TaxonException(e);
-                } catch (IOException e) {
-                    throw new TaxonException(e);
+                String stored = storedNames.get(taxID.toString());
+                if (stored != null) {
+                    return stored;
                 }
+                checkUnknownID(taxID);
+                // TODO add meta information identifying this tool
+                Document doc = getDocument("http://eutils.ncbi.nlm.nih.gov/entrez/eutils/esummary.fcgi?db=taxonomy&id=" + taxID, "eSummaryResult");
                 
                 Element root = doc.getRootElement();
                 if (root != null) {
                     Element docsum = XMLUtils.getChildByName(root, "DocSum");
                     if (docsum != null) {
-                        for (Element item : XMLUtils.getChildrenByName(docsum, "Item")) {
-                            if ("ScientificName".equals(item.attributeValue("Name"))) {
-                                return item.getTextTrim();
-                            }
+                        String name = getScientificName(docsum);
+                        if (name != null) {
+                            storedNames.put(taxID.toString(), name);
+                            return name;
                         }
                     }
                 }
                 //if we got here, we could not find a match
-                throw new TaxonException("Unable to find ScientificName for "+taxID);
+                throw unknownID(taxID, "Unable to find ScientificName for "+taxID);
             }
         }
     );
@@ -63,35 +78,43 @@ public class TaxonUtils {
         .maximumSize(10000)
         .build(new CacheLoader<String, Integer>() {
             public Integer load(String taxName) throws TaxonException {
+                String stored = storedIDs.get(taxName);
+                if (stored != null) {
+                    return new Integer(stored);
+                }
+                String unknown = unknownNames.getIfPresent(taxName);
+                if (unknown != null) {
+                    throw new TaxonNotFoundException(unknown);
+                }
              // TODO add meta information identifying this tool
-                URL url;
+                String url;
                 try {
-                    url = new URL("http://eutils.ncbi.nlm.nih.gov/entrez/eutils/esearch.fcgi?db=taxonomy&term="
-                            + URLEncoder.encode(taxName, "UTF-8"));
+                    url = "http://eutils.ncbi.nlm.nih.gov/entrez/eutils/esearch.fcgi?db=taxonomy&term="
+                            + URLEncoder.encode(taxName, "UTF-8");
                 } catch (UnsupportedEncodingException e) {
                     throw new TaxonException(e);
-                } catch (MalformedURLException e) {
-                    throw new TaxonException(e);
-                }
-                Document doc;
-                try {
-                    doc = XMLUtils.getDocument(url);
-                } catch (DocumentException e) {
-                    throw new TaxonException(e);
-                } catch (IOException e) {
-                    throw new TaxonException(e);
                 }
+                Document doc = getDocument(url, "eSearchResult");
                 Element root = doc.getRootElement();
                 if (root != null) {
                     Element idlist = XMLUtils.getChildByName(root, "IdList");
                     if (idlist != null) {
                         Element id = XMLUtils.getChildByName(idlist, "Id");
                         if (id != null) {
-                            return new Integer(id.getTextTrim());
+                            Integer taxID;
+                            try {
+                                taxID = new Integer(id.getTextTrim());
+                            } catch (NumberFormatException e) {
+                                throw new TaxonException("Unexpected taxid "+id.getTextTrim(), e);
+                            }
+                            storedIDs.put(taxName, taxID.toString());
+                            return taxID;
                         }
                     }
                 }
-                throw new TaxonException("Unable to find taxID  for "+taxName);
+                String message = "Unable to find taxID  for "+taxName;
+                unknownNames.put(taxName, message);
+                throw new TaxonNotFoundException(message);
             }
         }
     );
@@ -100,22 +123,22 @@ public class TaxonUtils {
         .maximumSize(10000)
         .build(new CacheLoader<Integer, String>() {
             public String load(Integer taxID) throws TaxonException {
-             // TODO add meta information identifying this tool
-                String URL = "http://eutils.ncbi.nlm.nih.gov/entrez/eutils/esummary.fcgi?db=taxonomy&id=" + taxID;
-                Document doc = null;
-                try {
-                    doc = XMLUtils.getDocument(URL);
-                } catch (DocumentException e) {
-                    throw new TaxonException(e);
+                String stored = storedDivisions.get(taxID.toString());
+                if (stored != null) {
+                    return stored;
                 }
+                checkUnknownID(taxID);
+             // TODO add meta information identifying this tool
+                Document doc = getDocument("http://eutils.ncbi.nlm.nih.gov/entrez/eutils/esummary.fcgi?db=taxonomy&id=" + taxID, "eSummaryResult");
                 Element root = doc.getRootElement();
                 if (root == null)
                     throw new TaxonException("Unable to find document root of taxid "+taxID);
                 Element docsum = XMLUtils.getChildByName(root, "DocSum");
                 if (docsum == null)
-                    throw new TaxonException("Unable to find DocSum element of taxid "+taxID);
+                    throw unknownID(taxID, "Unable to find DocSum element of taxid "+taxID);
                 for (Element item : XMLUtils.getChildrenByName(docsum, "Item")) {
                     if ("Division".equals(item.attributeValue("Name"))) {
+                        storedDivisions.put(taxID.toString(), item.getTextTrim());
                         return item.getTextTrim();
                     }
                 }
@@ -124,16 +147,347 @@ public class TaxonUtils {
             }
         }
     );
+    
+    private static void checkUnknownID(Integer taxID) throws TaxonNotFoundException {
+        String unknown = unknownIDs.getIfPresent(taxID.toString());
+        if (unknown != null) {
+            throw new TaxonNotFoundException(unknown);
+        }
+    }
+    
+    private static TaxonNotFoundException unknownID(Integer taxID, String message) {
+        unknownIDs.put(taxID.toString(), message);
+        return new TaxonNotFoundException(message);
+    }
+
+    /**
+     * System property, or key in sampletabconverters.properties, of the file of a 
+     * {@link TaxonIndex} to look taxa up in before asking NCBI.
+     */
+    public static final String INDEX_PROPERTY = "biosamples.taxonomy.index";
+    
+    private static volatile TaxonIndex index = null;
+    private static volatile boolean indexLoaded = false;
+    
+    /**
+     * @return the local index of taxa, or null if there is not one
+     */
+    public static TaxonIndex getIndex() {
+        if (!indexLoaded) {
+            synchronized (TaxonUtils.class) {
+                if (!indexLoaded) {
+                    index = loadIndex();
+                    indexLoaded = true;
+                }
+            }
+        }
+        return index;
+    }
+    
+    /**
+     * Use this index rather than the configured one, or no index if null.
+     */
+    public static synchronized void setIndex(TaxonIndex newIndex) {
+        index = newIndex;
+        indexLoaded = true;
+    }
+    
+    private static TaxonIndex loadIndex() {
+        String path = System.getProperty(INDEX_PROPERTY);
+        if (path == null) {
+            InputStream is = TaxonUtils.class.getResourceAsStream("/sampletabconverters.properties");
+            if (is != null) {
+                Properties properties = new Properties();
+                try {
+                    properties.load(is);
+                    path = properties.getProperty(INDEX_PROPERTY);
+                } catch (IOException e) {
+                    log.error("Unable to read resource sampletabconverters.properties", e);
+                } finally {
+                    try {
+                        is.close();
+                    } catch (IOException e) {
+                        //do nothing
+                    }
+                }
+            }
+        }
+        if (path == null || path.trim().length() == 0) {
+            return null;
+        }
+        File file = new File(path.trim());
+        try {
+            TaxonIndex taxonIndex = TaxonIndex.open(file);
+            log.info("Using "+taxonIndex.size()+" taxa from "+file);
+            return taxonIndex;
+        } catch (IOException e) {
+            log.warn("Unable to open taxonomy index "+file+", will only use NCBI", e);
+            return null;
+        }
+    }
+    
+    //number of taxids or names in each request of the batch methods, to keep URLs short enough
+    private static final int BATCH_SIZE = 200;
+    private static final int SEARCH_BATCH_SIZE = 50;
+    
+    private static String getScientificName(Element docsum) {
+        for (Element item : XMLUtils.getChildrenByName(docsum, "Item")) {
+            if ("ScientificName".equals(item.attributeValue("Name"))) {
+                return item.getTextTrim();
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Gets the response of NCBI, trying again if it can't be reached or doesn't make sense.
+     * Only a response with the expected root element and no ERROR element is returned, so
+     * that callers can take anything missing from it to not exist. Anything else, such as
+     * "API rate limit exceeded", is a TaxonException rather than a TaxonNotFoundException.
+     */
+    private static Document getDocument(final String url, final String rootName) throws TaxonException {
+        try {
+            return Retry.DEFAULT.call(url, new Retry.Attempt<Document, Exception>() {
+                public Document attempt() throws DocumentException, IOException {
+                    Document doc = XMLUtils.getDocument(new URL(url));
+                    Element root = doc.getRootElement();
+                    if (root == null || !rootName.equals(root.getName())) {
+                        throw new DocumentException("Unexpected response from "+url);
+                    }
+                    Element error = XMLUtils.getChildByName(root, "ERROR");
+                    if (error != null) {
+                        throw new DocumentException("Error from "+url+" : "+error.getTextTrim());
+                    }
+                    return doc;
+                }
+
+                public boolean isTransient(Exception e) {
+                    //NCBI sometimes sends back an error page instead of XML
+                    return !(e instanceof MalformedURLException) 
+                        && (HttpService.isTransient(e) || e instanceof DocumentException);
+                }
+            });
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new TaxonException(e);
+        }
+    }
+    
+    /**
+     * As {@link #getSpeciesOfID(int)} for many taxids at once. Those that are not already 
+     * cached are looked up with one request per {@value #BATCH_SIZE}, rather than one each.
+     * 
+     * @return the species of each taxid that could be found
+     */
+    public static Map<Integer, String> getSpeciesOfIDs(Collection<Integer> taxIDs) throws TaxonException {
+        Map<Integer, String> species = new HashMap<Integer, String>(taxNameCache.getAllPresent(taxIDs));
+        
+        TaxonIndex taxonIndex = getIndex();
+        List<Integer> missing = new ArrayList<Integer>();
+        for (Integer taxID : new HashSet<Integer>(taxIDs)) {
+            if (taxID != null && taxID >= 0 && !species.containsKey(taxID)) {
+                String name = null;
+                if (taxonIndex != null) {
+                    name = taxonIndex.getScientificName(taxID);
+                }
+                if (name == null) {
+                    name = storedNames.get(taxID.toString());
+                }
+                if (name != null) {
+                    species.put(taxID, name);
+                } else if (unknownIDs.getIfPresent(taxID.toString()) == null) {
+                    missing.add(taxID);
+                }
+            }
+        }
+        
+        for (List<Integer> batch : Lists.partition(missing, BATCH_SIZE)) {
+            // TODO add meta information identifying this tool
+            Document doc = getDocument("http://eutils.ncbi.nlm.nih.gov/entrez/eutils/esummary.fcgi?db=taxonomy&id=" 
+                + Joiner.on(',').join(batch), "eSummaryResult");
+            Element root = doc.getRootElement();
+            if (root == null) {
+                continue;
+            }
+            for (Element docsum : XMLUtils.getChildrenByName(root, "DocSum")) {
+                Element id = XMLUtils.getChildByName(docsum, "Id");
+                String name = getScientificName(docsum);
+                if (id != null && name != null) {
+                    Integer taxID;
+                    try {
+                        taxID = new Integer(id.getTextTrim());
+                    } catch (NumberFormatException e) {
+                        log.warn("Unexpected taxid "+id.getTextTrim());
+                        continue;
+                    }
+                    taxNameCache.put(taxID, name);
+                    storedNames.put(taxID.toString(), name);
+                    species.put(taxID, name);
+                }
+            }
+            //a reply can leave out taxids for other reasons, so ask about each of those on its 
+            //own before remembering that it doesn't exist
+            for (Integer taxID : batch) {
+                if (!species.containsKey(taxID)) {
+                    try {
+                        species.put(taxID, taxNameCache.get(taxID));
+                    } catch (ExecutionException e) {
+                        if (!(e.getCause() instanceof TaxonNotFoundException)) {
+                            throw getTaxonException(e);
+                        }
+                    }
+                }
+            }
+        }
+        return species;
+    }
+    
+    /**
+     * As {@link #findTaxon(String)} for many species at once. Those that are not already 
+     * cached are searched for as exact scientific names, {@value #SEARCH_BATCH_SIZE} in each
+     * request. Any that don't exactly match one scientific name are then searched for one at a 
+     * time, in the same way as findTaxon.
+     * 
+     * @return the taxid of each species that could be found
+     */
+    public static Map<String, Integer> findTaxa(Collection<String> speciesNames) throws TaxonException {
+        Map<String, Integer> taxa = new HashMap<String, Integer>();
+        //species as findTaxon searches for them, to the names they were given as
+        Map<String, String> missing = new HashMap<String, String>();
+        TaxonIndex taxonIndex = getIndex();
+        for (String species : new HashSet<String>(speciesNames)) {
+            String term = getSearchTerm(species);
+            if (term == null) {
+                continue;
+            }
+            Integer taxID = null;
+            if (taxonIndex != null) {
+                taxID = taxonIndex.findTaxon(term);
+            }
+            if (taxID == null) {
+                taxID = taxIDCache.getIfPresent(term);
+            }
+            if (taxID == null) {
+                String stored = storedIDs.get(term);
+                if (stored != null) {
+                    taxID = new Integer(stored);
+                }
+            }
+            if (taxID != null) {
+                taxa.put(species, taxID);
+            } else if (unknownNames.getIfPresent(term) == null) {
+                missing.put(term, species);
+            }
+        }
+        
+        List<String> terms = new ArrayList<String>(missing.keySet());
+        for (List<String> batch : Lists.partition(terms, SEARCH_BATCH_SIZE)) {
+            List<String> query = new ArrayList<String>();
+            for (String term : batch) {
+                query.add("\""+term.replace("\"", "")+"\"[Scientific Name]");
+            }
+            String url;
+            try {
+                // TODO add meta information identifying this tool
+                url = "http://eutils.ncbi.nlm.nih.gov/entrez/eutils/esearch.fcgi?db=taxonomy&retmax="+(batch.size()*2)
+                    +"&term="+URLEncoder.encode(Joiner.on(" OR ").join(query), "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new TaxonException(e);
+            }
+            Document doc = getDocument(url, "eSearchResult");
+            List<Integer> ids = new ArrayList<Integer>();
+            Element root = doc.getRootElement();
+            if (root != null) {
+                Element idlist = XMLUtils.getChildByName(root, "IdList");
+                if (idlist != null) {
+                    for (Element id : XMLUtils.getChildrenByName(idlist, "Id")) {
+                        try {
+                            ids.add(new Integer(id.getTextTrim()));
+                        } catch (NumberFormatException e) {
+                            throw new TaxonException("Unexpected taxid "+id.getTextTrim(), e);
+                        }
+                    }
+                }
+            }
+            //the search doesn't say which name each taxid matched, so get their names
+            Map<Integer, String> names = getSpeciesOfIDs(ids);
+            Map<String, Integer> matched = new HashMap<String, Integer>();
+            Set<String> homonyms = new HashSet<String>();
+            for (Integer taxID : ids) {
+                String name = names.get(taxID);
+                for (String term : batch) {
+                    if (term.equalsIgnoreCase(name)) {
+                        if (matched.containsKey(term) && !matched.get(term).equals(taxID)) {
+                            homonyms.add(term);
+                        }
+                        matched.put(term, taxID);
+                    }
+                }
+            }
+            //names of more than one taxon are left to be searched for individually, so they 
+            //get the same taxid as they would from findTaxon
+            for (String term : matched.keySet()) {
+                if (!homonyms.contains(term)) {
+                    taxIDCache.put(term, matched.get(term));
+                    storedIDs.put(term, matched.get(term).toString());
+                    taxa.put(missing.remove(term), matched.get(term));
+                }
+            }
+        }
+        
+        //search for the rest individually, as they might be synonyms or misspellings
+        for (String species : missing.values()) {
+            try {
+                taxa.put(species, findTaxon(species));
+            } catch (TaxonException e) {
+                log.debug("Unable to find taxid for "+species, e);
+            }
+        }
+        return taxa;
+    }
+    
+    /**
+     * The term findTaxon searches for, or null if there isn't one.
+     */
+    private static String getSearchTerm(String species) {
+        if (species == null) {
+            return null;
+        }
+        species = species.trim();
+        //strip out brackets because these are interpreted as special search characters
+        species = species.replace("(", " ");
+        species = species.replace(")", " ");
+        if (species.length() == 0) {
+            return null;
+        }
+        return species;
+    }
+
+    private static TaxonException getTaxonException(ExecutionException e) {
+        if (e.getCause() instanceof TaxonException) {
+            return (TaxonException) e.getCause();
+        }
+        return new TaxonException(e);
+    }
 
     public static String getSpeciesOfID(int taxID) throws TaxonException {
         if (taxID < 0) {
             throw new IllegalArgumentException();
         }
         
+        TaxonIndex taxonIndex = getIndex();
+        if (taxonIndex != null) {
+            String name = taxonIndex.getScientificName(taxID);
+            if (name != null) {
+                return name;
+            }
+        }
+        
         try {
             return taxNameCache.get(taxID);
         } catch (ExecutionException e) {
-            throw new TaxonException(e);
+            throw getTaxonException(e);
         }
     }
     
@@ -142,26 +496,39 @@ public class TaxonUtils {
             throw new IllegalArgumentException();
         }
         
+        TaxonIndex taxonIndex = getIndex();
+        if (taxonIndex != null) {
+            String division = taxonIndex.getDivision(taxID);
+            if (division != null) {
+                return division;
+            }
+        }
+        
         try {
             return taxDivisionCache.get(taxID);
         } catch (ExecutionException e) {
-            throw new TaxonException(e);
+            throw getTaxonException(e);
         }
     }
 
     public static Integer findTaxon(String species) throws TaxonException {
-        species = species.trim();
-        //strip out brackets because these are interpreted as special search characters
-        species = species.replace("(", " ");
-        species = species.replace(")", " ");
-        if (species == null || species.length() == 0) {
+        String term = getSearchTerm(species);
+        if (term == null) {
             throw new IllegalArgumentException();
         }
         
+        TaxonIndex taxonIndex = getIndex();
+        if (taxonIndex != null) {
+            Integer taxID = taxonIndex.findTaxon(term);
+            if (taxID != null) {
+                return taxID;
+            }
+        }
+        
         try {
-            return taxIDCache.get(species);    
+            return taxIDCache.get(term);    
         } catch (ExecutionException e) {
-            throw new TaxonException(e);
+            throw getTaxonException(e);
         }
     }
 }
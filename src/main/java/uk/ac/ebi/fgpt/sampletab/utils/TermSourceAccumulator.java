@@ -0,0 +1,97 @@
+package uk.ac.ebi.fgpt.sampletab.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.ac.ebi.arrayexpress2.sampletab.datamodel.MSI;
+import uk.ac.ebi.arrayexpress2.sampletab.datamodel.msi.TermSource;
+
+/**
+ * Lets samples of the same submission add term sources to its MSI from several threads.
+ *
+ * Term sources are added to the MSI straight away, so that the name it gives them can be
+ * returned. When {@link #merge()} is called, the term sources that were added are put back
+ * into the order that processing the samples one after another would have added them in,
+ * so the output does not depend on which thread got there first.
+ */
+public class TermSourceAccumulator {
+
+    private final MSI msi;
+    //number of term sources the MSI had to start with
+    private final int before;
+    //for each term source name, the earliest sample and request that used it
+    private final Map<String, Long> firstUse = new HashMap<String, Long>();
+
+    public TermSourceAccumulator(MSI msi) {
+        this.msi = msi;
+        this.before = msi.termSources.size();
+    }
+
+    /**
+     * The term sources used while processing one sample. Only for use by one thread.
+     */
+    public class SampleTermSources {
+        private final int sample;
+        private int request = 0;
+
+        private SampleTermSources(int sample) {
+            this.sample = sample;
+        }
+
+        /**
+         * As {@link MSI#getOrAddTermSource(TermSource)}
+         */
+        public String getOrAddTermSource(TermSource termSource) {
+            long order = (((long) sample) << 32) | request;
+            request++;
+            return TermSourceAccumulator.this.getOrAddTermSource(termSource, order);
+        }
+    }
+
+    /**
+     * @param sample position of the sample in the order it would be processed in serially
+     */
+    public SampleTermSources forSample(int sample) {
+        return new SampleTermSources(sample);
+    }
+
+    private synchronized String getOrAddTermSource(TermSource termSource, long order) {
+        String name = msi.getOrAddTermSource(termSource);
+        Long first = firstUse.get(name);
+        if (first == null || order < first) {
+            firstUse.put(name, order);
+        }
+        return name;
+    }
+
+    /**
+     * Puts the term sources that were added into the order they were first used in.
+     */
+    public synchronized void merge() {
+        if (msi.termSources.size() <= before) {
+            return;
+        }
+        List<TermSource> added = new ArrayList<TermSource>(msi.termSources.subList(before, msi.termSources.size()));
+        //stable, so any not added through this keep their order, after those that were
+        Collections.sort(added, new Comparator<TermSource>() {
+            public int compare(TermSource a, TermSource b) {
+                return Long.compare(getFirstUse(a), getFirstUse(b));
+            }
+        });
+        for (int i = 0; i < added.size(); i++) {
+            msi.termSources.set(before+i, added.get(i));
+        }
+    }
+
+    private long getFirstUse(TermSource termSource) {
+        Long first = firstUse.get(termSource.getName());
+        if (first == null) {
+            return Long.MAX_VALUE;
+        }
+        return first;
+    }
+}
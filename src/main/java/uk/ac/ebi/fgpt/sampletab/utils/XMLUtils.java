@@ -7,7 +7,6 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringReader;
@@ -23,18 +22,6 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMResult;
 import javax.xml.ws.Response;
 
-import org.apache.http.HeaderElement;
-import org.apache.http.HeaderElementIterator;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.conn.ConnectionKeepAliveStrategy;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import org.apache.http.message.BasicHeaderElementIterator;
-import org.apache.http.protocol.HTTP;
-import org.apache.http.protocol.HttpContext;
 import org.custommonkey.xmlunit.Diff;
 import org.custommonkey.xmlunit.XMLUnit;
 import org.dom4j.Document;
@@ -52,38 +39,6 @@ public class XMLUtils {
 
     private static TransformerFactory tf = TransformerFactory.newInstance();
     
-	private static CloseableHttpClient httpClient;    
-    static {
-    	PoolingHttpClientConnectionManager conman = new PoolingHttpClientConnectionManager();
-    	conman.setMaxTotal(128);
-    	conman.setDefaultMaxPerRoute(64);
-    	conman.setValidateAfterInactivity(0);
-    	
-    	ConnectionKeepAliveStrategy keepAliveStrategy = new ConnectionKeepAliveStrategy() {
-            @Override
-            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
-            	//see if the user provides a live time
-                HeaderElementIterator it = new BasicHeaderElementIterator
-                    (response.headerIterator(HTTP.CONN_KEEP_ALIVE));
-                while (it.hasNext()) {
-                    HeaderElement he = it.nextElement();
-                    String param = he.getName();
-                    String value = he.getValue();
-                    if (value != null && param.equalsIgnoreCase
-                       ("timeout")) {
-                        return Long.parseLong(value) * 1000;
-                    }
-                }
-                //default to one second live time 
-                return 1 * 1000;
-            }
-        };
-    	
-    	httpClient = HttpClients.custom()
-    			.setKeepAliveStrategy(keepAliveStrategy)
-    			.setConnectionManager(conman).build();
-    }
-    
     static {
         XMLUnit.setIgnoreAttributeOrder(true);
         XMLUnit.setIgnoreWhitespace(true);
@@ -98,15 +53,8 @@ public class XMLUtils {
         //-Dhttp.proxyHost=wwwcache.ebi.ac.uk -Dhttp.proxyPort=3128 -Dhttp.nonProxyHosts=*.ebi.ac.uk 
         //-DproxyHost=wwwcache.ebi.ac.uk -DproxyPort=3128 -DproxySet=true
         //can't call SAXReader directly because it ignores proxing
-        Document doc = null;
-        HttpGet get = new HttpGet(url.toString());
-        try (CloseableHttpResponse response = httpClient.execute(get)) {
-	        try (Reader r = new BufferedReader(new InputStreamReader(response.getEntity().getContent()))) {
-	            //conn = (HttpURLConnection) url.openConnection();
-	            doc = getDocument(r);
-	        }         
-        }
-        return doc;
+        //and goes through HttpService so requests to each host are rate limited
+        return getDocument(HttpService.getInstance().get(url.toString()));
     }
 
     public static Document getDocument(String xmlString) throws DocumentException {
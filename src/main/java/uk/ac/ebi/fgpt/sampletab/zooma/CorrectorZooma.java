@@ -6,6 +6,7 @@ import java.net.URL;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.JsonParseException;
@@ -18,6 +19,8 @@ import uk.ac.ebi.arrayexpress2.sampletab.datamodel.SampleData;
 import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.SampleNode;
 import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.attribute.AbstractNodeAttributeOntology;
 import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.attribute.SCDNodeAttribute;
+import uk.ac.ebi.fgpt.sampletab.utils.HttpService;
+import uk.ac.ebi.fgpt.sampletab.utils.PersistentCache;
 
 import com.google.common.base.Optional;
 import com.google.common.cache.CacheBuilder;
@@ -29,6 +32,9 @@ public class CorrectorZooma {
     // logging
     private static Logger log = LoggerFactory.getLogger(uk.ac.ebi.fgpt.sampletab.zooma.CorrectorZooma.class);
     
+    private static final PersistentCache.Source storedResults = PersistentCache.getInstance()
+        .getSource("zooma.search", 7, TimeUnit.DAYS);
+    
     private static LoadingCache<String[], Optional<JsonNode>> lookupString = CacheBuilder.newBuilder()
     .maximumSize(1000)
     .build(
@@ -36,6 +42,14 @@ public class CorrectorZooma {
           public Optional<JsonNode> load(String[] query) throws JsonParseException, JsonMappingException, IOException {
               String key = query[0];
               String value = query[1];
+              String storedKey = (key == null ? "" : key)+"\t"+value;
+              ObjectMapper mapper = new ObjectMapper();
+              
+              String stored = storedResults.get(storedKey);
+              if (stored != null) {
+                  return Optional.fromNullable(mapper.readTree(stored).get("result"));
+              }
+              
               URL jsurl = null;
               value = URLEncoder.encode(value, "UTF-8");
               if (key != null){
@@ -46,12 +60,11 @@ public class CorrectorZooma {
               }
               log.debug("URL "+jsurl.toExternalForm());
               
-              ObjectMapper mapper = new ObjectMapper();                                                                                                           
               JsonNode rootNode = null;
               try{
-                  rootNode = mapper.readValue(jsurl, JsonNode.class); // src can be a File, URL, InputStream etc
-              } catch (IOException e) {
-                  if (e.getMessage().contains("Server returned HTTP response code: 500 for URL")){
+                  rootNode = mapper.readTree(HttpService.getInstance().get(jsurl.toExternalForm()));
+              } catch (HttpService.StatusException e) {
+                  if (e.getStatusCode() == 500){
                       return Optional.absent();
                   } else {
                       throw e;
@@ -59,6 +72,7 @@ public class CorrectorZooma {
               }
 
               log.debug(rootNode.toString());
+              storedResults.put(storedKey, rootNode.toString());
               
               JsonNode results = rootNode.get("result");
               Optional<JsonNode> toReturn = Optional.fromNullable(results); 
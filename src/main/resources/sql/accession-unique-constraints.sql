@@ -0,0 +1,13 @@
+-- Unique constraints that Accessioner relies on to never give one name two accessions.
+-- Its INSERT ... WHERE NOT EXISTS does not stop two processes inserting the same name at
+-- the same time under READ COMMITTED, but with these the second insert fails and the
+-- accession of the first is used instead.
+--
+-- Run once against the accessioning schema. Any existing duplicates must be removed first,
+-- they can be found with e.g.
+--   SELECT USER_ACCESSION, SUBMISSION_ACCESSION, COUNT(*) FROM SAMPLE_ASSAY
+--   GROUP BY USER_ACCESSION, SUBMISSION_ACCESSION HAVING COUNT(*) > 1;
+
+ALTER TABLE SAMPLE_ASSAY ADD CONSTRAINT SAMPLE_ASSAY_USER_UNIQUE UNIQUE (USER_ACCESSION, SUBMISSION_ACCESSION);
+ALTER TABLE SAMPLE_REFERENCE ADD CONSTRAINT SAMPLE_REFERENCE_USER_UNIQUE UNIQUE (USER_ACCESSION, SUBMISSION_ACCESSION);
+ALTER TABLE SAMPLE_GROUPS ADD CONSTRAINT SAMPLE_GROUPS_USER_UNIQUE UNIQUE (USER_ACCESSION, SUBMISSION_ACCESSION);
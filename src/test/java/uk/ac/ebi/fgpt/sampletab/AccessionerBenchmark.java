@@ -0,0 +1,151 @@
+package uk.ac.ebi.fgpt.sampletab;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import uk.ac.ebi.arrayexpress2.magetab.exception.ParseException;
+import uk.ac.ebi.arrayexpress2.sampletab.datamodel.SampleData;
+import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.GroupNode;
+import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.SampleNode;
+
+/**
+ * Times {@link Accessioner#convert(SampleData, String)} on synthetic submissions against an
+ * {@link EmbeddedAccessionDatabase}, so that changes to accessioning can be compared without
+ * the production database.
+ *
+ * Run the main method with the test classpath, or with the accession-benchmark profile, giving
+ * the numbers of samples per submission to try, by default 1000 10000 100000 500000. For each
+ * size, a new submission is accessioned, then the same again with a new Accessioner so that
+ * nothing is cached, then again with the cache. Then the same number of samples split between
+ * {@value #THREADS} submissions is accessioned by that many threads at once.
+ *
+ * The largest size needs about 3GB of heap, as the whole database is in memory.
+ */
+public class AccessionerBenchmark {
+
+    private static final int THREADS = 8;
+    private static final int SAMPLES_PER_GROUP = 100;
+    private static final int[] DEFAULT_SIZES = new int[] {1000, 10000, 100000, 500000};
+
+    /**
+     * A submission with the given number of samples and one group per {@value #SAMPLES_PER_GROUP}
+     * of them, none of which have accessions. The same arguments always give the same names.
+     */
+    public static SampleData getSubmission(String id, int samples) throws ParseException {
+        SampleData sd = new SampleData();
+        sd.msi.submissionIdentifier = id;
+        for (int i = 0; i < samples; i++) {
+            sd.scd.addNode(new SampleNode("sample "+i));
+        }
+        for (int i = 0; i < Math.max(1, samples / SAMPLES_PER_GROUP); i++) {
+            sd.scd.addNode(new GroupNode("group "+i));
+        }
+        return sd;
+    }
+
+    /**
+     * @return the accessions of all the nodes, which must all have different ones
+     */
+    public static Set<String> getAccessions(SampleData sd) {
+        Set<String> accessions = new HashSet<String>();
+        int count = 0;
+        for (SampleNode sample : sd.scd.getNodes(SampleNode.class)) {
+            accessions.add(sample.getSampleAccession());
+            count += 1;
+        }
+        for (GroupNode group : sd.scd.getNodes(GroupNode.class)) {
+            accessions.add(group.getGroupAccession());
+            count += 1;
+        }
+        if (accessions.contains(null) || accessions.size() != count) {
+            throw new IllegalStateException("Missing or repeated accessions in "+sd.msi.submissionIdentifier);
+        }
+        return accessions;
+    }
+
+    private static long time(Accessioner accessioner, SampleData sd) throws ParseException {
+        long start = System.nanoTime();
+        accessioner.convert(sd, sd.msi.submissionIdentifier);
+        long nanos = System.nanoTime() - start;
+        getAccessions(sd);
+        return nanos;
+    }
+
+    private static long timeConcurrent(final Accessioner accessioner, List<SampleData> submissions) throws InterruptedException, ExecutionException {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Callable<SampleData>> tasks = new ArrayList<Callable<SampleData>>();
+            for (final SampleData sd : submissions) {
+                tasks.add(new Callable<SampleData>() {
+                    public SampleData call() throws ParseException {
+                        return accessioner.convert(sd, sd.msi.submissionIdentifier);
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            List<Future<SampleData>> futures = pool.invokeAll(tasks);
+            long nanos = System.nanoTime() - start;
+            for (Future<SampleData> future : futures) {
+                getAccessions(future.get());
+            }
+            return nanos;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static String rate(int samples, long nanos) {
+        return String.format("%.0f/s", samples / (nanos / 1000000000.0));
+    }
+
+    private static void run(int size, boolean print) throws ParseException, InterruptedException, ExecutionException {
+        EmbeddedAccessionDatabase db = new EmbeddedAccessionDatabase(THREADS);
+        try {
+            String id = "benchmark-"+size;
+            long created = time(new Accessioner(db.getDataSource()), getSubmission(id, size));
+            Accessioner accessioner = new Accessioner(db.getDataSource());
+            long existing = time(accessioner, getSubmission(id, size));
+            long cached = time(accessioner, getSubmission(id, size));
+
+            List<SampleData> submissions = new ArrayList<SampleData>();
+            for (int i = 0; i < THREADS; i++) {
+                submissions.add(getSubmission(id+"-"+i, size / THREADS));
+            }
+            long concurrent = timeConcurrent(accessioner, submissions);
+
+            if (print) {
+                System.out.println(size+" samples: "
+                    +rate(size, created)+" new, "
+                    +rate(size, existing)+" existing, "
+                    +rate(size, cached)+" cached, "
+                    +rate(THREADS * (size / THREADS), concurrent)+" new in "+THREADS+" threads");
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    public static void main(String[] args) throws ParseException, InterruptedException, ExecutionException {
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        //let the JIT compile everything first
+        run(1000, false);
+
+        for (int size : sizes) {
+            run(size, true);
+        }
+    }
+}
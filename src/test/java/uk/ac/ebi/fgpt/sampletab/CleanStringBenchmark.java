@@ -0,0 +1,165 @@
+package uk.ac.ebi.fgpt.sampletab;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.Element;
+
+import uk.ac.ebi.fgpt.sampletab.guixml.GUIXMLOutputer;
+import uk.ac.ebi.fgpt.sampletab.utils.XMLUtils;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Compares the time taken by {@link Corrector#cleanString(String)} with the implementation
+ * it replaced, on the values of the NCBI BioSample test resource.
+ *
+ * Run the main method with the test classpath. Each round cleans every value many times
+ * with each implementation, after some rounds to let the JIT compile both.
+ */
+public class CleanStringBenchmark {
+
+    private static final int WARMUP_ROUNDS = 10;
+    private static final int ROUNDS = 10;
+    private static final int REPEATS = 5000;
+
+    //stops the JIT from removing the work
+    private static int sink = 0;
+
+    /**
+     * The implementation of cleanString before it was a single pass.
+     */
+    public static String cleanStringOriginal(String in) {
+        if (in == null){
+            return in;
+        }
+        String out = in;
+
+        //purge all strange characters not-quite-whitespace
+        //note, you can find these unicode codes by pasting u"the character" into python
+        out = out.replace("\"", "");
+        out = out.replace("\n", "");
+        out = out.replace("\t", "");
+        out = out.replace("\u2009", " "); //thin space
+        out = out.replace("\u00A0", " "); //non-breaking space
+        out = out.replace("\uff09", ") "); //full-width right parenthesis
+        out = out.replace("\uff08", " ("); //full-width left parenthesis
+
+        //trim extra whitespace at start and end
+        out = out.trim();
+        //XML automatically replaces consecutive spaces with single spaces
+        while (out.contains("  ")) {
+            out = out.replace("  ", " ");
+        }
+
+        //<br>
+        //<b>
+        out = out.replaceAll("\\s*\\</?[bB][rR]? ?/?\\>\\s*"," ");
+        //<p>
+        out = out.replaceAll("\\s*\\</?[pP] ?/?\\>\\s*"," ");
+        //<i>
+        out = out.replaceAll("\\s*\\</?[iI] ?/?\\>\\s*"," ");
+
+        //some UTF-8 hacks
+        out = out.replace("ÃƒÂ¼", "ü");
+
+        //also strip UTF-8 control characters that invalidate XML
+        out = GUIXMLOutputer.stripNonValidXMLCharacters(out);
+
+        //strip out hashes, because Limpopo sees these as comments
+        out = out.replace("#", "");
+
+        return out;
+    }
+
+    /**
+     * The strings that NCBIBiosampleRunnable would clean for the test resource.
+     */
+    public static List<String> getNCBIValues() throws DocumentException, IOException {
+        URL resource = CleanStringBenchmark.class.getClassLoader().getResource("ncbibiosample/sample.xml");
+        Reader reader = new InputStreamReader(resource.openStream(), Charsets.UTF_8);
+        Document doc;
+        try {
+            doc = XMLUtils.getDocument(reader);
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                //do nothing
+            }
+        }
+        List<String> values = new ArrayList<String>();
+        for (Element sample : XMLUtils.getChildrenByName(doc.getRootElement(), "BioSample")) {
+            for (Element id : XMLUtils.getChildrenByName(XMLUtils.getChildByName(sample, "Ids"), "Id")) {
+                values.add(id.getTextTrim());
+            }
+            Element description = XMLUtils.getChildByName(sample, "Description");
+            values.add(XMLUtils.getChildByName(description, "Title").getTextTrim());
+            values.add(XMLUtils.getChildByName(description, "Organism").attributeValue("taxonomy_name"));
+            Element comment = XMLUtils.getChildByName(description, "Comment");
+            if (comment != null) {
+                for (Element paragraph : XMLUtils.getChildrenByName(comment, "Paragraph")) {
+                    values.add(paragraph.getTextTrim());
+                }
+            }
+            for (Element attr : XMLUtils.getChildrenByName(XMLUtils.getChildByName(sample, "Attributes"), "Attribute")) {
+                values.add(attr.attributeValue("attribute_name"));
+                values.add(attr.getTextTrim());
+            }
+        }
+        return values;
+    }
+
+    private static long timeOriginal(List<String> values) {
+        long start = System.nanoTime();
+        for (int i = 0; i < REPEATS; i++) {
+            for (String value : values) {
+                sink += cleanStringOriginal(value).length();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long timeCurrent(List<String> values) {
+        long start = System.nanoTime();
+        for (int i = 0; i < REPEATS; i++) {
+            for (String value : values) {
+                sink += Corrector.cleanString(value).length();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) throws DocumentException, IOException {
+        List<String> values = getNCBIValues();
+        for (String value : values) {
+            if (!cleanStringOriginal(value).equals(Corrector.cleanString(value))) {
+                System.err.println("Different output for "+value);
+                System.exit(1);
+            }
+        }
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            timeOriginal(values);
+            timeCurrent(values);
+        }
+
+        long original = Long.MAX_VALUE;
+        long current = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            original = Math.min(original, timeOriginal(values));
+            current = Math.min(current, timeCurrent(values));
+        }
+        long calls = (long) REPEATS * values.size();
+        System.out.println(values.size()+" values, best of "+ROUNDS+" rounds");
+        System.out.println("original: "+(original/calls)+" ns per value");
+        System.out.println("current:  "+(current/calls)+" ns per value");
+        System.out.println("(ignore "+sink+")");
+    }
+}
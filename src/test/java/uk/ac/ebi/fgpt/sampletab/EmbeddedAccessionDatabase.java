@@ -0,0 +1,68 @@
+package uk.ac.ebi.fgpt.sampletab;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import com.jolbox.bonecp.BoneCPDataSource;
+
+/**
+ * An in-memory H2 database in Oracle mode, with the tables of accession-schema.sql and the
+ * constraints of sql/accession-unique-constraints.sql, so that
+ * {@link Accessioner} can be tested and measured without the production database.
+ *
+ * Each one is a separate empty database, pooled the same way as {@link Accessioner#getDataSource}.
+ */
+public class EmbeddedAccessionDatabase {
+
+    private static final AtomicInteger count = new AtomicInteger(0);
+
+    private final BoneCPDataSource dataSource;
+
+    /**
+     * @param connections most connections in the pool, which should be at least the number
+     * of threads using it at once
+     */
+    public EmbeddedAccessionDatabase(int connections) {
+        try {
+            Class.forName("org.h2.Driver");
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("Unable to find org.h2.Driver", e);
+        }
+        //kept until shut down, rather than when the last connection in the pool is closed
+        String url = "jdbc:h2:mem:accession"+count.incrementAndGet()+";MODE=Oracle;DB_CLOSE_DELAY=-1";
+        dataSource = new BoneCPDataSource();
+        dataSource.setJdbcUrl(url);
+        dataSource.setUsername("sa");
+        dataSource.setPassword("");
+        dataSource.setPartitionCount(1);
+        dataSource.setMaxConnectionsPerPartition(connections);
+        dataSource.setAcquireIncrement(1);
+
+        ResourceDatabasePopulator populator = new ResourceDatabasePopulator();
+        populator.addScript(new ClassPathResource("accession-schema.sql"));
+        populator.addScript(new ClassPathResource("sql/accession-unique-constraints.sql"));
+        DatabasePopulatorUtils.execute(populator, dataSource);
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    public int count(String table) {
+        return new JdbcTemplate(dataSource).queryForObject("SELECT COUNT(*) FROM "+table, Integer.class);
+    }
+
+    /**
+     * Throws away the database and its pool.
+     */
+    public void close() {
+        new JdbcTemplate(dataSource).execute("SHUTDOWN");
+        dataSource.close();
+    }
+}
@@ -0,0 +1,151 @@
+package uk.ac.ebi.fgpt.sampletab;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.kohsuke.args4j.CmdLineException;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class TestAbstractInfileDriver extends TestCase {
+
+    private File dir;
+    private File journalFile;
+
+    /**
+     * As if the JVM died while processing an input.
+     */
+    private static class Crash extends Error {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class RecordingDriver extends AbstractInfileDriver<Callable<Void>> {
+        private final List<String> processed = new ArrayList<String>();
+        private final String crashOn;
+
+        public RecordingDriver(String crashOn) {
+            this.crashOn = crashOn;
+        }
+
+        @Override
+        protected Callable<Void> getNewTask(final File inputFile) {
+            return new Callable<Void>() {
+                public Void call() {
+                    if (inputFile.getName().equals(crashOn)) {
+                        throw new Crash();
+                    }
+                    processed.add(inputFile.getName());
+                    return null;
+                }
+            };
+        }
+
+        public int run(String... args) throws CmdLineException {
+            cmdParser.parseArgument(args);
+            return processInputs();
+        }
+    }
+
+    @Override
+    public void setUp() throws IOException {
+        dir = Files.createTempDir();
+        for (String name : new String[] {"a.txt", "b.txt", "c.txt", "d.txt", "e.txt"}) {
+            Files.write(name, new File(dir, name), Charsets.UTF_8);
+        }
+        journalFile = new File(dir, "test.journal");
+    }
+
+    @Override
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private String getGlob() {
+        return new File(dir, "*.txt").getAbsolutePath();
+    }
+
+    public void testResume() throws CmdLineException {
+        RecordingDriver driver = new RecordingDriver("c.txt");
+        try {
+            driver.run("--journal", journalFile.getPath(), "--run-id", "run1", getGlob());
+            fail("Expected Crash");
+        } catch (Crash e) {
+            //expected
+        }
+        assertEquals(Arrays.asList("a.txt", "b.txt"), driver.processed);
+
+        driver = new RecordingDriver(null);
+        assertEquals(0, driver.run("--journal", journalFile.getPath(), "--resume", "run1", getGlob()));
+        assertEquals(Arrays.asList("c.txt", "d.txt", "e.txt"), driver.processed);
+
+        //a new run does everything again
+        driver = new RecordingDriver(null);
+        assertEquals(0, driver.run("--journal", journalFile.getPath(), getGlob()));
+        assertEquals(5, driver.processed.size());
+    }
+
+    public void testUnknownRun() throws CmdLineException {
+        RecordingDriver driver = new RecordingDriver(null);
+        assertEquals(0, driver.run("--journal", journalFile.getPath(), "--run-id", "run1", getGlob()));
+
+        driver = new RecordingDriver(null);
+        assertEquals(1, driver.run("--journal", journalFile.getPath(), "--resume", "run2", getGlob()));
+        assertEquals(0, driver.processed.size());
+
+        //nor can a new run reuse the ID
+        driver = new RecordingDriver(null);
+        assertEquals(1, driver.run("--journal", journalFile.getPath(), "--run-id", "run1", getGlob()));
+        assertEquals(0, driver.processed.size());
+    }
+
+    public void testInterrupted() throws CmdLineException {
+        final Thread main = Thread.currentThread();
+        final AtomicInteger running = new AtomicInteger(0);
+        AbstractInfileDriver<Callable<Void>> driver = new RecordingDriver(null) {
+            @Override
+            protected Callable<Void> getNewTask(final File inputFile) {
+                return new Callable<Void>() {
+                    public Void call() throws InterruptedException {
+                        running.incrementAndGet();
+                        try {
+                            if (inputFile.getName().equals("a.txt")) {
+                                main.interrupt();
+                            }
+                            Thread.sleep(10000);
+                            return null;
+                        } finally {
+                            running.decrementAndGet();
+                        }
+                    }
+                };
+            }
+        };
+        driver.cmdParser.parseArgument("--journal", journalFile.getPath(), "--threads", "2", getGlob());
+        assertEquals(1, driver.processInputs());
+        //still interrupted, and the cancelled tasks have stopped
+        assertTrue(Thread.interrupted());
+        assertEquals(0, running.get());
+    }
+
+    public void testShard() throws CmdLineException {
+        RecordingDriver driver = new RecordingDriver(null);
+        assertEquals(0, driver.run("--journal", journalFile.getPath(), "--run-id", "run1", "--shard", "1/1", getGlob()));
+        assertFalse(journalFile.exists());
+        assertTrue(new File(dir, "test.1of1.journal").exists());
+
+        driver = new RecordingDriver(null);
+        assertEquals(0, driver.run("--journal", journalFile.getPath(), "--resume", "run1", "--shard", "1/1", getGlob()));
+        assertEquals(0, driver.processed.size());
+    }
+}
@@ -0,0 +1,69 @@
+package uk.ac.ebi.fgpt.sampletab;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import uk.ac.ebi.fgpt.sampletab.utils.BuildManifest;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class TestBuildManifest extends TestCase {
+
+    private File subdir;
+    private File input;
+    private File output;
+
+    @Override
+    public void setUp() throws IOException {
+        subdir = Files.createTempDir();
+        input = new File(subdir, "sampletab.pre.txt");
+        output = new File(subdir, "sampletab.txt");
+        Files.write("input", input, Charsets.UTF_8);
+        Files.write("output", output, Charsets.UTF_8);
+    }
+
+    @Override
+    public void tearDown() {
+        for (File file : subdir.listFiles()) {
+            file.delete();
+        }
+        subdir.delete();
+    }
+
+    private Map<String, String> getInputs() throws IOException {
+        Map<String, String> inputs = new HashMap<String, String>();
+        inputs.put(input.getName(), BuildManifest.digest(input));
+        inputs.put("version", "1");
+        return inputs;
+    }
+
+    public void testUnchanged() throws IOException {
+        BuildManifest manifest = new BuildManifest(subdir);
+        assertNotNull(manifest.whyStale("sampletab", getInputs(), output));
+
+        manifest.record("sampletab", getInputs(), output);
+        assertNull(manifest.whyStale("sampletab", getInputs(), output));
+
+        //a touched but identical input is still up to date, even after reloading
+        input.setLastModified(System.currentTimeMillis()+10000);
+        manifest = new BuildManifest(subdir);
+        assertNull(manifest.whyStale("sampletab", getInputs(), output));
+    }
+
+    public void testChanged() throws IOException {
+        BuildManifest manifest = new BuildManifest(subdir);
+        manifest.record("sampletab", getInputs(), output);
+
+        Files.write("new input", input, Charsets.UTF_8);
+        assertNotNull(manifest.whyStale("sampletab", getInputs(), output));
+
+        manifest.record("sampletab", getInputs(), output);
+        Files.write("edited output", output, Charsets.UTF_8);
+        assertNotNull(manifest.whyStale("sampletab", getInputs(), output));
+    }
+}
@@ -1,8 +1,13 @@
 package uk.ac.ebi.fgpt.sampletab;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import junit.framework.TestCase;
 
@@ -11,11 +16,19 @@ import org.slf4j.LoggerFactory;
 
 import uk.ac.ebi.arrayexpress2.magetab.exception.ParseException;
 import uk.ac.ebi.arrayexpress2.sampletab.datamodel.SampleData;
+import uk.ac.ebi.arrayexpress2.sampletab.datamodel.msi.TermSource;
 import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.SampleNode;
 import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.attribute.DatabaseAttribute;
+import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.attribute.OrganismAttribute;
 import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.attribute.SCDNodeAttribute;
+import uk.ac.ebi.arrayexpress2.sampletab.datamodel.scd.node.attribute.SexAttribute;
 import uk.ac.ebi.arrayexpress2.sampletab.parser.SampleTabParser;
 import uk.ac.ebi.arrayexpress2.sampletab.renderer.SampleTabWriter;
+import uk.ac.ebi.fgpt.sampletab.utils.TaxonIndex;
+import uk.ac.ebi.fgpt.sampletab.utils.TaxonUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
 
 public class TestCorrector  extends TestCase {
 
@@ -68,4 +81,97 @@ public class TestCorrector  extends TestCase {
         }
         System.out.println(sw.toString());
     }
+    
+    /**
+     * A submission large enough to be corrected in parallel, where only the first samples use
+     * EFO and the rest NCBI Taxonomy, so done in order EFO is added to the MSI first.
+     */
+    private SampleData getLargeSubmission() throws ParseException {
+        SampleData sd = new SampleData();
+        sd.msi.submissionIdentifier = "GSB-0";
+        sd.msi.submissionTitle = "Corrected serially and in parallel";
+        sd.msi.submissionDescription = "Corrected serially and in parallel";
+        for (int i = 0; i < 1000; i++) {
+            SampleNode sample = new SampleNode("sample "+i);
+            if (i < 10) {
+                sample.addAttribute(new SexAttribute("M"));
+            } else if (i % 2 == 0) {
+                sample.addAttribute(new OrganismAttribute("4896"));
+            } else {
+                sample.addAttribute(new OrganismAttribute("Schizosaccharomyces pombe"));
+            }
+            sd.scd.addNode(sample);
+        }
+        return sd;
+    }
+    
+    private String write(SampleData sd) throws IOException {
+        StringWriter sw = new StringWriter();
+        SampleTabWriter w = new SampleTabWriter(sw);
+        w.write(sd);
+        w.close();
+        return sw.toString();
+    }
+    
+    public void testParallel() throws Exception {
+        //look the organism up locally rather than asking NCBI
+        File taxdump = Files.createTempDir();
+        File indexFile = File.createTempFile("taxonindex", ".idx");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Files.write("4896\t|\t1\t|\tspecies\t|\tSP\t|\t4\t|\n", new File(taxdump, "nodes.dmp"), Charsets.UTF_8);
+            Files.write("4896\t|\tSchizosaccharomyces pombe\t|\t\t|\tscientific name\t|\n", new File(taxdump, "names.dmp"), Charsets.UTF_8);
+            TaxonIndex.build(taxdump, indexFile);
+            TaxonUtils.setIndex(TaxonIndex.open(indexFile));
+            
+            SampleData serial = getLargeSubmission();
+            new Corrector().correct(serial);
+            
+            SampleData parallel = getLargeSubmission();
+            Corrector corrector = new Corrector();
+            corrector.setForkJoinPool(pool);
+            corrector.correct(parallel);
+            
+            List<String> serialSources = new ArrayList<String>();
+            for (TermSource termSource : serial.msi.termSources) {
+                serialSources.add(termSource.getName());
+            }
+            List<String> parallelSources = new ArrayList<String>();
+            for (TermSource termSource : parallel.msi.termSources) {
+                parallelSources.add(termSource.getName());
+            }
+            assertEquals(Arrays.asList("EFO", "NCBI Taxonomy"), serialSources);
+            assertEquals(serialSources, parallelSources);
+            assertEquals(write(serial), write(parallel));
+        } finally {
+            pool.shutdown();
+            TaxonUtils.setIndex(null);
+            for (File file : taxdump.listFiles()) {
+                file.delete();
+            }
+            taxdump.delete();
+            indexFile.delete();
+        }
+    }
+    
+    public void testCleanString() throws Exception {
+        List<String> values = CleanStringBenchmark.getNCBIValues();
+        values.add("  two  spaces\tand a tab ");
+        values.add("\"quoted\" \u00A0value\u2009");
+        values.add("full\uff08width\uff09 brackets");
+        values.add("line<br/>break <b> bold </b>and <p>para</P> <i>italic</i>");
+        values.add("#hash ÃƒÂ¼ \u0001control");
+        for (String value : values) {
+            assertEquals(CleanStringBenchmark.cleanStringOriginal(value), Corrector.cleanString(value));
+        }
+        String clean = "already clean";
+        assertSame(clean, Corrector.cleanString(clean));
+    }
+    
+    public void testCleanValue() {
+        String a = Corrector.cleanValue(new String("Homo  sapiens "));
+        String b = Corrector.cleanValue(new String("Homo sapiens"));
+        assertEquals("Homo sapiens", a);
+        assertSame(a, b);
+    }
 }
@@ -0,0 +1,68 @@
+package uk.ac.ebi.fgpt.sampletab;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+import junit.framework.TestCase;
+
+import com.google.common.base.Charsets;
+
+public class TestCorrectorRules extends TestCase {
+
+    private CorrectorRules getRules(String text) throws IOException {
+        return new CorrectorRules(new ByteArrayInputStream(text.getBytes(Charsets.UTF_8)));
+    }
+
+    public void testGet() throws IOException {
+        CorrectorRules rules = getRules("# comment\n"
+            +"@table value:sex\n"
+            +"Male\tmale\tPATO_0000384\n"
+            +"f\tfemale\n"
+            +"@table organism.typo\n"
+            +"@case-sensitive\n"
+            +"Homo sapien\tHomo sapiens\n");
+
+        assertTrue(rules.hasTable("value:sex"));
+        assertFalse(rules.hasTable("value:ecotype"));
+        assertEquals("male", rules.get("value:sex", "MALE").canonical);
+        assertEquals("PATO_0000384", rules.get("value:sex", "male").termSourceID);
+        assertEquals("female", rules.get("value:sex", "F").canonical);
+        assertNull(rules.get("value:sex", "F").termSourceID);
+        assertNull(rules.get("value:sex", "males"));
+        assertNull(rules.get("value:sex", null));
+        assertNull(rules.get("value:ecotype", "male"));
+
+        assertTrue(rules.contains("organism.typo", "Homo sapien"));
+        assertFalse(rules.contains("organism.typo", "homo sapien"));
+    }
+
+    public void testLocale() throws IOException {
+        Locale locale = Locale.getDefault();
+        try {
+            //where I does not lowercase to i
+            Locale.setDefault(new Locale("tr", "TR"));
+            CorrectorRules rules = getRules("@table characteristic.type\n"
+                +"ORGANISM PART\torganism part\n");
+            assertEquals("organism part", rules.get("characteristic.type", "organism part").canonical);
+            assertEquals("organism part", rules.get("characteristic.type", "Organism Part").canonical);
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    public void testDuplicate() {
+        try {
+            getRules("@table unit\nmeter\tmeter\nMeter\tmeter\n");
+            fail("Expected IOException");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    public void testResource() {
+        CorrectorRules rules = CorrectorRules.getInstance();
+        assertEquals("male", rules.get("value:sex", "Man").canonical);
+        assertEquals("meter", rules.get("unit", "Meters").canonical);
+    }
+}
@@ -3,20 +3,42 @@ package uk.ac.ebi.fgpt.sampletab;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import junit.framework.TestCase;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.ac.ebi.fgpt.sampletab.utils.FileGlobIterable;
+import uk.ac.ebi.fgpt.sampletab.utils.FileRecursiveIterable;
+import uk.ac.ebi.fgpt.sampletab.utils.FileRegexIterable;
 import uk.ac.ebi.fgpt.sampletab.utils.FileUtils;
 
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
 
 public class TestFileUtils extends TestCase {
 
     private Logger log = LoggerFactory.getLogger(getClass());
 
+    private File tmp;
+
+    /**
+     * For access to {@link FileRegexIterable#literalOf(String)}.
+     */
+    private static class Literal extends FileRegexIterable {
+        public Literal() {
+            super("");
+        }
+
+        public static String of(String regexPart) {
+            return literalOf(regexPart);
+        }
+    }
     
     @Override
     public void setUp(){
@@ -48,6 +70,23 @@ public class TestFileUtils extends TestCase {
             fail();
         }
         
+        tmp = Files.createTempDir();
+    }
+
+    private File createFile(String path) throws IOException {
+        File file = new File(tmp, path);
+        file.getParentFile().mkdirs();
+        file.createNewFile();
+        return file.getAbsoluteFile();
+    }
+
+    private void delete(File file) {
+        if (file.isDirectory()) {
+            for (File child : file.listFiles()) {
+                delete(child);
+            }
+        }
+        file.delete();
     }
     
     @Override
@@ -64,6 +103,7 @@ public class TestFileUtils extends TestCase {
         secondA1.delete();
         secondA2.delete();
         second.delete();
+        delete(tmp);
     }
     
     public void testFileFilterRegex() {
@@ -104,5 +144,99 @@ public class TestFileUtils extends TestCase {
         
         
     }
+    
+    public void testRecursiveUnsorted() {
+        File startfile = new File(".").getAbsoluteFile().getParentFile();
+        
+        Set<File> FA1SA1 = new HashSet<File>();
+        FA1SA1.add(new File("First/A1.txt").getAbsoluteFile());
+        FA1SA1.add(new File("Second/A1.txt").getAbsoluteFile());
+        
+        Set<File> found = new HashSet<File>();
+        for (File file : new FileRecursiveIterable("A1.txt", startfile, false, 4)) {
+            found.add(file);
+        }
+        assertEquals(FA1SA1, found);
+    }
+
+    public void testLiteralOf() {
+        assertEquals("A1.txt", Literal.of("A1\\.txt"));
+        assertEquals("x+y (1)", Literal.of("x\\+y \\(1\\)"));
+        assertEquals("", Literal.of(""));
+        assertNull(Literal.of("A1.txt"));
+        assertNull(Literal.of("A.*"));
+        assertNull(Literal.of("A[12]"));
+        assertNull(Literal.of("A1|A2"));
+        //escaped letters are classes, not letters
+        assertNull(Literal.of("A\\d"));
+        assertNull(Literal.of("A\\"));
+    }
+
+    public void testLiteralPrefix() throws IOException {
+        List<File> expected = new ArrayList<File>();
+        expected.add(createFile("a/p/b/1.txt"));
+        expected.add(createFile("a/p/b/2.txt"));
+        expected.add(createFile("a/q/b/3.txt"));
+        createFile("a/q/c/4.txt");
+        createFile("a/r");
+        createFile("a/s/b/5.csv");
+        //siblings of a, which should not be looked at
+        createFile("a2/p/b/6.txt");
+        createFile("ab/p/b/7.txt");
+
+        String glob = new File(tmp, "a/*/b/*.txt").getAbsolutePath();
+        assertEquals(expected, Lists.newArrayList(new FileGlobIterable(glob)));
+
+        //literal elements are looked up directly, so even .. which is never listed matches
+        glob = new File(tmp, "a2/../a/*/b/*.txt").getAbsolutePath();
+        List<File> found = new ArrayList<File>();
+        for (File file : new FileGlobIterable(glob)) {
+            found.add(file.getCanonicalFile());
+        }
+        List<File> canonical = new ArrayList<File>();
+        for (File file : expected) {
+            canonical.add(file.getCanonicalFile());
+        }
+        assertEquals(canonical, found);
+
+        //nothing at all if the literal prefix does not exist
+        glob = new File(tmp, "missing/*/b/*.txt").getAbsolutePath();
+        assertEquals(0, Lists.newArrayList(new FileGlobIterable(glob)).size());
+    }
+
+    public void testSpecialCharacters() throws IOException {
+        List<File> expected = new ArrayList<File>();
+        expected.add(createFile("x+y (1) [$]/A1.txt"));
+        expected.add(createFile("x+y (1) [$]/A2.txt"));
+        createFile("xxy 1 $/A1.txt");
+
+        String glob = new File(tmp, "x+y (1) [$]/*.txt").getAbsolutePath();
+        assertEquals(expected, Lists.newArrayList(new FileGlobIterable(glob)));
+
+        String regex = new File(tmp, "x\\+y \\(1\\) \\[\\$\\]/A.\\.txt").getAbsolutePath();
+        assertEquals(expected, Lists.newArrayList(new FileRegexIterable(regex)));
+    }
+
+    public void testUnsorted() throws IOException {
+        List<File> expected = new ArrayList<File>();
+        for (String dir : new String[] {"d1", "d2", "d3", "d4"}) {
+            for (String sub : new String[] {"s1", "s2", "s3"}) {
+                for (String name : new String[] {"f1.txt", "f2.txt"}) {
+                    expected.add(createFile(dir+"/"+sub+"/"+name));
+                }
+            }
+        }
+        createFile("d1/s1/f3.csv");
+
+        String glob = new File(tmp, "d*/s*/*.txt").getAbsolutePath();
+        assertEquals(expected, Lists.newArrayList(new FileGlobIterable(glob, true, 4)));
+
+        Set<File> expectedSet = new HashSet<File>(expected);
+        for (int parallelism : new int[] {1, 4}) {
+            List<File> found = Lists.newArrayList(new FileGlobIterable(glob, false, parallelism));
+            assertEquals(expected.size(), found.size());
+            assertEquals(expectedSet, new HashSet<File>(found));
+        }
+    }
 
 }
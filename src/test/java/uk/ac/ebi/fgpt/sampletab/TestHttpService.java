@@ -0,0 +1,136 @@
+package uk.ac.ebi.fgpt.sampletab;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import uk.ac.ebi.fgpt.sampletab.utils.HttpService;
+
+import com.google.common.base.Charsets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestHttpService extends TestCase {
+
+    private HttpServer server;
+    //requests the server has had, and how many for /slow it has in progress now and at most
+    private AtomicInteger requests;
+    private AtomicInteger slowInProgress;
+    private AtomicInteger slowMostInProgress;
+    //until counted down, /slow does not respond
+    private CountDownLatch release;
+
+    @Override
+    public void setUp() throws IOException {
+        requests = new AtomicInteger(0);
+        slowInProgress = new AtomicInteger(0);
+        slowMostInProgress = new AtomicInteger(0);
+        release = new CountDownLatch(1);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                String path = exchange.getRequestURI().getPath();
+                if (path.startsWith("/slow")) {
+                    int inProgress = slowInProgress.incrementAndGet();
+                    synchronized (slowMostInProgress) {
+                        slowMostInProgress.set(Math.max(inProgress, slowMostInProgress.get()));
+                    }
+                    try {
+                        release.await(30, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        slowInProgress.decrementAndGet();
+                    }
+                }
+                byte[] body = path.getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @Override
+    public void tearDown() {
+        release.countDown();
+        server.stop(0);
+        System.clearProperty(HttpService.RATE_PROPERTY+".127.0.0.1");
+    }
+
+    private String getUrl(String host, String path) {
+        return "http://"+host+":"+server.getAddress().getPort()+path;
+    }
+
+    public void testRateLimit() throws Exception {
+        System.setProperty(HttpService.RATE_PROPERTY+".127.0.0.1", "5");
+        HttpService service = new HttpService(8, 8, 10000);
+
+        long start = System.nanoTime();
+        List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < 11; i++) {
+            futures.add(service.getAsync(getUrl("127.0.0.1", "/fast/"+i)));
+        }
+        for (int i = 0; i < 11; i++) {
+            assertEquals("/fast/"+i, futures.get(i).get(10, TimeUnit.SECONDS));
+        }
+        //the first at once, then one every 200ms
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Took "+elapsed+"ms", elapsed >= 1800);
+        assertEquals(11, requests.get());
+    }
+
+    public void testCoalesce() throws Exception {
+        HttpService service = new HttpService(8, 8, 10000);
+        String url = getUrl("127.0.0.1", "/slow/1");
+        CompletableFuture<String> first = service.getAsync(url);
+        CompletableFuture<String> second = service.getAsync(url);
+        assertSame(first, second);
+        release.countDown();
+        assertEquals("/slow/1", first.get(10, TimeUnit.SECONDS));
+        assertEquals(1, requests.get());
+
+        //once the response has come, it is asked for again
+        assertEquals("/slow/1", service.get(url));
+        assertEquals(2, requests.get());
+    }
+
+    public void testHostThreads() throws Exception {
+        HttpService service = new HttpService(3, 2, 10000);
+        List<CompletableFuture<String>> slow = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < 5; i++) {
+            slow.add(service.getAsync(getUrl("127.0.0.1", "/slow/"+i)));
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (slowInProgress.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, slowInProgress.get());
+
+        //another host still gets a thread while the slow one is stuck
+        assertEquals("/fast", service.getAsync(getUrl("localhost", "/fast")).get(10, TimeUnit.SECONDS));
+        assertEquals(2, slowMostInProgress.get());
+
+        release.countDown();
+        for (int i = 0; i < 5; i++) {
+            assertEquals("/slow/"+i, slow.get(i).get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(2, slowMostInProgress.get());
+    }
+}
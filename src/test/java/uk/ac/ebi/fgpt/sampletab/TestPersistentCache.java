@@ -0,0 +1,115 @@
+package uk.ac.ebi.fgpt.sampletab;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import uk.ac.ebi.fgpt.sampletab.utils.PersistentCache;
+
+import com.google.common.io.Files;
+
+public class TestPersistentCache extends TestCase {
+
+    private File dir;
+
+    @Override
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @Override
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    public void testReopen() throws IOException {
+        PersistentCache cache = PersistentCache.open(dir, 1024*1024);
+        PersistentCache.Source names = cache.getSource("name", 1, TimeUnit.DAYS);
+        PersistentCache.Source ids = cache.getSource("id", 1, TimeUnit.DAYS);
+        assertNull(names.get("9606"));
+        names.put("9606", "Homo sapiens");
+        names.put("10090", "Mus");
+        names.put("10090", "Mus musculus");
+        ids.put("9606", "Homo sapiens ü");
+        assertEquals("Homo sapiens", names.get("9606"));
+        cache.close();
+
+        cache = PersistentCache.open(dir, 1024*1024);
+        names = cache.getSource("name", 1, TimeUnit.DAYS);
+        ids = cache.getSource("id", 1, TimeUnit.DAYS);
+        assertEquals("Homo sapiens", names.get("9606"));
+        assertEquals("Mus musculus", names.get("10090"));
+        assertEquals("Homo sapiens ü", ids.get("9606"));
+        assertNull(ids.get("10090"));
+        assertEquals(2, names.getHitCount());
+        assertEquals(1, ids.getMissCount());
+        cache.close();
+    }
+
+    public void testExpiry() throws IOException {
+        PersistentCache cache = PersistentCache.open(dir, 1024*1024);
+        PersistentCache.Source source = cache.getSource("expiring", -1, TimeUnit.MILLISECONDS);
+        source.put("key", "value");
+        assertNull(source.get("key"));
+        assertEquals(1, source.getExpiredCount());
+        cache.close();
+    }
+
+    public void testEviction() throws IOException {
+        PersistentCache cache = PersistentCache.open(dir, 10000);
+        PersistentCache.Source source = cache.getSource("big", 1, TimeUnit.DAYS);
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            value.append('x');
+        }
+        for (int i = 0; i < 100; i++) {
+            source.put(Integer.toString(i), value.toString());
+        }
+        cache.close();
+
+        //too big, so only the most recent are kept
+        cache = PersistentCache.open(dir, 10000);
+        source = cache.getSource("big", 1, TimeUnit.DAYS);
+        assertNull(source.get("0"));
+        assertEquals(value.toString(), source.get("99"));
+        cache.close();
+        long size = 0;
+        for (File file : dir.listFiles()) {
+            size += file.length();
+        }
+        assertTrue(size <= 10000);
+    }
+
+    public void testLongRunning() throws IOException {
+        PersistentCache cache = PersistentCache.open(dir, 10000);
+        PersistentCache.Source source = cache.getSource("big", 1, TimeUnit.DAYS);
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            value.append('x');
+        }
+        //without reopening, as the daemon never does
+        for (int i = 0; i < 100; i++) {
+            source.put(Integer.toString(i), value.toString());
+            long size = 0;
+            for (File file : dir.listFiles()) {
+                size += file.length();
+            }
+            //at most one value more than the size, before it is compacted
+            assertTrue("Size "+size+" after "+i, size <= 10000 + 1100);
+        }
+        //dropped from memory as well
+        assertNull(source.get("0"));
+        assertEquals(value.toString(), source.get("99"));
+        cache.close();
+
+        cache = PersistentCache.open(dir, 10000);
+        source = cache.getSource("big", 1, TimeUnit.DAYS);
+        assertEquals(value.toString(), source.get("99"));
+        cache.close();
+    }
+}
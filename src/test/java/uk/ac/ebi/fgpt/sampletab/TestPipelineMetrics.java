@@ -0,0 +1,64 @@
+package uk.ac.ebi.fgpt.sampletab;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import uk.ac.ebi.fgpt.sampletab.utils.PipelineMetrics;
+
+public class TestPipelineMetrics extends TestCase {
+
+    public void testCounts() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        long now = System.nanoTime();
+        metrics.recordSubmission("GSB-1", 10, now - TimeUnit.MILLISECONDS.toNanos(5));
+        metrics.recordSubmission("GSB-2", 20, now - TimeUnit.MILLISECONDS.toNanos(500));
+        metrics.recordSubmission("GSB-3", 30, now - TimeUnit.MILLISECONDS.toNanos(50));
+        metrics.recordStage("parse", now - TimeUnit.MILLISECONDS.toNanos(3));
+        metrics.recordSkipped();
+        metrics.recordFailed();
+        metrics.recordFailed();
+
+        assertEquals(3, metrics.getSubmissionCount());
+        assertEquals(60, metrics.getSampleCount());
+        assertEquals(1, metrics.getSkippedCount());
+        assertEquals(2, metrics.getFailedCount());
+
+        String[] stages = metrics.getStageSummaries();
+        assertEquals(2, stages.length);
+        assertTrue(stages[0], stages[0].startsWith("submission: count=3 "));
+        assertTrue(stages[1], stages[1].startsWith("parse: count=1 "));
+
+        //slowest first
+        String[] slowest = metrics.getSlowestSubmissions();
+        assertEquals(3, slowest.length);
+        assertTrue(slowest[0], slowest[0].startsWith("GSB-2: "));
+        assertTrue(slowest[1], slowest[1].startsWith("GSB-3: "));
+        assertTrue(slowest[2], slowest[2].startsWith("GSB-1: "));
+    }
+
+    public void testRegister() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("uk.ac.ebi.fgpt.sampletab:type=PipelineMetrics,name=Test");
+
+        PipelineMetrics first = new PipelineMetrics();
+        first.register("Test");
+        first.recordSkipped();
+        assertEquals(1L, server.getAttribute(name, "SkippedCount"));
+
+        //as a second run in the same JVM would
+        PipelineMetrics second = new PipelineMetrics();
+        second.register("Test");
+        assertEquals(0L, server.getAttribute(name, "SkippedCount"));
+
+        //the first can't unregister the second
+        first.unregister();
+        assertTrue(server.isRegistered(name));
+        second.unregister();
+        assertFalse(server.isRegistered(name));
+    }
+}
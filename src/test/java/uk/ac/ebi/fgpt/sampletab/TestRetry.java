@@ -0,0 +1,98 @@
+package uk.ac.ebi.fgpt.sampletab;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import uk.ac.ebi.fgpt.sampletab.utils.Retry;
+
+public class TestRetry extends TestCase {
+
+    private Retry.Attempt<String, IOException> failing(final AtomicInteger count, final int failures) {
+        return new Retry.Attempt<String, IOException>() {
+            public String attempt() throws IOException {
+                if (count.incrementAndGet() <= failures) {
+                    throw new IOException("failure "+count.get());
+                }
+                return "success";
+            }
+        };
+    }
+
+    public void testRetry() throws IOException {
+        Retry retry = new Retry(null, 3, 1, 2, 0, 0);
+        AtomicInteger count = new AtomicInteger(0);
+        assertEquals("success", retry.call("test", failing(count, 2)));
+        assertEquals(3, count.get());
+        assertEquals(2, retry.getRetryCount());
+
+        count.set(0);
+        try {
+            retry.call("test", failing(count, 3));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("failure 3", e.getMessage());
+        }
+        assertEquals(1, retry.getFailureCount());
+    }
+
+    public void testBreaker() throws IOException, InterruptedException {
+        Retry retry = new Retry(null, 2, 1, 1, 2, 50);
+        AtomicInteger count = new AtomicInteger(0);
+        try {
+            retry.call("test", failing(count, 2));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            //expected
+        }
+        assertEquals(1, retry.getTripCount());
+        assertEquals("open", retry.getState());
+
+        //fails without being attempted while open
+        count.set(0);
+        try {
+            retry.call("test", failing(count, 0));
+            fail("Expected OpenException");
+        } catch (Retry.OpenException e) {
+            //expected
+        }
+        assertEquals(0, count.get());
+        assertEquals(1, retry.getRejectionCount());
+
+        //a trial is let through after a while, and closes it
+        Thread.sleep(100);
+        assertEquals("half-open", retry.getState());
+        assertEquals("success", retry.call("test", failing(count, 0)));
+        assertEquals("closed", retry.getState());
+    }
+
+    public void testTrialError() throws IOException, InterruptedException {
+        Retry retry = new Retry(null, 1, 1, 1, 1, 50);
+        AtomicInteger count = new AtomicInteger(0);
+        try {
+            retry.call("test", failing(count, 1));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            //expected
+        }
+        assertEquals("open", retry.getState());
+
+        Thread.sleep(100);
+        try {
+            retry.call("test", new Retry.Attempt<String, IOException>() {
+                public String attempt() {
+                    throw new Error("trial");
+                }
+            });
+            fail("Expected Error");
+        } catch (Error e) {
+            assertEquals("trial", e.getMessage());
+        }
+
+        //the next call is allowed to be the trial instead of being rejected
+        count.set(0);
+        assertEquals("success", retry.call("test", failing(count, 0)));
+        assertEquals("closed", retry.getState());
+    }
+}
@@ -0,0 +1,76 @@
+package uk.ac.ebi.fgpt.sampletab;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import uk.ac.ebi.fgpt.sampletab.utils.RunJournal;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class TestRunJournal extends TestCase {
+
+    private File file;
+
+    @Override
+    public void setUp() throws IOException {
+        file = File.createTempFile("test", ".journal");
+        file.delete();
+    }
+
+    @Override
+    public void tearDown() {
+        file.delete();
+    }
+
+    public void testResume() throws IOException {
+        File a = new File("a");
+        File b = new File("b");
+        File c = new File("c");
+
+        String runId = RunJournal.newRunId();
+        String otherId = RunJournal.newRunId();
+        assertFalse(runId.equals(otherId));
+
+        RunJournal journal = new RunJournal(file, runId, false);
+        journal.markDone(a);
+        journal.markFailed(b);
+        journal.close();
+        journal = new RunJournal(file, otherId, false);
+        journal.markDone(b);
+        journal.close();
+        //as if the JVM died part way through writing a line
+        Files.append(runId+"\t"+RunJournal.DONE+"\t"+c.getAbsolutePath(), file, Charsets.UTF_8);
+
+        journal = new RunJournal(file, runId, true);
+        assertTrue(journal.isDone(a));
+        assertFalse(journal.isDone(b));
+        assertFalse(journal.isDone(c));
+        journal.markDone(c);
+        journal.close();
+
+        journal = new RunJournal(file, runId, true);
+        assertTrue(journal.isDone(c));
+        journal.close();
+    }
+
+    public void testUnknown() throws IOException {
+        //nothing needs to be finished for a run to be resumed
+        new RunJournal(file, "run1", false).close();
+        new RunJournal(file, "run1", true).close();
+        try {
+            new RunJournal(file, "run2", true);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            //expected
+        }
+        try {
+            new RunJournal(file, "run1", false);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+}
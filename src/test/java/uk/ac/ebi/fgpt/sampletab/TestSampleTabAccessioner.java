@@ -1,84 +1,100 @@
 package uk.ac.ebi.fgpt.sampletab;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 import junit.framework.TestCase;
 
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import uk.ac.ebi.arrayexpress2.magetab.exception.ParseException;
+import uk.ac.ebi.arrayexpress2.sampletab.datamodel.SampleData;
 
 public class TestSampleTabAccessioner extends TestCase {
-    public void testTest(){
-        
-    }
-    
-	/*
-	private URL resource;
-    private SampleTabParser parser;
 
-    private String host;
-    private int port;
-    private String database;
-    private String username;
-    private String password;
-    
-    private Logger log = LoggerFactory.getLogger(getClass());
+    private EmbeddedAccessionDatabase db;
 
+    @Override
     public void setUp() {
-        resource = getClass().getClassLoader().getResource("GEN-ERP001075/sampletab.pre.txt");
-        parser = new SampleTabParser();
-        Properties mysqlProperties = new Properties();
+        db = new EmbeddedAccessionDatabase(4);
+    }
+
+    @Override
+    public void tearDown() {
+        db.close();
+    }
+
+    public void testSingle() {
+        Accessioner accessioner = new Accessioner(db.getDataSource());
+        assertNull(accessioner.retrieveAssaySample("sample", "user"));
+        String accession = accessioner.singleAssaySample("sample", "user");
+        assertTrue(accession.startsWith("SAMEA"));
+        assertEquals(accession, accessioner.singleAssaySample(" sample ", "User"));
+        assertEquals(accession, new Accessioner(db.getDataSource()).retrieveAssaySample("sample", "user"));
+        assertFalse(accession.equals(accessioner.singleAssaySample("sample", "other")));
+        assertEquals("user", accessioner.getUserNameForAccession(accession).get());
+    }
+
+    public void testUnique() {
+        Accessioner accessioner = new Accessioner(db.getDataSource());
+        accessioner.singleAssaySample("sample", "user");
+        //as another process would if it got past the NOT EXISTS at the same time
         try {
-            InputStream is = getClass().getResourceAsStream("/oracle.properties");
-            mysqlProperties.load(is);
-        } catch (IOException e) {
-            e.printStackTrace();
-            fail();
-            return;
+            new JdbcTemplate(db.getDataSource()).update(
+                "INSERT INTO SAMPLE_ASSAY ( USER_ACCESSION , SUBMISSION_ACCESSION ) VALUES ( ? , ? )", "sample", "user");
+            fail("Expected DuplicateKeyException");
+        } catch (DuplicateKeyException e) {
+            //expected
         }
-        
-        host = mysqlProperties.getProperty("hostname");
-        port = new Integer(mysqlProperties.getProperty("port"));
-        database = mysqlProperties.getProperty("database");
-        username = mysqlProperties.getProperty("username");
-        password = mysqlProperties.getProperty("password");
+        assertEquals(1, db.count("SAMPLE_ASSAY"));
     }
 
-    public void tearDown() {
-        resource = null;
-        parser = null;
+    public void testBulk() {
+        Accessioner accessioner = new Accessioner(db.getDataSource());
+        String existing = accessioner.singleGroup("group 5", "user");
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 2500; i++) {
+            names.add("group "+i);
+        }
+        Map<String, String> accessions = accessioner.bulkGroups(names, "user");
+        assertEquals(2500, accessions.size());
+        assertEquals(existing, accessions.get("group 5"));
+        assertEquals(2500, db.count("SAMPLE_GROUPS"));
+
+        Map<String, String> again = new Accessioner(db.getDataSource()).bulkGroups(names, "user");
+        assertEquals(accessions, again);
+        assertEquals(2500, db.count("SAMPLE_GROUPS"));
+    }
+
+    public void testWildcards() {
+        Accessioner accessioner = new Accessioner(db.getDataSource());
+        String plain = accessioner.singleAssaySample("sample1", "user");
+        assertNull(accessioner.retrieveAssaySample("sample_", "user"));
+        assertNull(accessioner.retrieveAssaySample("sample%", "user"));
+        assertNull(accessioner.retrieveAssaySample("sample1", "use_"));
+        String underscore = accessioner.singleAssaySample("sample_", "user");
+        assertFalse(plain.equals(underscore));
+
+        List<String> names = new ArrayList<String>();
+        names.add("sample1");
+        names.add("sample_");
+        names.add("sample%");
+        Map<String, String> accessions = new Accessioner(db.getDataSource()).bulkAssaySamples(names, "user");
+        assertEquals(plain, accessions.get("sample1"));
+        assertEquals(underscore, accessions.get("sample_"));
+        assertEquals(accessions.get("sample%"), new Accessioner(db.getDataSource()).retrieveAssaySample("sample%", "user"));
+        assertEquals(3, db.count("SAMPLE_ASSAY"));
     }
 
-    public void testAccessioning() {
-    	try {
-            Accessioner accessioner;
-            try {
-                accessioner = new Accessioner(host, port, database, username, password);
-            } catch (ClassNotFoundException e) {
-                e.printStackTrace();
-                fail();
-                return;
-            } catch (SQLException e) {
-                e.printStackTrace();
-                fail();
-                return;
-            }
-            
-    	    SampleData st = parser.parse(resource);
-    	    accessioner.convert(st);
-    	    
-			StringWriter out = new StringWriter();
-			SampleTabWriter sampletabwriter = new SampleTabWriter(out);
-			try {
-				sampletabwriter.write(st);
-			} catch (IOException e) {
-                log.error("Unable to write output", e);
-				fail();
-			}
-			//System.out.println(out.toString());
-		} catch (ParseException e) {
-		    log.error("Unable to parse source", e);
-            fail();
-		} catch (SQLException e) {
-		    log.error(e.getSQLState(), e);
-            fail();
-        } 
+    public void testConvert() throws ParseException {
+        SampleData sd = AccessionerBenchmark.getSubmission("GSB-1", 1000);
+        new Accessioner(db.getDataSource()).convert(sd, "user");
+        SampleData again = AccessionerBenchmark.getSubmission("GSB-1", 1000);
+        new Accessioner(db.getDataSource()).convert(again, "user");
+        assertEquals(AccessionerBenchmark.getAccessions(sd), AccessionerBenchmark.getAccessions(again));
+        assertEquals(1000, db.count("SAMPLE_ASSAY"));
+        assertEquals(10, db.count("SAMPLE_GROUPS"));
     }
-*/
 }
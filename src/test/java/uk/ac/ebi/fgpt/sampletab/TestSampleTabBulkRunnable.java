@@ -0,0 +1,187 @@
+package uk.ac.ebi.fgpt.sampletab;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import junit.framework.TestCase;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import uk.ac.ebi.fgpt.sampletab.utils.PipelineMetrics;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class TestSampleTabBulkRunnable extends TestCase {
+
+    private EmbeddedAccessionDatabase db;
+    private File dir;
+    //number of times the whole of ATTR_ADD has been read
+    private AtomicInteger fullReads;
+    private DataSource dataSource;
+
+    @Override
+    public void setUp() {
+        db = new EmbeddedAccessionDatabase(4);
+        dir = Files.createTempDir();
+        fullReads = new AtomicInteger(0);
+        dataSource = new DelegatingDataSource(db.getDataSource()) {
+            @Override
+            public Connection getConnection() throws SQLException {
+                final Connection conn = super.getConnection();
+                return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class},
+                    new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            if (method.getName().equals("prepareStatement") && "SELECT * FROM ATTR_ADD".equals(args[0])) {
+                                fullReads.incrementAndGet();
+                            }
+                            try {
+                                return method.invoke(conn, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                    });
+            }
+        };
+    }
+
+    @Override
+    public void tearDown() {
+        db.close();
+        delete(dir);
+    }
+
+    private void delete(File file) {
+        if (file.isDirectory()) {
+            for (File child : file.listFiles()) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void createAttrAdd() {
+        new JdbcTemplate(db.getDataSource()).execute("CREATE TABLE ATTR_ADD ( SAMPLE_ID VARCHAR2(255), "
+            +"ATTR_KEY VARCHAR2(255), ATTR_VALUE VARCHAR2(255), TERM_SOURCE_REF VARCHAR2(255), "
+            +"TERM_SOURCE_ID VARCHAR2(255), TERM_SOURCE_URI VARCHAR2(255), TERM_SOURCE_VERSION VARCHAR2(255), "
+            +"UNIT VARCHAR2(255) )");
+    }
+
+    private void addAttr(String id, String key, String value) {
+        new JdbcTemplate(db.getDataSource()).update(
+            "INSERT INTO ATTR_ADD ( SAMPLE_ID , ATTR_KEY , ATTR_VALUE ) VALUES ( ? , ? , ? )", id, key, value);
+    }
+
+    private File getSubmission(String id) throws IOException {
+        return getSubmission(dir, id);
+    }
+
+    /**
+     * An accessioned sampletab.pre.txt with two samples, modified a minute ago.
+     */
+    private File getSubmission(File parent, String id) throws IOException {
+        File subdir = new File(parent, id);
+        subdir.mkdirs();
+        File sampletabpre = new File(subdir, "sampletab.pre.txt");
+        Files.write("[MSI]\n"
+            +"Submission Title\tTest "+id+"\n"
+            +"Submission Identifier\t"+id+"\n"
+            +"Submission Description\tTest\n"
+            +"Submission Version\t1.2\n"
+            +"Submission Reference Layer\tfalse\n"
+            +"Submission Release Date\t2012/04/23\n"
+            +"Submission Update Date\t2012/04/23\n"
+            +"Publication PubMed ID\t18488015\n"
+            +"Publication DOI\t10.1038/nature07002\n"
+            +"Term Source Name\tEFO\n"
+            +"Term Source URI\thttp://www.ebi.ac.uk/efo\n"
+            +"Term Source Version\t\n"
+            +"[SCD]\n"
+            +"Sample Name\tSample Accession\tCharacteristic[strain]\n"
+            +"sample 1\tSAMEA1\tJB22\n"
+            +"sample 2\tSAMEA2\tJB371\n", sampletabpre, Charsets.UTF_8);
+        sampletabpre.setLastModified(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1));
+        return subdir;
+    }
+
+    private void run(File subdir, CorrectorAddAttr correctorAddAttr, boolean force, PipelineMetrics metrics) throws Exception {
+        SampleTabBulkRunnable runnable = new SampleTabBulkRunnable(subdir, new Corrector(), correctorAddAttr,
+            null, null, null, force, true, true);
+        runnable.setMetrics(metrics);
+        runnable.call();
+    }
+
+    private String toLoad(File subdir, boolean inMemory) throws Exception {
+        new SampleTabBulkRunnable(subdir, new Corrector(), new CorrectorAddAttr(dataSource),
+            null, null, null, false, false, true, false, inMemory).call();
+        return Files.toString(new File(subdir, "sampletab.toload.txt"), Charsets.UTF_8);
+    }
+
+    public void testDigestFailure() throws Exception {
+        //without the table, the digest can never be read
+        CorrectorAddAttr correctorAddAttr = new CorrectorAddAttr(dataSource);
+        PipelineMetrics metrics = new PipelineMetrics();
+        for (int i = 1; i <= 3; i++) {
+            run(getSubmission("GSB-"+i), correctorAddAttr, false, metrics);
+        }
+        assertEquals(3, metrics.getSubmissionCount());
+        assertEquals(1, fullReads.get());
+    }
+
+    public void testForce() throws Exception {
+        createAttrAdd();
+        File subdir = getSubmission("GSB-1");
+        PipelineMetrics metrics = new PipelineMetrics();
+        run(subdir, new CorrectorAddAttr(dataSource), true, metrics);
+        assertEquals(1, metrics.getSubmissionCount());
+        assertTrue(new File(subdir, "sampletab.txt").exists());
+        assertEquals(0, fullReads.get());
+
+        //up to date by modification time, and recorded in the manifest from then on
+        run(subdir, new CorrectorAddAttr(dataSource), false, metrics);
+        run(subdir, new CorrectorAddAttr(dataSource), false, metrics);
+        assertEquals(1, metrics.getSubmissionCount());
+        assertEquals(2, metrics.getSkippedCount());
+    }
+
+    public void testAttrAddChanged() throws Exception {
+        createAttrAdd();
+        addAttr("SAMEA1", "characteristic[colour]", "red");
+        File subdir = getSubmission("GSB-1");
+        PipelineMetrics metrics = new PipelineMetrics();
+        run(subdir, new CorrectorAddAttr(dataSource), false, metrics);
+        assertTrue(Files.toString(new File(subdir, "sampletab.txt"), Charsets.UTF_8).contains("red"));
+
+        run(subdir, new CorrectorAddAttr(dataSource), false, metrics);
+        assertEquals(1, metrics.getSubmissionCount());
+        assertEquals(1, metrics.getSkippedCount());
+
+        addAttr("SAMEA2", "characteristic[colour]", "blue");
+        run(subdir, new CorrectorAddAttr(dataSource), false, metrics);
+        assertEquals(2, metrics.getSubmissionCount());
+        assertTrue(Files.toString(new File(subdir, "sampletab.txt"), Charsets.UTF_8).contains("blue"));
+    }
+
+    public void testInMemory() throws Exception {
+        createAttrAdd();
+        addAttr("SAMEA1", "characteristic[colour]", "red");
+        addAttr("SAMEA2", "sex", "female");
+        //the same submission in two places, as the output depends on its identifier
+        String parsed = toLoad(getSubmission(new File(dir, "parsed"), "GSB-1"), false);
+        String inMemory = toLoad(getSubmission(new File(dir, "inmemory"), "GSB-1"), true);
+        assertTrue(parsed.contains("red"));
+        assertEquals(parsed, inMemory);
+    }
+}
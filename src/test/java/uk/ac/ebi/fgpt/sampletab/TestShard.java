@@ -0,0 +1,210 @@
+package uk.ac.ebi.fgpt.sampletab;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import uk.ac.ebi.fgpt.sampletab.utils.Shard;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+public class TestShard extends TestCase {
+
+    private File dir;
+    private List<File> inputs;
+
+    @Override
+    public void setUp() throws IOException {
+        dir = Files.createTempDir();
+        inputs = new ArrayList<File>();
+        for (int i = 0; i < 50; i++) {
+            //between one and three files per submission
+            for (int j = 0; j <= i % 3; j++) {
+                inputs.add(createInput("GSB-"+i, "file"+j+".txt", i+j));
+            }
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        delete(dir);
+    }
+
+    private void delete(File file) {
+        if (file.isDirectory()) {
+            for (File child : file.listFiles()) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private File createInput(String submission, String name, int size) throws IOException {
+        File subdir = new File(dir, submission);
+        subdir.mkdirs();
+        File input = new File(subdir, name);
+        Files.write(new byte[size], input);
+        return input;
+    }
+
+    /**
+     * Checks that every input is in exactly one of the shards, and all the inputs of a
+     * submission are in the same one.
+     */
+    private void checkPartition(List<List<File>> shards) {
+        Set<File> seen = new HashSet<File>();
+        Set<String> submissions = new HashSet<String>();
+        for (List<File> shard : shards) {
+            Set<String> shardSubmissions = new HashSet<String>();
+            for (File input : shard) {
+                assertTrue("In more than one shard: "+input, seen.add(input));
+                shardSubmissions.add(Shard.getSubmissionId(input));
+            }
+            for (String submission : shardSubmissions) {
+                assertTrue("Split between shards: "+submission, submissions.add(submission));
+            }
+        }
+        assertEquals(new HashSet<File>(inputs), seen);
+    }
+
+    public void testParse() {
+        assertEquals("2/3", Shard.parse("2/3").toString());
+        assertEquals(1, Shard.parse("1/1").getIndex());
+        assertEquals(1, Shard.parse("1/1").getCount());
+        for (String spec : new String[] {"0/3", "4/3", "1/0", "-1/3", "a/b", "1", "1/2/3", ""}) {
+            try {
+                Shard.parse(spec);
+                fail("Expected IllegalArgumentException for "+spec);
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+    }
+
+    public void testFilter() {
+        for (int count = 1; count <= 5; count++) {
+            List<List<File>> shards = new ArrayList<List<File>>();
+            for (int i = 1; i <= count; i++) {
+                shards.add(Lists.newArrayList(new Shard(i, count).filter(inputs)));
+            }
+            checkPartition(shards);
+        }
+    }
+
+    public void testFilterBySize() throws IOException {
+        for (int count = 1; count <= 5; count++) {
+            List<List<File>> shards = new ArrayList<List<File>>();
+            for (int i = 1; i <= count; i++) {
+                shards.add(Lists.newArrayList(new Shard(i, count).filterBySize(inputs, null, null)));
+            }
+            checkPartition(shards);
+        }
+    }
+
+    public void testBalance() throws IOException {
+        delete(dir);
+        dir.mkdirs();
+        inputs.clear();
+        //one submission in two files, and the rest in one each
+        inputs.add(createInput("s100", "a.txt", 70));
+        inputs.add(createInput("s100", "b.txt", 30));
+        for (int size : new int[] {20, 30, 40, 50, 60}) {
+            inputs.add(createInput("s"+size, "a.txt", size));
+        }
+
+        //largest first, each to the shard with the least so far: 100, 60, 50, 40, 30, 20
+        Set<String> first = new HashSet<String>();
+        for (File input : new Shard(1, 2).filterBySize(inputs, null, null)) {
+            first.add(Shard.getSubmissionId(input));
+        }
+        Set<String> second = new HashSet<String>();
+        for (File input : new Shard(2, 2).filterBySize(inputs, null, null)) {
+            second.add(Shard.getSubmissionId(input));
+        }
+        assertEquals(new HashSet<String>(Lists.newArrayList("s100", "s40", "s20")), first);
+        assertEquals(new HashSet<String>(Lists.newArrayList("s60", "s50", "s30")), second);
+    }
+
+    public void testPlanRace() throws Exception {
+        final File plan = new File(dir, "shards.plan");
+        final int count = 4;
+        final CyclicBarrier barrier = new CyclicBarrier(count);
+        ExecutorService pool = Executors.newFixedThreadPool(count);
+        try {
+            List<Future<List<File>>> futures = new ArrayList<Future<List<File>>>();
+            for (int i = 1; i <= count; i++) {
+                final Shard shard = new Shard(i, count);
+                futures.add(pool.submit(new Callable<List<File>>() {
+                    public List<File> call() throws Exception {
+                        //all at once, so more than one may try to write the plan
+                        barrier.await();
+                        return Lists.newArrayList(shard.filterBySize(inputs, plan, "run1"));
+                    }
+                }));
+            }
+            List<List<File>> shards = new ArrayList<List<File>>();
+            for (Future<List<File>> future : futures) {
+                shards.add(future.get());
+            }
+            checkPartition(shards);
+        } finally {
+            pool.shutdown();
+        }
+
+        //only the plan is left, not any of the temporary files
+        assertEquals(1, plan.getParentFile().listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile();
+            }
+        }).length);
+    }
+
+    public void testStalePlan() throws IOException {
+        File plan = new File(dir, "shards.plan");
+        List<File> first = Lists.newArrayList(new Shard(1, 2).filterBySize(inputs, plan, "run1"));
+        //the same run uses the plan, even if it would split things differently now
+        File big = createInput("GSB-0", "big.txt", 100000);
+        inputs.add(big);
+        List<File> second = Lists.newArrayList(new Shard(2, 2).filterBySize(inputs, plan, "run1"));
+        inputs.remove(big);
+        second.remove(big);
+        List<List<File>> shards = new ArrayList<List<File>>();
+        shards.add(first);
+        shards.add(second);
+        checkPartition(shards);
+
+        try {
+            new Shard(1, 2).filterBySize(inputs, plan, "run2");
+            fail("Expected IOException for another run");
+        } catch (IOException e) {
+            //expected
+        }
+        try {
+            new Shard(1, 3).filterBySize(inputs, plan, "run1");
+            fail("Expected IOException for another number of shards");
+        } catch (IOException e) {
+            //expected
+        }
+
+        //nor one from before plans had a header
+        Files.write("GSB-1\t1\n".getBytes(), plan);
+        try {
+            new Shard(1, 2).filterBySize(inputs, plan, "run1");
+            fail("Expected IOException without a header");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+}
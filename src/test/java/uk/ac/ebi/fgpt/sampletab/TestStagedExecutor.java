@@ -0,0 +1,206 @@
+package uk.ac.ebi.fgpt.sampletab;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import junit.framework.TestCase;
+
+import uk.ac.ebi.fgpt.sampletab.utils.StagedExecutor;
+
+public class TestStagedExecutor extends TestCase {
+
+    private StagedExecutor executor;
+    private CountDownLatch releaseFirst;
+    private CountDownLatch releaseSecond;
+
+    @Override
+    public void setUp() {
+        executor = new StagedExecutor();
+        //one thread and room for one more in the queue
+        executor.addStage("db", 1, 1);
+        releaseFirst = new CountDownLatch(1);
+        releaseSecond = new CountDownLatch(1);
+    }
+
+    @Override
+    public void tearDown() {
+        releaseFirst.countDown();
+        releaseSecond.countDown();
+        executor.shutdown();
+    }
+
+    /**
+     * Runs some work on the stage from its own thread, as a caller would.
+     */
+    private class Caller extends Thread {
+        private final String value;
+        private final CountDownLatch release;
+        private volatile String result = null;
+        private volatile Exception failure = null;
+
+        public Caller(String value, CountDownLatch release) {
+            this.value = value;
+            this.release = release;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                result = executor.run("db", new Callable<String>() {
+                    public String call() throws InterruptedException {
+                        if (release != null) {
+                            release.await();
+                        }
+                        return value;
+                    }
+                });
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        public boolean isWaitingForSpace() {
+            for (StackTraceElement element : getStackTrace()) {
+                if (element.getMethodName().equals("rejectedExecution")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private void waitFor(Caller caller, boolean forSpace) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            if (forSpace ? caller.isWaitingForSpace() : caller.getState() == Thread.State.WAITING) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("Caller of "+caller.value+" is not waiting");
+    }
+
+    /**
+     * Fills the thread and the queue of the stage, and then starts a third caller that has to
+     * wait for space.
+     */
+    private Caller[] fill() throws InterruptedException {
+        Caller running = new Caller("running", releaseFirst);
+        waitFor(running, false);
+        Caller queued = new Caller("queued", releaseSecond);
+        waitFor(queued, false);
+        Caller waiting = new Caller("waiting", null);
+        waitFor(waiting, true);
+        return new Caller[] {running, queued, waiting};
+    }
+
+    public void testFullQueueBlocks() throws Exception {
+        Caller[] callers = fill();
+        Thread.sleep(100);
+        assertTrue(callers[2].isWaitingForSpace());
+        assertNull(callers[2].failure);
+
+        releaseFirst.countDown();
+        releaseSecond.countDown();
+        for (Caller caller : callers) {
+            caller.join(10000);
+            assertNull(caller.failure);
+            assertEquals(caller.value, caller.result);
+        }
+    }
+
+    public void testShutdownWhileWaiting() throws Exception {
+        Caller[] callers = fill();
+        Thread shutdown = new Thread() {
+            public void run() {
+                executor.shutdown();
+            }
+        };
+        shutdown.start();
+        while (shutdown.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(10);
+        }
+
+        //makes space in the queue, but the stage has been shut down by then
+        releaseFirst.countDown();
+        callers[2].join(10000);
+        assertTrue(callers[2].failure instanceof RejectedExecutionException);
+
+        //work that was already queued is still done
+        releaseSecond.countDown();
+        for (int i = 0; i < 2; i++) {
+            callers[i].join(10000);
+            assertEquals(callers[i].value, callers[i].result);
+        }
+        shutdown.join(10000);
+    }
+
+    public void testShutdown() throws Exception {
+        assertEquals("a", run("a"));
+        executor.shutdown();
+        try {
+            run("b");
+            fail("Expected RejectedExecutionException");
+        } catch (RejectedExecutionException e) {
+            //expected
+        }
+    }
+
+    private String run(final String value) throws Exception {
+        return executor.run("db", new Callable<String>() {
+            public String call() {
+                return value;
+            }
+        });
+    }
+
+    public void testRethrow() throws Exception {
+        final IOException checked = new IOException("checked");
+        final IllegalStateException unchecked = new IllegalStateException("unchecked");
+        final Error error = new Error("error");
+        try {
+            executor.run("db", new Callable<String>() {
+                public String call() throws IOException {
+                    throw checked;
+                }
+            });
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertSame(checked, e);
+        }
+        try {
+            executor.run("db", new Callable<String>() {
+                public String call() {
+                    throw unchecked;
+                }
+            });
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertSame(unchecked, e);
+        }
+        try {
+            executor.run("db", new Callable<String>() {
+                public String call() {
+                    throw error;
+                }
+            });
+            fail("Expected Error");
+        } catch (Error e) {
+            assertSame(error, e);
+        }
+
+        try {
+            executor.run("other", new Callable<String>() {
+                public String call() {
+                    return null;
+                }
+            });
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package uk.ac.ebi.fgpt.sampletab;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import uk.ac.ebi.fgpt.sampletab.utils.TaxonIndex;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class TestTaxonIndex extends TestCase {
+
+    private File taxdump;
+    private File indexFile;
+
+    @Override
+    public void setUp() throws IOException {
+        taxdump = Files.createTempDir();
+        Files.write("1\t|\t1\t|\tno rank\t|\t\t|\t8\t|\n"
+            + "9443\t|\t1\t|\torder\t|\t\t|\t5\t|\n"
+            + "9606\t|\t9443\t|\tspecies\t|\tHS\t|\t5\t|\n"
+            + "9989\t|\t1\t|\torder\t|\t\t|\t6\t|\n"
+            + "10090\t|\t9989\t|\tspecies\t|\tMM\t|\t6\t|\n"
+            + "71240\t|\t1\t|\tclade\t|\t\t|\t4\t|\n"
+            + "3702\t|\t71240\t|\tspecies\t|\tAT\t|\t4\t|\n"
+            + "7898\t|\t1\t|\tsuperclass\t|\t\t|\t10\t|\n"
+            + "7955\t|\t7898\t|\tspecies\t|\tDR\t|\t10\t|\n"
+            + "8364\t|\t1\t|\tspecies\t|\tXT\t|\t10\t|\n", new File(taxdump, "nodes.dmp"), Charsets.UTF_8);
+        Files.write("1\t|\troot\t|\t\t|\tscientific name\t|\n"
+            + "9443\t|\tPrimates\t|\t\t|\tscientific name\t|\n"
+            + "9443\t|\tprimates\t|\t\t|\tblast name\t|\n"
+            + "9606\t|\tHomo sapiens\t|\t\t|\tscientific name\t|\n"
+            + "9606\t|\thuman\t|\t\t|\tgenbank common name\t|\n"
+            + "9606\t|\tmouse\t|\t\t|\tcommon name\t|\n"
+            + "9989\t|\tRodentia\t|\t\t|\tscientific name\t|\n"
+            + "9989\t|\trodents\t|\t\t|\tblast name\t|\n"
+            + "10090\t|\tMus musculus\t|\t\t|\tscientific name\t|\n"
+            + "10090\t|\tmouse\t|\t\t|\tgenbank common name\t|\n"
+            + "10090\t|\tLinnaeus, 1758\t|\t\t|\tauthority\t|\n"
+            + "71240\t|\teudicotyledons\t|\t\t|\tscientific name\t|\n"
+            + "71240\t|\teudicots\t|\t\t|\tblast name\t|\n"
+            + "3702\t|\tArabidopsis thaliana\t|\t\t|\tscientific name\t|\n"
+            + "7898\t|\tActinopterygii\t|\t\t|\tscientific name\t|\n"
+            + "7898\t|\tbony fishes\t|\t\t|\tblast name\t|\n"
+            + "7955\t|\tDanio rerio\t|\t\t|\tscientific name\t|\n"
+            + "8364\t|\tXenopus (Silurana) tropicalis\t|\t\t|\tscientific name\t|\n",
+            new File(taxdump, "names.dmp"), Charsets.UTF_8);
+        indexFile = File.createTempFile("taxonindex", ".idx");
+    }
+
+    @Override
+    public void tearDown() {
+        for (File file : taxdump.listFiles()) {
+            file.delete();
+        }
+        taxdump.delete();
+        indexFile.delete();
+    }
+
+    public void testIndex() throws IOException {
+        TaxonIndex.build(taxdump, indexFile);
+        TaxonIndex index = TaxonIndex.open(indexFile);
+
+        assertEquals(10, index.size());
+        assertEquals("Homo sapiens", index.getScientificName(9606));
+        assertNull(index.getScientificName(2));
+
+        //divisions are inherited blast names, as eutils gives them
+        assertEquals("primates", index.getDivision(9606));
+        assertEquals("rodents", index.getDivision(10090));
+        assertEquals("eudicots", index.getDivision(3702));
+        assertEquals("bony fishes", index.getDivision(7955));
+        assertEquals("bony fishes", index.getDivision(7898));
+        //no blast name above it, so eutils has to be asked
+        assertNull(index.getDivision(8364));
+        assertNull(index.getDivision(2));
+
+        assertEquals(new Integer(9606), index.findTaxon("homo  SAPIENS"));
+        assertEquals(new Integer(9606), index.findTaxon("Human"));
+        assertEquals(new Integer(8364), index.findTaxon("Xenopus  Silurana  tropicalis"));
+        //common name of two taxa
+        assertNull(index.findTaxon("mouse"));
+        //authorities are not indexed
+        assertNull(index.findTaxon("Linnaeus, 1758"));
+    }
+}
@@ -0,0 +1,46 @@
+-- Stand-in for the accessioning tables of the Oracle database, for an embedded H2
+-- database in Oracle mode. Only has the columns that Accessioner uses.
+-- Oracle fills ACCESSION from the sequences with triggers, here they are column defaults.
+-- The unique constraints are added by sql/accession-unique-constraints.sql, as in production.
+
+CREATE SEQUENCE SAMPLE_ASSAY_SEQ START WITH 1;
+CREATE SEQUENCE SAMPLE_REFERENCE_SEQ START WITH 1;
+CREATE SEQUENCE SAMPLE_GROUPS_SEQ START WITH 1;
+
+CREATE TABLE SAMPLE_ASSAY (
+    ACCESSION NUMBER(19) DEFAULT SAMPLE_ASSAY_SEQ.NEXTVAL NOT NULL PRIMARY KEY,
+    USER_ACCESSION VARCHAR2(255) NOT NULL,
+    SUBMISSION_ACCESSION VARCHAR2(255) NOT NULL,
+    DATE_ASSIGNED DATE,
+    IS_DELETED NUMBER(1) DEFAULT 0
+);
+
+CREATE TABLE SAMPLE_REFERENCE (
+    ACCESSION NUMBER(19) DEFAULT SAMPLE_REFERENCE_SEQ.NEXTVAL NOT NULL PRIMARY KEY,
+    USER_ACCESSION VARCHAR2(255) NOT NULL,
+    SUBMISSION_ACCESSION VARCHAR2(255) NOT NULL,
+    DATE_ASSIGNED DATE,
+    IS_DELETED NUMBER(1) DEFAULT 0
+);
+
+CREATE TABLE SAMPLE_GROUPS (
+    ACCESSION NUMBER(19) DEFAULT SAMPLE_GROUPS_SEQ.NEXTVAL NOT NULL PRIMARY KEY,
+    USER_ACCESSION VARCHAR2(255) NOT NULL,
+    SUBMISSION_ACCESSION VARCHAR2(255) NOT NULL,
+    DATE_ASSIGNED DATE,
+    IS_DELETED NUMBER(1) DEFAULT 0
+);
+
+-- SUBMISSION_ACCESSION is the user, this is for prefetching all the accessions of one
+CREATE INDEX SAMPLE_ASSAY_SUBMISSION ON SAMPLE_ASSAY (SUBMISSION_ACCESSION);
+CREATE INDEX SAMPLE_REFERENCE_SUBMISSION ON SAMPLE_REFERENCE (SUBMISSION_ACCESSION);
+CREATE INDEX SAMPLE_GROUPS_SUBMISSION ON SAMPLE_GROUPS (SUBMISSION_ACCESSION);
+
+CREATE TABLE USERS (
+    APIKEY VARCHAR2(255) NOT NULL PRIMARY KEY,
+    USERNAME VARCHAR2(255) NOT NULL,
+    PUBLICEMAIL VARCHAR2(255),
+    PUBLICURL VARCHAR2(255),
+    CONTACTNAME VARCHAR2(255),
+    CONTACTEMAIL VARCHAR2(255)
+);